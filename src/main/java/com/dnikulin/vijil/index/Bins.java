@@ -0,0 +1,71 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+/** Storage for the bins of a MindexCore.
+ *
+ * Growable bins, HeapBins or OffHeapBins, take appended entries and
+ * freeze into read-only bins, FrozenBins. CompressedBins are read-only
+ * too. Read-only bins throw IllegalStateException from append() and
+ * clear().
+ *
+ * MindexCore decides the bin of each entry, and serialises appends to
+ * each bin with its stripe locks. Loads may run concurrently with each
+ * other, but not with appends, unless the bins are read-only.
+ *
+ * @author Dmitri Nikulin
+ */
+interface Bins {
+    /** Number of entries in a bin.
+     *
+     * @param ibin  Bin index.
+     */
+    int count(int ibin);
+
+    /** Append an entry to a bin.
+     *
+     * Must be called with the bin's stripe lock held.
+     *
+     * @param ibin   Bin index.
+     * @param itext  Text index, mixed with the hash.
+     * @param ilem   Lemma index, mixed with the hash.
+     * @param itag   Tag, ignored if untagged.
+     * @param iprint Fingerprint, ignored if not fingerprinted.
+     */
+    void append(int ibin, int itext, int ilem, byte itag, int iprint);
+
+    /** Point a view at the entries in a bin.
+     *
+     * @param ibin  Bin index.
+     * @param hash  Hash deciding the bin, for bins that store entries unmixed.
+     * @param view  View to fill.
+     */
+    void load(int ibin, int hash, Postings view);
+
+    /** Remove all entries, keeping memory for reuse. */
+    void clear();
+
+    /** Compact into read-only bins, or return these bins if already read-only. */
+    Bins freeze();
+
+    /** Number of bytes held, on or off the heap. */
+    long bytes();
+}
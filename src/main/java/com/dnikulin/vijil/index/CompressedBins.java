@@ -0,0 +1,366 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.util.Arrays;
+
+/** Read-only bins coded as varints.
+ *
+ * Entries are stored unmixed, in ascending text order within each bin:
+ * a check byte of higher hash bits, the text index delta, then either
+ * the lemma index or, within the same text, its zigzag delta, then any
+ * tag byte and fingerprint. Loading a bin decodes entries whose check
+ * byte matches the query hash into the view, mixed with the hash again
+ * as if stored in uncompressed bins.
+ *
+ * The check byte rejects only 255 in 256 entries of other hashes that
+ * share the bin. The rest decode to valid text and lemma indices, which
+ * the cheap eliminations in search cannot reject, and are rejected only
+ * by fingerprints or by comparing symbols.
+ *
+ * @author Dmitri Nikulin
+ */
+final class CompressedBins implements Bins {
+    /** Offset of each bin's first byte, plus the end offset. */
+    private final int  [] offsets;
+
+    /** Varint-coded entries of all bins. */
+    private final byte [] data;
+
+    /** Shift of the hash bits that form each entry's check byte. */
+    private final int     shift;
+
+    /** Whether entries carry a tag byte. */
+    private final boolean tagged;
+
+    /** Whether entries carry a fingerprint. */
+    private final boolean printed;
+
+    private CompressedBins(int[] offsets, byte[] data, int shift, boolean tagged, boolean printed) {
+        this.offsets = offsets;
+        this.data    = data;
+        this.shift   = shift;
+        this.tagged  = tagged;
+        this.printed = printed;
+    }
+
+    @Override
+    public int count(int ibin) {
+        int       at    = offsets[ibin];
+        final int end   = offsets[ibin + 1];
+        int       count = 0;
+
+        // Skip the check byte, two varints, and any tag and fingerprint.
+        while (at < end) {
+            at++;
+            while (data[at++] < 0)
+                continue;
+            while (data[at++] < 0)
+                continue;
+            at += (tagged ? 1 : 0) + (printed ? 4 : 0);
+            count++;
+        }
+
+        return count;
+    }
+
+    @Override
+    public void append(int ibin, int itext, int ilem, byte itag, int iprint) {
+        throw new IllegalStateException("Cannot add to compressed bins");
+    }
+
+    @Override
+    public void load(int ibin, int hash, Postings view) {
+        final byte [] data  = this.data;
+        final byte    check = (byte) (hash >>> shift);
+
+        int       at  = offsets[ibin];
+        final int end = offsets[ibin + 1];
+
+        // Each entry takes at least 3 bytes, plus 1 if tagged
+        // and 4 if fingerprinted.
+        view.scratch((end - at) / (3 + (tagged ? 1 : 0) + (printed ? 4 : 0)), tagged, printed);
+
+        final int  [] itexts  = view.texts;
+        final int  [] ilems   = view.lemmas;
+        final byte [] itags   = view.tags;
+        final int  [] iprints = view.prints;
+
+        int count = 0;
+        int itext = 0;
+        int ilem  = 0;
+
+        while (at < end) {
+            final byte check2 = data[at++];
+
+            // Read text index delta.
+            int delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte next = data[at++];
+                delta |= ((next & 0x7f) << shift);
+                if (next >= 0)
+                    break;
+            }
+
+            // Read lemma index, or its zigzag delta within the same text.
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte next = data[at++];
+                value |= ((next & 0x7f) << shift);
+                if (next >= 0)
+                    break;
+            }
+
+            if (delta == 0) {
+                ilem += ((value >>> 1) ^ -(value & 1));
+            } else {
+                itext += delta;
+                ilem   = value;
+            }
+
+            final byte itag = tagged ? data[at++] : 0;
+
+            int iprint = 0;
+            if (printed) {
+                iprint = ((data[at] << 24) | ((data[at + 1] & 0xff) << 16) |
+                    ((data[at + 2] & 0xff) << 8) | (data[at + 3] & 0xff));
+                at += 4;
+            }
+
+            // Skip entries of other hashes.
+            if (check2 != check)
+                continue;
+
+            itexts [count] = (itext ^ hash);
+            ilems  [count] = (ilem  ^ hash);
+            if (tagged)
+                itags   [count] = itag;
+            if (printed)
+                iprints [count] = iprint;
+            count++;
+        }
+
+        view.max = count;
+    }
+
+    @Override
+    public void clear() {
+        throw new IllegalStateException("Cannot clear compressed bins");
+    }
+
+    @Override
+    public Bins freeze() {
+        return this;
+    }
+
+    /** Number of bytes of coded entries, excluding bin offsets. */
+    public int dataBytes() {
+        return data.length;
+    }
+
+    @Override
+    public long bytes() {
+        return (4L * offsets.length) + data.length;
+    }
+
+    /** Encoder that codes entries into any bin, in ascending text order per bin.
+     *
+     * Each bin is coded into its own chain of small blocks, so texts can
+     * be staged once each, in text order, while the encoder takes little
+     * more memory than the coded entries. finish() copies the chains
+     * into one array in bin order.
+     */
+    static final class Encoder {
+        /** Number of bytes in each block, a power of 2. */
+        public static final int nblock = 32;
+
+        /** Coded bytes of all blocks. */
+        private       byte [] blocks;
+
+        /** Next block in the chain of each block. */
+        private       int  [] links;
+
+        /** Number of blocks allocated. */
+        private       int     nblocks;
+
+        /** First and last block of each bin's chain. */
+        private final int  [] heads;
+        private final int  [] tails;
+
+        /** Number of bytes coded in each bin. */
+        private final int  [] sizes;
+
+        /** Text and lemma index of the last entry coded in each bin. */
+        private final int  [] prevTexts;
+        private final int  [] prevLems;
+
+        /** Entry being coded, before it is copied into its chain. */
+        private final byte [] entry;
+
+        private final int     shift;
+        private final boolean tagged;
+        private final boolean printed;
+
+        /** Construct an encoder.
+         *
+         * @param nbins    Number of bins.
+         * @param nexpect  Expected number of entries, to size the blocks.
+         * @param shift    Shift of the hash bits that form each check byte.
+         * @param tagged   Whether entries carry a tag byte.
+         * @param printed  Whether entries carry a fingerprint.
+         */
+        public Encoder(int nbins, long nexpect, int shift, boolean tagged, boolean printed) {
+            final int nblocks2 = (int) Math.min(Integer.MAX_VALUE / nblock, Math.max(64, nbins + (nexpect * 4 / nblock)));
+
+            this.blocks    = new byte[nblocks2 * nblock];
+            this.links     = new int[nblocks2];
+            this.nblocks   = 0;
+            this.heads     = new int[nbins];
+            this.tails     = new int[nbins];
+            this.sizes     = new int[nbins];
+            this.prevTexts = new int[nbins];
+            this.prevLems  = new int[nbins];
+            this.entry     = new byte[16];
+            this.shift     = shift;
+            this.tagged    = tagged;
+            this.printed   = printed;
+        }
+
+        /** Code an entry, after any entries of lower text index in its bin.
+         *
+         * @param ibin   Bin index.
+         * @param hash   Hash of the entry, deciding its check byte.
+         * @param itext  Text index, unmixed.
+         * @param ilem   Lemma index, unmixed.
+         * @param itag   Tag, ignored if untagged.
+         * @param iprint Fingerprint, ignored if not fingerprinted.
+         */
+        public void put(int ibin, int hash, int itext, int ilem, byte itag, int iprint) {
+            assert (itext >= prevTexts[ibin]);
+
+            final byte [] entry = this.entry;
+            int at = 0;
+
+            final int delta = (itext - prevTexts[ibin]);
+            entry[at++] = (byte) (hash >>> shift);
+            at = putVarint(entry, at, delta);
+
+            if (delta == 0) {
+                final int diff = (ilem - prevLems[ibin]);
+                at = putVarint(entry, at, (diff << 1) ^ (diff >> 31));
+            } else {
+                at = putVarint(entry, at, ilem);
+            }
+
+            if (tagged)
+                entry[at++] = itag;
+
+            if (printed) {
+                entry[at++] = (byte) (iprint >>> 24);
+                entry[at++] = (byte) (iprint >>> 16);
+                entry[at++] = (byte) (iprint >>> 8);
+                entry[at++] = (byte) iprint;
+            }
+
+            prevTexts[ibin] = itext;
+            prevLems[ibin]  = ilem;
+
+            // Copy into the bin's chain, linking new blocks as needed.
+            int size  = sizes[ibin];
+            int block = tails[ibin];
+            for (int i = 0; i < at; i++) {
+                final int slot = (size & (nblock - 1));
+                if (slot == 0) {
+                    final int block2 = allocate();
+                    if (size == 0)
+                        heads[ibin] = block2;
+                    else
+                        links[block] = block2;
+                    block = block2;
+                }
+                blocks[(block * nblock) + slot] = entry[i];
+                size++;
+            }
+
+            sizes[ibin] = size;
+            tails[ibin] = block;
+        }
+
+        /** Finish coding, copying each bin's chain in bin order. */
+        public CompressedBins finish() {
+            final int [] offsets = new int[sizes.length + 1];
+
+            long total = 0;
+            for (int ibin = 0; ibin < sizes.length; ibin++)
+                total += sizes[ibin];
+            if (total > (Integer.MAX_VALUE - 8))
+                throw new IllegalStateException("Too many entries to compress");
+
+            final byte [] data = new byte[(int) total];
+
+            int at = 0;
+            for (int ibin = 0; ibin < sizes.length; ibin++) {
+                offsets[ibin] = at;
+
+                int block = heads[ibin];
+                int nleft = sizes[ibin];
+                while (nleft > 0) {
+                    final int ncopy = Math.min(nleft, nblock);
+                    System.arraycopy(blocks, block * nblock, data, at, ncopy);
+                    at    += ncopy;
+                    nleft -= ncopy;
+                    block  = links[block];
+                }
+            }
+            offsets[sizes.length] = at;
+
+            return new CompressedBins(offsets, data, shift, tagged, printed);
+        }
+
+        /** Allocate a block, growing the block arrays if needed. */
+        private int allocate() {
+            if (nblocks >= links.length) {
+                final long nlength = Math.min(Integer.MAX_VALUE / nblock, links.length * 2L);
+                if (nlength <= links.length)
+                    throw new IllegalStateException("Too many entries to compress");
+                blocks = Arrays.copyOf(blocks, (int) nlength * nblock);
+                links  = Arrays.copyOf(links, (int) nlength);
+            }
+            return nblocks++;
+        }
+    }
+
+    /** Write a non-negative or unsigned varint.
+     *
+     * @param data   Array to write into.
+     * @param at     Offset to write at.
+     * @param value  Value to write, as unsigned.
+     * @return       Offset after the varint.
+     */
+    private static int putVarint(byte[] data, int at, int value) {
+        while ((value & ~0x7f) != 0) {
+            data[at++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        data[at++] = (byte) value;
+        return at;
+    }
+}
@@ -0,0 +1,384 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.util.Arrays;
+
+import com.dnikulin.vijil.model.TextModel;
+
+/** Compressed full-text index for lookup of passages of any length.
+ *
+ * The Burrows-Wheeler transform of a dense TextModelTape is held in a
+ * wavelet matrix, a levelwise wavelet tree of one bit vector per bit of
+ * the dense alphabet, supporting rank in O(log sigma). Patterns are found
+ * by backward search, counting occurrences without touching the texts.
+ * Occurrences are located by stepping back to the nearest sampled suffix,
+ * one suffix in every sampleRate positions.
+ *
+ * Memory is about log2(sigma) * 1.0625 bits per symbol for the transform,
+ * plus 32 / sampleRate + 1.0625 bits per symbol for locating. The suffix
+ * array is only needed while building.
+ *
+ * Patterns never include barriers, so no occurrence crosses between texts.
+ * The index is immutable once built, and safe for concurrent searches.
+ *
+ * @author Dmitri Nikulin
+ */
+public final class FMIndex {
+    /** Default distance between sampled suffixes. */
+    public static final int defaultRate = 32;
+
+    public  final int          nsymbols;
+    public  final int          sampleRate;
+
+    private final TextModel [] models;
+
+    /** Tape offset of each model, and of the sentinel. */
+    private final int       [] starts;
+
+    /** Distinct original symbols in ascending order, and their dense ids. */
+    private final int       [] distinct;
+    private final int       [] ids;
+
+    /** Number of symbols less than each dense id. */
+    private final int       [] less;
+
+    /** Wavelet matrix levels, most significant bit first, and their zero counts. */
+    private final Bits      [] levels;
+    private final int       [] zeros;
+
+    /** Rows whose suffixes are sampled, and their tape offsets in row order. */
+    private final Bits         marked;
+    private final int       [] samples;
+
+    public FMIndex(TextModel[] models) {
+        this(new TextModelTape(models, true), defaultRate);
+    }
+
+    public FMIndex(TextModel[] models, int sampleRate) {
+        this(new TextModelTape(models, true), sampleRate);
+    }
+
+    /** Build an index of every text in a dense tape.
+     *
+     * @param tape        Dense tape of texts to index.
+     * @param sampleRate  Distance between sampled suffixes.
+     */
+    public FMIndex(TextModelTape tape, int sampleRate) {
+        if (tape.dense == false)
+            throw new IllegalArgumentException("FMIndex requires a dense tape");
+        if (sampleRate < 1)
+            throw new IllegalArgumentException("Invalid sample rate " + sampleRate);
+
+        final int n     = tape.nsymbols;
+        final int sigma = tape.maximum + 1;
+
+        this.nsymbols   = n;
+        this.sampleRate = sampleRate;
+
+        // Record models and their offsets on the tape.
+        this.models = new TextModel[tape.nmodels];
+        this.starts = new int[tape.nmodels + 1];
+        for (int imodel = 0, at = 0; imodel < tape.nmodels; imodel++) {
+            models[imodel] = tape.model(imodel);
+            starts[imodel] = at;
+            at += models[imodel].size + 1;
+        }
+        starts[tape.nmodels] = (n - 1);
+
+        // Record the alphabet for mapping patterns.
+        final long [] pairs = new long[sigma - TextModelTape.FIRST];
+        for (int id = TextModelTape.FIRST; id < sigma; id++)
+            pairs[id - TextModelTape.FIRST] = ((long) tape.original(id) << 32) | id;
+        Arrays.sort(pairs);
+        this.distinct = new int[pairs.length];
+        this.ids      = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+            distinct[i] = (int) (pairs[i] >> 32);
+            ids     [i] = (int) pairs[i];
+        }
+
+        // Build the suffix array.
+        final int [] s  = new int[n];
+        for (int is = 0; is < n; is++)
+            s[is] = tape.symbol(is);
+        final int [] sa = new int[n];
+        SuffixSearch.sais(s, sa, n, sigma);
+
+        // Count symbols less than each id.
+        this.less = new int[sigma + 1];
+        for (int is = 0; is < n; is++)
+            less[s[is] + 1]++;
+        for (int c = 0; c < sigma; c++)
+            less[c + 1] += less[c];
+
+        // Sample suffixes at multiples of the rate.
+        this.marked = new Bits(n);
+        int nsamples = 0;
+        for (int row = 0; row < n; row++) {
+            if ((sa[row] % sampleRate) == 0) {
+                marked.set(row);
+                nsamples++;
+            }
+        }
+        marked.index();
+
+        this.samples = new int[nsamples];
+        for (int row = 0, i = 0; row < n; row++) {
+            if ((sa[row] % sampleRate) == 0)
+                samples[i++] = sa[row];
+        }
+
+        // Transform into the suffix array's memory.
+        final int [] bwt = sa;
+        for (int row = 0; row < n; row++)
+            bwt[row] = (sa[row] > 0) ? s[sa[row] - 1] : s[n - 1];
+
+        // Build the wavelet matrix, partitioning stably by each bit in turn.
+        int nbits = 1;
+        while ((1 << nbits) < sigma)
+            nbits++;
+
+        this.levels = new Bits[nbits];
+        this.zeros  = new int[nbits];
+
+        int [] current = bwt;
+        int [] next    = s;
+        for (int level = 0; level < nbits; level++) {
+            final int  shift = (nbits - 1 - level);
+            final Bits bits  = new Bits(n);
+
+            int nzero = 0;
+            for (int row = 0; row < n; row++) {
+                if (((current[row] >>> shift) & 1) != 0)
+                    bits.set(row);
+                else
+                    nzero++;
+            }
+            bits.index();
+
+            // Zeros first, then ones, each in order.
+            for (int row = 0, iz = 0, io = nzero; row < n; row++) {
+                if (((current[row] >>> shift) & 1) != 0)
+                    next[io++] = current[row];
+                else
+                    next[iz++] = current[row];
+            }
+
+            levels[level] = bits;
+            zeros [level] = nzero;
+
+            final int [] swap = current;
+            current = next;
+            next    = swap;
+        }
+    }
+
+    /** Count occurrences of a symbol sequence.
+     *
+     * @param symbols  Pattern symbols, as in the original texts.
+     * @param at       Offset of the pattern in the array.
+     * @param len      Length of the pattern.
+     */
+    public int count(int[] symbols, int at, int len) {
+        final int [] range = new int[2];
+        if (find(symbols, at, len, range) == false)
+            return 0;
+        return (range[1] - range[0]);
+    }
+
+    /** Locate occurrences of a symbol sequence.
+     *
+     * @param symbols  Pattern symbols, as in the original texts.
+     * @param at       Offset of the pattern in the array.
+     * @param len      Length of the pattern.
+     * @return Tape offset of each occurrence, in suffix order.
+     */
+    public int[] locate(int[] symbols, int at, int len) {
+        final int [] range = new int[2];
+        if (find(symbols, at, len, range) == false)
+            return new int[0];
+
+        final int [] hits = new int[range[1] - range[0]];
+        for (int row = range[0]; row < range[1]; row++)
+            hits[row - range[0]] = locate(row);
+        return hits;
+    }
+
+    /** Report every other occurrence of a passage of a text.
+     *
+     * The passage itself is not reported if the text is indexed.
+     *
+     * @param text1   Text containing the passage, 'text1' in visitor calls.
+     * @param offset  Offset of the passage in text1.
+     * @param length  Length of the passage.
+     * @param each    Visitor that will be invoked for each occurrence.
+     */
+    public void search(TextModel text1, int offset, int length, MatchVisitor each) {
+        assert (text1 != null);
+        assert (each  != null);
+        assert (length > 0);
+        assert ((offset >= 0) && ((offset + length) <= text1.size));
+
+        final int [] pattern = new int[length];
+        for (int i = 0; i < length; i++)
+            pattern[i] = text1.symbol(offset + i);
+
+        for (int hit : locate(pattern, 0, length)) {
+            // Find the model containing this tape offset.
+            int imodel = Arrays.binarySearch(starts, hit);
+            if (imodel < 0)
+                imodel = (-imodel - 2);
+
+            final TextModel text2   = models[imodel];
+            final int       offset2 = (hit - starts[imodel]);
+
+            // Don't report the passage itself.
+            if ((text2 == text1) && (offset2 == offset))
+                continue;
+
+            each.matched(text1, text2, offset, offset2, length, length);
+        }
+    }
+
+    /** Approximate memory used by the index, excluding texts. */
+    public long bytes() {
+        long bytes = 4L * (starts.length + distinct.length + ids.length + less.length + zeros.length + samples.length);
+        for (Bits bits : levels)
+            bytes += bits.bytes();
+        return bytes + marked.bytes();
+    }
+
+    /** Backward search for the suffix array range of a pattern.
+     *
+     * @return Whether the pattern occurs, with its rows in [range[0], range[1]).
+     */
+    private boolean find(int[] symbols, int at, int len, int[] range) {
+        assert (len > 0);
+
+        int lo = 0;
+        int hi = nsymbols;
+
+        for (int i = (at + len - 1); i >= at; i--) {
+            // Map the symbol, which cannot occur if absent from the alphabet.
+            final int index = Arrays.binarySearch(distinct, symbols[i]);
+            if (index < 0)
+                return false;
+
+            final int c = ids[index];
+            lo = less[c] + rank(c, lo);
+            hi = less[c] + rank(c, hi);
+
+            if (lo >= hi)
+                return false;
+        }
+
+        range[0] = lo;
+        range[1] = hi;
+        return true;
+    }
+
+    /** Tape offset of the suffix at a row, stepping back to a sample. */
+    private int locate(int row) {
+        int steps = 0;
+        while (marked.get(row) == false) {
+            final int c = access(row);
+            row = less[c] + rank(c, row);
+            steps++;
+        }
+        return samples[marked.rank1(row)] + steps;
+    }
+
+    /** Number of occurrences of c in the transform before a row. */
+    private int rank(int c, int row) {
+        int start = 0;
+        for (int level = 0; level < levels.length; level++) {
+            final Bits bits = levels[level];
+            if (((c >>> (levels.length - 1 - level)) & 1) != 0) {
+                start = zeros[level] + bits.rank1(start);
+                row   = zeros[level] + bits.rank1(row);
+            } else {
+                start = start - bits.rank1(start);
+                row   = row   - bits.rank1(row);
+            }
+        }
+        return (row - start);
+    }
+
+    /** Symbol of the transform at a row. */
+    private int access(int row) {
+        int c = 0;
+        for (int level = 0; level < levels.length; level++) {
+            final Bits bits = levels[level];
+            if (bits.get(row)) {
+                c   = (c << 1) | 1;
+                row = zeros[level] + bits.rank1(row);
+            } else {
+                c   = (c << 1);
+                row = row - bits.rank1(row);
+            }
+        }
+        return c;
+    }
+
+    /** Bit vector with a cumulative count every 512 bits. */
+    private static final class Bits {
+        private final long [] words;
+        private       int  [] counts;
+
+        public Bits(int nbits) {
+            this.words  = new long[(nbits >>> 6) + 1];
+            this.counts = null;
+        }
+
+        public void set(int i) {
+            words[i >>> 6] |= (1L << i);
+        }
+
+        public boolean get(int i) {
+            return ((words[i >>> 6] >>> i) & 1) != 0;
+        }
+
+        /** Build cumulative counts, after which bits must not change. */
+        public void index() {
+            counts = new int[(words.length >>> 3) + 1];
+            int sum = 0;
+            for (int iword = 0; iword < words.length; iword++) {
+                if ((iword & 7) == 0)
+                    counts[iword >>> 3] = sum;
+                sum += Long.bitCount(words[iword]);
+            }
+        }
+
+        /** Number of set bits before i. */
+        public int rank1(int i) {
+            final int iword = (i >>> 6);
+            int sum = counts[iword >>> 3];
+            for (int j = (iword & ~7); j < iword; j++)
+                sum += Long.bitCount(words[j]);
+            return sum + Long.bitCount(words[iword] & ((1L << i) - 1));
+        }
+
+        public long bytes() {
+            return (8L * words.length) + (4L * counts.length);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import com.dnikulin.vijil.tools.Empty;
+
+/** Read-only bins compacted into one offsets array and flat entry arrays.
+ *
+ * Arrays are held in buffers, which may wrap heap arrays, be direct, or
+ * be mapped from a file by MindexFile. Views refer directly to heap
+ * arrays, and otherwise copy entries out with absolute reads, which are
+ * safe for concurrent searches.
+ *
+ * @author Dmitri Nikulin
+ */
+final class FrozenBins implements Bins {
+    /** Offset of each bin's first entry, plus the end offset. */
+    public final IntBuffer  offsets;
+
+    /** Text index for each entry. */
+    public final IntBuffer  texts;
+
+    /** Lemma index for each entry. */
+    public final IntBuffer  lemmas;
+
+    /** Tag for each entry, or empty if untagged. */
+    public final ByteBuffer tags;
+
+    /** Fingerprint for each entry, or empty if not fingerprinted. */
+    public final IntBuffer  prints;
+
+    /** Whether entries carry a tag byte. */
+    public final boolean    tagged;
+
+    /** Whether entries carry a fingerprint. */
+    public final boolean    printed;
+
+    /** Whether the buffers wrap heap arrays, readable without copying. */
+    public final boolean    heap;
+
+    public FrozenBins(IntBuffer offsets, IntBuffer texts, IntBuffer lemmas,
+            ByteBuffer tags, IntBuffer prints, boolean tagged, boolean printed) {
+        this.offsets = offsets;
+        this.texts   = texts;
+        this.lemmas  = lemmas;
+        this.tags    = tags;
+        this.prints  = prints;
+        this.tagged  = tagged;
+        this.printed = printed;
+        this.heap    = offsets.hasArray() && texts.hasArray() && lemmas.hasArray()
+            && tags.hasArray() && prints.hasArray();
+    }
+
+    /** Number of bins. */
+    public int bins() {
+        return offsets.capacity() - 1;
+    }
+
+    /** Total number of entries. */
+    public int entries() {
+        return offsets.get(bins());
+    }
+
+    @Override
+    public int count(int ibin) {
+        return offsets.get(ibin + 1) - offsets.get(ibin);
+    }
+
+    @Override
+    public void append(int ibin, int itext, int ilem, byte itag, int iprint) {
+        throw new IllegalStateException("Cannot add to frozen bins");
+    }
+
+    @Override
+    public void load(int ibin, int hash, Postings view) {
+        final int min = offsets.get(ibin);
+        final int max = offsets.get(ibin + 1);
+
+        if (heap) {
+            // Refer directly to the heap arrays.
+            view.texts  = texts.array();
+            view.lemmas = lemmas.array();
+            view.tags   = tagged  ? tags.array()   : Empty.bytes;
+            view.prints = printed ? prints.array() : Empty.ints;
+            view.min    = min;
+            view.max    = max;
+            return;
+        }
+
+        // Copy out of the buffers, using only absolute reads.
+        final int count = (max - min);
+        view.scratch(count, tagged, printed);
+
+        final int  [] itexts  = view.texts;
+        final int  [] ilems   = view.lemmas;
+        final byte [] itags   = view.tags;
+        final int  [] iprints = view.prints;
+
+        for (int i = 0; i < count; i++) {
+            itexts [i] = texts.get(min + i);
+            ilems  [i] = lemmas.get(min + i);
+        }
+
+        if (tagged) {
+            for (int i = 0; i < count; i++)
+                itags[i] = tags.get(min + i);
+        }
+
+        if (printed) {
+            for (int i = 0; i < count; i++)
+                iprints[i] = prints.get(min + i);
+        }
+    }
+
+    @Override
+    public void clear() {
+        throw new IllegalStateException("Cannot clear frozen bins");
+    }
+
+    @Override
+    public Bins freeze() {
+        return this;
+    }
+
+    @Override
+    public long bytes() {
+        return (4L * offsets.capacity()) + (4L * texts.capacity()) + (4L * lemmas.capacity())
+            + tags.capacity() + (4L * prints.capacity());
+    }
+}
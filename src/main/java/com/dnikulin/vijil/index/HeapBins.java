@@ -0,0 +1,217 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import com.dnikulin.vijil.tools.Empty;
+
+/** Growable bins held in per-bin heap arrays.
+ *
+ * Each bin's arrays start at 8 entries and double when full.
+ * Views refer directly to the arrays, without copying.
+ *
+ * @author Dmitri Nikulin
+ */
+final class HeapBins implements Bins {
+    /** Whether entries carry a tag byte. */
+    public  final boolean      tagged;
+
+    /** Whether entries carry a fingerprint. */
+    public  final boolean      printed;
+
+    /** Text index for each entry in each bin. */
+    private final int     [][] ibtexts;
+
+    /** Lemma index (within text) for each entry in each bin. */
+    private final int     [][] iblems;
+
+    /** Tag for each entry in each bin, or null if untagged. */
+    private final byte    [][] ibtags;
+
+    /** Fingerprint for each entry in each bin, or null if not fingerprinted. */
+    private final int     [][] ibprints;
+
+    /** Number of entries populated in each bin. */
+    private final int       [] nbposts;
+
+    public HeapBins(int nbins, boolean tagged, boolean printed) {
+        // Allocate all before assigning any.
+        // If an allocation fails, no bins are created.
+        final int  [][] ibtexts2  = new int[nbins][];
+        final int  [][] iblems2   = new int[nbins][];
+        final byte [][] ibtags2   = tagged  ? new byte[nbins][] : null;
+        final int  [][] ibprints2 = printed ? new int[nbins][]  : null;
+        final int    [] nbposts2  = new int[nbins];
+
+        this.tagged   = tagged;
+        this.printed  = printed;
+        this.ibtexts  = ibtexts2;
+        this.iblems   = iblems2;
+        this.ibtags   = ibtags2;
+        this.ibprints = ibprints2;
+        this.nbposts  = nbposts2;
+    }
+
+    @Override
+    public int count(int ibin) {
+        return nbposts[ibin];
+    }
+
+    @Override
+    public void append(int ibin, int itext, int ilem, byte itag, int iprint) {
+        assert ((ibtexts[ibin] == null) == (iblems[ibin] == null));
+
+        // Allocate per-bin arrays if necessary.
+        if (ibtexts[ibin] == null) {
+            // Allocate all before assigning any.
+            // If an allocation fails, they remain equally unassigned.
+            final int  [] itexts2  = new int[8];
+            final int  [] ilems2   = new int[8];
+            final byte [] itags2   = tagged  ? new byte[8] : null;
+            final int  [] iprints2 = printed ? new int[8]  : null;
+            ibtexts [ibin] = itexts2;
+            iblems  [ibin] = ilems2;
+            if (tagged)
+                ibtags [ibin] = itags2;
+            if (printed)
+                ibprints [ibin] = iprints2;
+        }
+
+        assert (ibtexts[ibin].length == iblems[ibin].length);
+
+        // Expand per-bin arrays if necessary.
+        if (nbposts[ibin] >= ibtexts[ibin].length) {
+            final int nlength = (ibtexts[ibin].length * 2);
+
+            // Allocate all before assigning any.
+            // If an allocation fails, they remain equally unassigned.
+            final int  [] itexts2  = Arrays.copyOf(ibtexts [ibin], nlength);
+            final int  [] ilems2   = Arrays.copyOf(iblems  [ibin], nlength);
+            final byte [] itags2   = tagged  ? Arrays.copyOf(ibtags   [ibin], nlength) : null;
+            final int  [] iprints2 = printed ? Arrays.copyOf(ibprints [ibin], nlength) : null;
+            ibtexts [ibin] = itexts2;
+            iblems  [ibin] = ilems2;
+            if (tagged)
+                ibtags [ibin] = itags2;
+            if (printed)
+                ibprints [ibin] = iprints2;
+        }
+
+        // Write into per-bin arrays.
+        final int at       = nbposts[ibin];
+        ibtexts [ibin][at] = itext;
+        iblems  [ibin][at] = ilem;
+        if (tagged)
+            ibtags   [ibin][at] = itag;
+        if (printed)
+            ibprints [ibin][at] = iprint;
+        nbposts [ibin]     = (at + 1);
+    }
+
+    @Override
+    public void load(int ibin, int hash, Postings view) {
+        final int count = nbposts[ibin];
+
+        if (count > 0) {
+            view.texts  = ibtexts [ibin];
+            view.lemmas = iblems  [ibin];
+            view.tags   = tagged  ? ibtags   [ibin] : Empty.bytes;
+            view.prints = printed ? ibprints [ibin] : Empty.ints;
+        }
+
+        view.min = 0;
+        view.max = count;
+    }
+
+    @Override
+    public void clear() {
+        // Reset entry count in each bin, keeping the arrays.
+        Arrays.fill(nbposts, 0);
+    }
+
+    @Override
+    public Bins freeze() {
+        final int nbins = nbposts.length;
+
+        long total = 0;
+        for (int ibin = 0; ibin < nbins; ibin++)
+            total += nbposts[ibin];
+
+        if (total > Integer.MAX_VALUE)
+            throw new IllegalStateException("Too many entries to freeze: " + total);
+
+        final int nposts = (int) total;
+
+        // Allocate all before assigning any.
+        // If an allocation fails, the bins remain in place.
+        final int  [] fbins   = new int[nbins + 1];
+        final int  [] ftexts  = new int[nposts];
+        final int  [] flems   = new int[nposts];
+        final byte [] ftags   = tagged  ? new byte[nposts] : Empty.bytes;
+        final int  [] fprints = printed ? new int[nposts]  : Empty.ints;
+
+        // Copy each bin in order, recording its offset.
+        int at = 0;
+        for (int ibin = 0; ibin < nbins; ibin++) {
+            final int count = nbposts[ibin];
+            fbins[ibin] = at;
+
+            if (count > 0) {
+                System.arraycopy(ibtexts[ibin], 0, ftexts, at, count);
+                System.arraycopy(iblems [ibin], 0, flems,  at, count);
+                if (tagged)
+                    System.arraycopy(ibtags[ibin], 0, ftags, at, count);
+                if (printed)
+                    System.arraycopy(ibprints[ibin], 0, fprints, at, count);
+                at += count;
+            }
+        }
+
+        fbins[nbins] = at;
+        assert (at == nposts);
+
+        return new FrozenBins(IntBuffer.wrap(fbins), IntBuffer.wrap(ftexts), IntBuffer.wrap(flems),
+            ByteBuffer.wrap(ftags), IntBuffer.wrap(fprints), tagged, printed);
+    }
+
+    @Override
+    public long bytes() {
+        final int nbins = nbposts.length;
+
+        // Count array headers and references as 16 and 4 bytes.
+        long bytes = (4L * nbins) + (4L * nbins * (2 + (tagged ? 1 : 0) + (printed ? 1 : 0)));
+        for (int ibin = 0; ibin < nbins; ibin++) {
+            if (ibtexts[ibin] == null)
+                continue;
+
+            final int length = ibtexts[ibin].length;
+            bytes += 32 + (8L * length);
+            if (tagged)
+                bytes += 16 + length;
+            if (printed)
+                bytes += 16 + (4L * length);
+        }
+        return bytes;
+    }
+}
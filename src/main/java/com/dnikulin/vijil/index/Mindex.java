@@ -23,6 +23,13 @@ package com.dnikulin.vijil.index;
 import com.dnikulin.vijil.model.TextModel;
 
 /** Online index for exact-length lemma sublist matching.
+ *
+ * By default, search() reports every matching sublist of matchLength
+ * lemmas, so a passage of n shared lemmas produces n - matchLength + 1
+ * overlapping matches. With setExtend(true), each match is instead used
+ * as a seed, extended in both directions to its maximal exact run, and
+ * reported once. Later seeds on the same diagonal within that run are
+ * skipped.
  *
  * @author Dmitri Nikulin
  */
@@ -30,39 +37,89 @@ public final class Mindex extends MindexCore {
     /** Exact match length. */
     public final int matchLength;
 
+    /** Whether to extend seeds to maximal runs. */
+    private volatile boolean extend;
+
     /** Construct an index for the given match length.
      *
      * @param matchLength  Exact number of lemmas to regard as a match.
      */
     public Mindex(int matchLength) {
+        this(matchLength, 0);
+    }
+
+    /** Construct an index for the given match length and expected size.
+     *
+     * @param matchLength  Exact number of lemmas to regard as a match.
+     * @param nexpect      Expected number of lemmas to be indexed.
+     */
+    public Mindex(int matchLength, long nexpect) {
+        this(matchLength, nexpect, false);
+    }
+
+    /** Construct an index for the given match length and expected size.
+     *
+     * @param matchLength  Exact number of lemmas to regard as a match.
+     * @param nexpect      Expected number of lemmas to be indexed.
+     * @param offheap      Whether to hold bins in off-heap memory.
+     */
+    public Mindex(int matchLength, long nexpect, boolean offheap) {
+        this(matchLength, nexpect, offheap, false);
+    }
+
+    /** Construct an index for the given match length and expected size.
+     *
+     * @param matchLength  Exact number of lemmas to regard as a match.
+     * @param nexpect      Expected number of lemmas to be indexed.
+     * @param offheap      Whether to hold bins in off-heap memory.
+     * @param printed      Whether to store a fingerprint for each entry.
+     */
+    public Mindex(int matchLength, long nexpect, boolean offheap, boolean printed) {
+        super(nexpect, false, offheap, printed);
+
         assert (matchLength > 0);
 
         this.matchLength = matchLength;
+        this.extend      = false;
+    }
+
+    /** Set whether search() reports maximal runs instead of every matching sublist.
+     *
+     * @param extend  Whether to extend seeds to maximal runs.
+     */
+    public void setExtend(boolean extend) {
+        this.extend = extend;
     }
 
-    /** Add a text to the index.
+    /** Count the entries that index() will add for a text.
      *
-     * @param text  Parsed text to index for exact matches.
+     * @param text  Parsed text to be indexed.
      */
     @Override
-    public void add(TextModel text) {
-        // Verify parameters.
-        assert (text        != null);
-        assert (text.hash   != null);
+    protected long countEntries(TextModel text) {
+        return Math.max(0, text.size + 1 - matchLength);
+    }
 
-        final int itext = ntexts;
-        addText(text);
+    /** Stage entries for a text already recorded in the text list.
+     *
+     * @param itext  Text index.
+     * @param text   Parsed text to index for exact matches.
+     * @param stage  Staging buffer to add entries to.
+     */
+    @Override
+    protected void index(int itext, TextModel text, Staging stage) {
+        // Hash every lemma sub-list, deciding the bins and mixing with the records.
+        final int [] hashes = text.hashes(matchLength);
 
-        final int last = text.size + 1 - matchLength;
-        for (int ilem = 0; ilem < last; ilem++) {
-            // Hash lemma sub-list, deciding the bin and mixing with the record.
-            final int hash = text.hash(ilem, matchLength);
+        // Hash again for fingerprints, if stored.
+        final int [] prints = printed ? text.hashes(matchLength, fseed) : null;
 
-            // Calculate bin index.
-            final int ibin = (hash & nbinmask);
+        for (int ilem = 0; ilem < hashes.length; ilem++) {
+            final int hash  = hashes[ilem];
+            final int print = printed ? prints[ilem] : 0;
 
-            // Append to the bin's chained array, mixing with the hash.
-            addEntry(ibin, itext ^ hash, ilem ^ hash);
+            // Stage for the bin's chained array, mixing with the hash.
+            stage.add(hash, itext ^ hash, ilem ^ hash, (byte) 0, print);
         }
     }
 
@@ -78,22 +135,54 @@ public final class Mindex extends MindexCore {
         assert (text1.hash   != null);
         assert (each         != null);
 
-        final int last = text1.size + 1 - matchLength;
-        for (int ilem1 = 0; ilem1 < last; ilem1++) {
-            // Hash lemma sub-list, deciding the bin and mixing with the record.
-            final int hash = text1.hash(ilem1, matchLength);
+        // Allocate view for bin entries.
+        final Postings view = new Postings();
+
+        // Text order within bins is only guaranteed if texts were added on one thread.
+        final boolean ordered = this.ordered;
+
+        // Extending seeds to maximal runs.
+        final boolean extend = this.extend;
+
+        // Symbols need not be compared if fingerprints are trusted,
+        // unless seeds are to be extended anyway.
+        final boolean confirm = extend || (printed == false) || verify;
+
+        // End of the last run reported on each diagonal, by text and lemma offset.
+        final RunEnds runs = extend ? new RunEnds() : null;
+
+        // Count grams skipped for having too many candidates.
+        final int cap = querycap;
+        int nsuppress = 0;
+
+        // Hash every lemma sub-list, deciding the bins and mixing with the records.
+        final int [] hashes = text1.hashes(matchLength);
+
+        // Hash again for fingerprints, if stored.
+        final int [] prints = printed ? text1.hashes(matchLength, fseed) : null;
+
+        for (int ilem1 = 0; ilem1 < hashes.length; ilem1++) {
+            final int hash = hashes[ilem1];
+
+            // Load bin entries, skipping overly frequent grams.
+            load(hash, view);
+            if (suppress(hash, view, cap)) {
+                nsuppress++;
+                continue;
+            }
 
-            // Calculate bin index.
-            final int    ibin   = (hash & nbinmask);
-            final int    nposts = nbposts [ibin];
-            final int [] itexts = ibtexts [ibin];
-            final int [] ilems  = iblems  [ibin];
+            final int    post0   = view.min;
+            final int    post1   = view.max;
+            final int [] itexts  = view.texts;
+            final int [] ilems   = view.lemmas;
+            final int [] iprints = view.prints;
+            final int    print   = printed ? prints[ilem1] : 0;
 
             // Maintain previous text index to confirm forward progress.
             int prevText = 0;
 
-            // Search each entry in the bin's chained array.
-            perbin: for (int ipost = 0; ipost < nposts; ipost++) {
+            // Search each entry in the bin.
+            perbin: for (int ipost = post0; ipost < post1; ipost++) {
                 // Eliminate entry by text index.
                 // If the hash was 'wrong', this is almost certain to be
                 // an invalid text index, allowing it to be ignored at
@@ -102,22 +191,26 @@ public final class Mindex extends MindexCore {
                 if ((itext2 >= ntexts) || (itext2 < prevText))
                     continue;
 
-                // Eliminate entry by text identity.
+                // Eliminate entry by text identity, or removal.
                 final TextModel text2 = texts[itext2];
-                if (text1 == text2)
+                if ((text1 == text2) || (text2 == null))
                     continue;
 
                 // Eliminate entry by lemma index within text.
                 // As with the text index, this is almost certain to be
                 // an invalid lemma index.
                 final int ilem2 = (ilems[ipost] ^ hash);
-                if (((ilem2 + matchLength) > text2.size) || (ilem2 < 0))
+                if (((ilem2 + matchLength) > sizes[itext2]) || (ilem2 < 0))
+                    continue;
+
+                // Eliminate entry by fingerprint, without touching text2.
+                if (printed && (iprints[ipost] != print))
                     continue;
 
                 // Cheap eliminations have failed, and it is very likely
                 // that this is a real match. Confirm the full length of
                 // the match before invoking the visitor.
-                for (int i = 0; i < matchLength; i++) {
+                for (int i = 0; confirm && (i < matchLength); i++) {
                     final int lem1 = text1.symbol(ilem1 + i);
                     final int lem2 = text2.symbol(ilem2 + i);
 
@@ -126,12 +219,51 @@ public final class Mindex extends MindexCore {
                         continue perbin;
                 }
 
-                // The match is confirmed, so invoke the visitor.
-                each.matched(text1, text2, ilem1, ilem2, matchLength, matchLength);
+                if (extend) {
+                    // Extend the seed unless its run was already reported.
+                    extend(text1, text2, ilem1, ilem2, itext2, runs, each);
+                } else {
+                    // The match is confirmed, so invoke the visitor.
+                    each.matched(text1, text2, ilem1, ilem2, matchLength, matchLength);
+                }
 
                 // Update previous text index to strengthen future eliminations.
-                prevText = itext2;
+                if (ordered)
+                    prevText = itext2;
             }
         }
+
+        if (nsuppress > 0)
+            nsuppressed.addAndGet(nsuppress);
+    }
+
+    /** Extend a confirmed seed to its maximal exact run, and report it once.
+     *
+     * Seeds are found in order of ilem1, so a seed on a diagonal
+     * before the end of its last reported run lies within that run.
+     */
+    private void extend(TextModel text1, TextModel text2, int ilem1, int ilem2, int itext2,
+            RunEnds runs, MatchVisitor each) {
+        // Identify the diagonal by text index and lemma offset.
+        final long diagonal = ((long) itext2 << 32) | ((ilem2 - ilem1) & 0xffffffffL);
+        if (ilem1 < runs.get(diagonal))
+            return;
+
+        // Extend left, past any seeds that were suppressed.
+        int start1 = ilem1;
+        int start2 = ilem2;
+        while ((start1 > 0) && (start2 > 0) && (text1.symbol(start1 - 1) == text2.symbol(start2 - 1))) {
+            start1--;
+            start2--;
+        }
+
+        // Extend right from the end of the seed.
+        int length = (ilem1 - start1) + matchLength;
+        while (((start1 + length) < text1.size) && ((start2 + length) < text2.size)
+                && (text1.symbol(start1 + length) == text2.symbol(start2 + length)))
+            length++;
+
+        runs.put(diagonal, start1 + length, ilem1);
+        each.matched(text1, text2, start1, start2, length, length);
     }
 }
@@ -20,65 +20,467 @@
 
 package com.dnikulin.vijil.index;
 
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.dnikulin.vijil.model.TextModel;
+import com.dnikulin.vijil.tools.DaemonThreads;
 
 /** Online index for lemma matching, base class.
+ *
+ * The bin table starts small and grows by rehashing, re-indexing every
+ * recorded text, whenever the mean number of entries per bin would pass
+ * maxload. An expected entry count may be given to size it up front.
+ *
+ * add() is thread-safe. Each thread hashes its text into its own staging
+ * buffer without locking, then commits the entries one bin stripe at a
+ * time. search() must not run concurrently with add(), unless the index
+ * is frozen, nor ever with remove() or compact(). Searches may run concurrently with each other, and
+ * searchAll() spreads a batch of queries over worker threads.
+ *
+ * Bins are held behind the Bins interface. Entries are added to HeapBins,
+ * per-bin heap arrays, or for an off-heap index to OffHeapBins, chains in
+ * direct memory, so the heap holds only a few ints per bin however many
+ * entries are added.
+ *
+ * Once all texts are added, freeze() compacts the bins into FrozenBins,
+ * one offsets array and flat entry arrays, after which no text can be
+ * added. Frozen arrays are held in buffers, so that MindexFile can also
+ * mount them directly from a memory-mapped file.
+ *
+ * compress() goes further, re-indexing live texts into CompressedBins, a
+ * table with more entries per bin, each bin coded as varints: text index
+ * deltas, lemma index deltas within a text, and a check byte of higher
+ * hash bits that rejects most entries of other hashes while decoding. A
+ * compressed entry typically takes 3 to 5 bytes instead of 8 or 9.
+ * Entries that pass the check byte are only rejected by fingerprints or
+ * by comparing symbols, so compression weakens the cheap eliminations.
+ *
+ * Frequent grams, such as boilerplate phrases, make giant bins that every
+ * query must verify and report in full. A build cap limits the entries
+ * kept in any one bin, counting the rest as stopped. A query cap skips any
+ * gram with more candidate entries than it allows, counting it as
+ * suppressed. Neither is limited by default.
+ *
+ * A fingerprinted index also stores a second 32-bit hash of each gram,
+ * made with fseed. Together with the cheap eliminations, which read text
+ * sizes from a dense array, this rejects almost every false candidate
+ * without touching the candidate text. With verification disabled,
+ * matching fingerprints are reported without comparing symbols at all.
+ *
+ * remove() leaves a null tombstone in the text list, which search()
+ * skips, and counts the entries left behind. compact() renumbers and
+ * re-indexes the remaining texts, when the caller decides that
+ * removedEntries() is worth the cost.
  *
  * @author Dmitri Nikulin
  */
 public abstract class MindexCore {
+    /** Minimum number of bins in the hash table. */
+    public static final int minbins  = (1 << 10);
+
+    /** Maximum number of bins in the hash table. */
+    public static final int maxbins  = (1 << 28);
+
+    /** Maximum mean number of entries per bin before rehashing. */
+    public static final int maxload  = 4;
+
+    /** Mean number of entries per bin in a compressed table. */
+    public static final int cmaxload = 16;
+
+    /** Seed for fingerprint hashes, independent of the bin hash. */
+    public static final int fseed    = 0x2f6b1d3d;
+
+    /** Number of lock stripes over the bin table. */
+    public static final int nstripes = (1 << 8);
+
+    /** Bit mask for stripe indices. */
+    public static final int stripemask = nstripes - 1;
+
     /** Total number of bins in the hash table. */
-    public static final int nbins    = (1 << 20);
+    protected       int          nbins;
 
     /** Bit mask for bin indices. */
-    public static final int nbinmask = nbins - 1;
+    protected       int          nbinmask;
+
+    /** Entries of all bins. */
+    protected       Bins         bins;
+
+    /** Total number of entries populated in all bins. */
+    protected       long         nposts;
+
+    /** Number of entries belonging to removed texts. */
+    protected       long         ndead;
 
-    /** Text index for each entry in each bin. */
-    protected final int     [][] ibtexts;
+    /** Whether the bins are read-only, frozen or compressed. */
+    protected volatile boolean   frozen;
 
-    /** Lemma index (within text) for each entry in each bin. */
-    protected final int     [][] iblems;
+    /** Whether entries in each bin are in ascending text order. */
+    protected volatile boolean   ordered;
 
-    /** Number of entries populated in each bin. */
-    protected final int       [] nbposts;
+    /** Whether entries carry a tag byte. */
+    protected final boolean      tagged;
 
-    /** Texts recorded in this index. */
+    /** Whether bins are held in off-heap memory. */
+    protected final boolean      offheap;
+
+    /** Whether entries carry a fingerprint hash. */
+    protected final boolean      printed;
+
+    /** Whether fingerprint matches are confirmed by comparing symbols. */
+    protected volatile boolean   verify;
+
+    /** Maximum number of entries kept in each bin. */
+    protected volatile int       buildcap;
+
+    /** Maximum number of candidate entries for a gram before search skips it. */
+    protected volatile int       querycap;
+
+    /** Number of entries not kept because their bin was full. */
+    protected       long         nstopped;
+
+    /** Number of query grams skipped by search for having too many candidates. */
+    protected final AtomicLong   nsuppressed;
+
+    /** Texts recorded in this index, null where removed. */
     protected       TextModel  [] texts;
 
-    /** Number of texts recorded in this index. */
+    /** Size of each recorded text, read without touching the text. */
+    protected       int       [] sizes;
+
+    /** Number of texts recorded in this index, including removed texts. */
     protected       int          ntexts;
 
-    /** Construct an index. */
+    /** Index of the previous recorded text with the same hash, or -1. */
+    protected       int       [] samehash;
+
+    /** Index of the last recorded text with each hash, keyed by text hash. */
+    protected final HashMap<String, Integer> itexts;
+
+    /** Highest text index committed so far. */
+    private         int          lastCommit;
+
+    /** Number of commits in progress. */
+    private         int          ncommits;
+
+    /** Lock held shared by add(), and exclusively to replace the bin table. */
+    private final ReentrantReadWriteLock table;
+
+    /** Lock objects, each guarding the bins congruent to its index. */
+    private final Object [] stripes;
+
+    /** Staging buffer for each adding thread. */
+    private final ThreadLocal<Staging> staging;
+
+    /** Construct an index with a minimal bin table. */
     public MindexCore() {
+        this(0, false);
+    }
+
+    /** Construct an index.
+     *
+     * @param nexpect  Expected number of entries, used to size the bin table.
+     * @param tagged   Whether entries carry a tag byte.
+     */
+    protected MindexCore(long nexpect, boolean tagged) {
+        this(nexpect, tagged, false);
+    }
+
+    /** Construct an index.
+     *
+     * @param nexpect  Expected number of entries, used to size the bin table.
+     * @param tagged   Whether entries carry a tag byte.
+     * @param offheap  Whether to hold bins in off-heap memory.
+     */
+    protected MindexCore(long nexpect, boolean tagged, boolean offheap) {
+        this(nexpect, tagged, offheap, false);
+    }
+
+    /** Construct an index.
+     *
+     * @param nexpect  Expected number of entries, used to size the bin table.
+     * @param tagged   Whether entries carry a tag byte.
+     * @param offheap  Whether to hold bins in off-heap memory.
+     * @param printed  Whether entries carry a fingerprint hash.
+     */
+    protected MindexCore(long nexpect, boolean tagged, boolean offheap, boolean printed) {
+        assert (nexpect >= 0);
+
+        this.tagged  = tagged;
+        this.offheap = offheap;
+        this.printed = printed;
+        this.verify  = true;
+
+        // Disable frequency caps.
+        this.buildcap    = Integer.MAX_VALUE;
+        this.querycap    = Integer.MAX_VALUE;
+        this.nsuppressed = new AtomicLong(0);
+
         // Allocate large initial text array.
-        this.texts   = new TextModel[1024];
-        this.ntexts  = 0;
+        this.texts    = new TextModel[1024];
+        this.sizes    = new int[1024];
+        this.samehash = new int[1024];
+        this.ntexts   = 0;
+        this.itexts   = new HashMap<String, Integer>();
+
+        // Allocate locks.
+        this.table   = new ReentrantReadWriteLock();
+        this.stripes = new Object[nstripes];
+        for (int istripe = 0; istripe < nstripes; istripe++)
+            this.stripes[istripe] = new Object();
+
+        // Allocate staging buffers on demand.
+        this.staging = new ThreadLocal<Staging>() {
+            @Override
+            protected Staging initialValue() {
+                return new Staging();
+            }
+        };
 
         // Allocate empty initial bin arrays.
-        this.ibtexts = new int[nbins][];
-        this.iblems  = new int[nbins][];
-        this.nbposts = new int[nbins];
+        allocate(binsFor(nexpect));
+    }
+
+    /** Number of bins currently in the hash table. */
+    public int bins() {
+        return nbins;
+    }
+
+    /** Number of entries currently in the hash table, including removed entries. */
+    public long entries() {
+        return nposts;
     }
 
-    /** Clear the index to contain no entries. */
+    /** Number of entries in the hash table that belong to removed texts. */
+    public long removedEntries() {
+        return ndead;
+    }
+
+    /** Number of entries dropped by the build cap since the table was last rebuilt. */
+    public long stoppedEntries() {
+        return nstopped;
+    }
+
+    /** Number of query grams skipped by the query cap. */
+    public long suppressedGrams() {
+        return nsuppressed.get();
+    }
+
+    /** Choose whether fingerprint matches are confirmed by comparing symbols.
+     *
+     * Only affects fingerprinted indexes. Without verification, a false
+     * match needs both 32-bit hashes to collide, and the text and lemma
+     * indices to remain valid after unmixing.
+     *
+     * @param verify  True to compare symbols of every candidate.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /** Limit the number of entries kept in each bin.
+     *
+     * Applies to entries added afterwards, and to every entry when the
+     * table is next rebuilt, such as by growth, compaction or compress().
+     *
+     * @param buildcap  Maximum number of entries per bin.
+     */
+    public void setBuildCap(int buildcap) {
+        assert (buildcap > 0);
+        this.buildcap = buildcap;
+    }
+
+    /** Limit the number of candidate entries a query gram may have.
+     *
+     * Grams with more are skipped by search(), bounding the time spent on
+     * frequent grams.
+     *
+     * @param querycap  Maximum number of candidate entries per gram.
+     */
+    public void setQueryCap(int querycap) {
+        assert (querycap > 0);
+        this.querycap = querycap;
+    }
+
+    /** Whether the index has been frozen and is now read-only. */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /** Whether the index has been compressed, and is now read-only. */
+    public boolean isCompressed() {
+        return (bins instanceof CompressedBins);
+    }
+
+    /** Number of bytes of compressed entries, or 0 if not compressed. */
+    public long compressedBytes() {
+        return isCompressed() ? ((CompressedBins) bins).dataBytes() : 0;
+    }
+
+    /** Number of bytes held by the bins, on or off the heap. */
+    public long binBytes() {
+        return bins.bytes();
+    }
+
+    /** Clear the index to contain no entries.
+     *
+     * The bin table keeps its current size.
+     * A frozen index becomes writable again.
+     */
     public void clear() {
-        // Reset text references to allow GC.
-        for (int itext = 0; itext < ntexts; itext++)
-            texts[itext] = null;
-        ntexts = 0;
+        table.writeLock().lock();
+        try {
+            // Reset text references to allow GC.
+            for (int itext = 0; itext < ntexts; itext++)
+                texts[itext] = null;
+            ntexts = 0;
+            itexts.clear();
+
+            if (frozen) {
+                // Replace read-only bins with empty bins.
+                allocate(nbins);
+            } else {
+                // Reset entry count in each bin.
+                bins.clear();
+                nposts     = 0;
+                nstopped   = 0;
+                ndead      = 0;
+                ordered    = true;
+                lastCommit = -1;
+            }
+        } finally {
+            table.writeLock().unlock();
+        }
+    }
+
+    /** Compact all bins into one offsets array and flat entry arrays.
+     *
+     * The index becomes read-only until cleared.
+     * Search results are unchanged.
+     *
+     * Entries keep their order within each bin, so bins left out of text
+     * order by concurrent add() calls stay so, and search() loses the
+     * eliminations that rely on it. compact() and compress() re-index in
+     * text order.
+     */
+    public void freeze() {
+        table.writeLock().lock();
+        try {
+            freezeBins();
+        } finally {
+            table.writeLock().unlock();
+        }
+    }
+
+    /** Re-index all live texts into varint-coded bins.
+     *
+     * Removed texts are dropped. The index becomes read-only until cleared.
+     * Search results are unchanged.
+     */
+    public void compress() {
+        table.writeLock().lock();
+        try {
+            compressBins();
+        } finally {
+            table.writeLock().unlock();
+        }
+    }
+
+    /** Remove a text from the index.
+     *
+     * The text is found by its hash, and every text added with the same
+     * hash is removed with it. Their entries stay in the bins but are
+     * skipped by search(), until compact() is called.
+     * Works on frozen indexes too, but must not overlap any search(),
+     * which takes no lock, even on a frozen index.
+     *
+     * @param text  Text to remove.
+     * @return      True if the text was found and removed.
+     */
+    public boolean remove(TextModel text) {
+        assert (text      != null);
+        assert (text.hash != null);
 
-        // Reset entry count in each bin.
-        for (int ibin = 0; ibin < nbins; ibin++)
-            nbposts[ibin] = 0;
+        table.writeLock().lock();
+        try {
+            final Integer ilast = itexts.remove(text.hash);
+            if (ilast == null)
+                return false;
+
+            // Leave tombstones and count the entries left behind.
+            for (int itext = ilast; itext >= 0; itext = samehash[itext]) {
+                ndead += countEntries(texts[itext]);
+                texts[itext] = null;
+            }
+
+            return true;
+        } finally {
+            table.writeLock().unlock();
+        }
+    }
+
+    /** Renumber the remaining texts and re-index them, dropping removed entries.
+     *
+     * A frozen or compressed index is frozen or compressed again afterwards.
+     *
+     * Entries hold text indices mixed with their full hash, so they cannot
+     * be renumbered in place, and every remaining text is hashed again.
+     * Texts are renumbered and bins replaced, so this must not overlap
+     * any search(), which takes no lock. A mounted index is rebuilt in
+     * memory, no longer mapped from its file.
+     */
+    public void compact() {
+        table.writeLock().lock();
+        try {
+            compactTexts();
+        } finally {
+            table.writeLock().unlock();
+        }
     }
 
     /** Add a text to the index.
+     *
+     * Safe to call from many threads at once.
      *
      * @param text  Parsed text to index for exact matches.
      */
-    public abstract void add(TextModel text);
+    public void add(TextModel text) {
+        // Verify parameters.
+        assert (text        != null);
+        assert (text.hash   != null);
+
+        // Grow the bin table first, so the new text is indexed only once.
+        reserve(boundEntries(text));
+
+        table.readLock().lock();
+        try {
+            if (frozen)
+                throw new IllegalStateException("Cannot add to a frozen index");
+
+            // Hash entries into this thread's staging buffer.
+            final Staging stage = staging.get();
+            final int     itext = addText(text);
+            stage.reset(itext);
+            index(itext, text, stage);
+
+            // Commit entries into the shared bins.
+            commit(stage);
+        } finally {
+            table.readLock().unlock();
+        }
+    }
 
     /** Match a text against other texts in the index.
      *
@@ -87,55 +489,604 @@ public abstract class MindexCore {
      */
     public abstract void search(TextModel text1, MatchVisitor each);
 
+    /** Match many texts against the index, in parallel.
+     *
+     * Each worker thread makes its own visitor and takes queries from a
+     * shared cursor until none remain. The caller merges the visitors.
+     * No text may be added while this runs.
+     *
+     * @param queries   Query texts that will be 'text1' in visitor calls.
+     * @param factory   Source of one visitor for each worker.
+     * @param workers   Executor to run workers on.
+     * @param nworkers  Number of workers.
+     * @return          Visitors in worker order, including idle workers.
+     */
+    public <V extends MatchVisitor> List<V> searchAll(
+            final TextModel[] queries, final MatchVisitorFactory<V> factory,
+            Executor workers, int nworkers) {
+
+        assert (queries  != null);
+        assert (factory  != null);
+        assert (nworkers >= 1);
+
+        final AtomicInteger cursor = new AtomicInteger(0);
+
+        final List<V> visitors = new ArrayList<V>(nworkers);
+        for (int i = 0; i < nworkers; i++)
+            visitors.add(factory.make());
+
+        // Create futures to run a search loop for each visitor.
+        final List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>(nworkers);
+        for (final V visitor : visitors) {
+            final FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    while (true) {
+                        final int iquery = cursor.getAndIncrement();
+                        if (iquery >= queries.length)
+                            return null;
+                        search(queries[iquery], visitor);
+                    }
+                }
+            });
+
+            workers.execute(task);
+            tasks.add(task);
+        }
+
+        // Wait for all searches, keeping the first failure.
+        Throwable failure = null;
+        for (FutureTask<Object> task : tasks) {
+            try {
+                DaemonThreads.join(task);
+            } catch (ExecutionException ex) {
+                if (failure == null)
+                    failure = ex.getCause();
+            }
+        }
+
+        if (failure != null)
+            throw new RuntimeException("Search worker failed", failure);
+
+        return visitors;
+    }
+
+    /** Match many texts against the index, in parallel.
+     *
+     * Runs one worker per processor on a temporary pool.
+     *
+     * @param queries   Query texts that will be 'text1' in visitor calls.
+     * @param factory   Source of one visitor for each worker.
+     * @return          Visitors in worker order, including idle workers.
+     */
+    public <V extends MatchVisitor> List<V> searchAll(TextModel[] queries, MatchVisitorFactory<V> factory) {
+        final int             nworkers = Math.max(1, Math.min(queries.length, DaemonThreads.processors()));
+        final ExecutorService workers  = DaemonThreads.pool("mindex-search", nworkers);
+
+        try {
+            return searchAll(queries, factory, workers, nworkers);
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /** Count the entries that index() will add for a text.
+     *
+     * @param text  Parsed text to be indexed.
+     */
+    protected abstract long countEntries(TextModel text);
+
+    /** Bound the entries that index() will add for a text, from above.
+     *
+     * Used to grow the table before adding a text. Subclasses override
+     * this where an exact count would cost as much as indexing.
+     *
+     * @param text  Parsed text to be indexed.
+     */
+    protected long boundEntries(TextModel text) {
+        return countEntries(text);
+    }
+
+    /** Stage entries for a text already recorded in the text list.
+     *
+     * Must be safe to call from many threads at once.
+     *
+     * @param itext  Text index.
+     * @param text   Parsed text to index for exact matches.
+     * @param stage  Staging buffer to add entries to.
+     */
+    protected abstract void index(int itext, TextModel text, Staging stage);
+
+    /** Ensure the bin table is large enough for more entries.
+     *
+     * If the table must grow, every recorded text is re-indexed into it.
+     *
+     * @param nmore  Number of entries about to be added.
+     */
+    protected void reserve(long nmore) {
+        if (needsGrowth(nmore) == false)
+            return;
+
+        table.writeLock().lock();
+        try {
+            // Check again, another thread may have grown the table.
+            if (needsGrowth(nmore)) {
+                // Grow to twice the required size, so growth is geometric.
+                rehash(binsFor((nposts + nmore) * 2));
+            }
+        } finally {
+            table.writeLock().unlock();
+        }
+    }
+
+    /** Re-index all recorded texts into a new bin table.
+     *
+     * Must be called with the table write lock held.
+     *
+     * @param nbins2  Number of bins in the new table.
+     */
+    protected void rehash(int nbins2) {
+        assert (table.isWriteLockedByCurrentThread());
+
+        allocate(nbins2);
+
+        final Staging stage = staging.get();
+        for (int itext = 0; itext < ntexts; itext++) {
+            // Skip removed texts.
+            if (texts[itext] == null)
+                continue;
+
+            stage.reset(itext);
+            index(itext, texts[itext], stage);
+            commit(stage);
+        }
+    }
+
+    /** Point a view at the entries in a bin.
+     *
+     * @param hash  Hash deciding the bin.
+     * @param view  View to fill.
+     */
+    protected void load(int hash, Postings view) {
+        bins.load(hash & nbinmask, hash, view);
+    }
+
+    /** Check if a query gram has too many candidate entries to search.
+     *
+     * Only bins larger than the query cap are inspected. Their entries
+     * are counted if they pass the cheap eliminations for this hash.
+     *
+     * @param hash   Hash of the gram, deciding the bin.
+     * @param view   View of the bin's entries.
+     * @param cap    Query cap read by the caller.
+     * @return       True if the gram should be skipped.
+     */
+    protected boolean suppress(int hash, Postings view, int cap) {
+        if ((view.max - view.min) <= cap)
+            return false;
+
+        final int  [] itexts = view.texts;
+        final int  [] ilems  = view.lemmas;
+
+        int count = 0;
+        for (int ipost = view.min; ipost < view.max; ipost++) {
+            final int itext2 = (itexts[ipost] ^ hash);
+            if ((itext2 >= ntexts) || (itext2 < 0))
+                continue;
+
+            if (texts[itext2] == null)
+                continue;
+
+            final int ilem2 = (ilems[ipost] ^ hash);
+            if ((ilem2 >= sizes[itext2]) || (ilem2 < 0))
+                continue;
+
+            if (++count > cap)
+                return true;
+        }
+
+        return false;
+    }
+
     /** Add a text to the text list.
      *
      * @param text  Parsed text to add.
+     * @return      Index of the text in the list.
+     */
+    protected synchronized int addText(TextModel text) {
+        if (ntexts >= texts.length) {
+            texts    = Arrays.copyOf(texts, texts.length * 2);
+            sizes    = Arrays.copyOf(sizes, texts.length);
+            samehash = Arrays.copyOf(samehash, texts.length);
+        }
+        texts[ntexts] = text;
+        sizes[ntexts] = text.size;
+        link(text, ntexts);
+        return ntexts++;
+    }
+
+    /** Record a text index under its hash, after any other text with that hash.
+     *
+     * @param text   Recorded text.
+     * @param itext  Index of the text in the list.
      */
-    protected void addText(TextModel text) {
-        if (ntexts >= texts.length)
-            texts = Arrays.copyOf(texts, texts.length * 2);
-        texts[ntexts++] = text;
+    private void link(TextModel text, int itext) {
+        final Integer iprev = itexts.put(text.hash, itext);
+        samehash[itext] = (iprev == null) ? -1 : iprev;
     }
 
-    /** Add an entry to a bin.
+    /** Commit staged entries into the shared bins.
      *
-     * @param ibin   Bin index.
-     * @param itext  Text index.
-     * @param ilem   Lemma index.
-     */
-    protected void addEntry(int ibin, int itext, int ilem) {
-        assert (ibtexts.length == nbins);
-        assert (iblems.length  == nbins);
-        assert ((ibtexts[ibin] == null) == (iblems[ibin] == null));
-
-        // Allocate per-bin arrays if necessary.
-        if (ibtexts[ibin] == null) {
-            // Allocate both before assigning either.
-            // If an allocation fails, they remain equally unassigned.
-            final int[] itexts2 = new int[8];
-            final int[] ilems2  = new int[8];
-            ibtexts [ibin] = itexts2;
-            iblems  [ibin] = ilems2;
-        }
-
-        assert (ibtexts[ibin].length == iblems[ibin].length);
-
-        // Expand per-bin arrays if necessary.
-        if (nbposts[ibin] >= ibtexts[ibin].length) {
-            final int nlength = (ibtexts[ibin].length * 2);
-
-            // Allocate both before assigning either.
-            // If an allocation fails, they remain equally unassigned.
-            final int[] itexts2 = Arrays.copyOf(ibtexts [ibin], nlength);
-            final int[] ilems2  = Arrays.copyOf(iblems  [ibin], nlength);
-            ibtexts [ibin] = itexts2;
-            iblems  [ibin] = ilems2;
-        }
-
-        // Write into per-bin arrays.
-        final int at       = nbposts[ibin];
-        ibtexts [ibin][at] = itext;
-        iblems  [ibin][at] = ilem;
-        nbposts [ibin]     = (at + 1);
+     * Must be called with the table lock held, shared or exclusive.
+     *
+     * @param stage  Staging buffer holding the entries of one text.
+     */
+    private void commit(Staging stage) {
+        // Entries stay in text order only if commits never overlap,
+        // and arrive in text order.
+        synchronized (stripes) {
+            if ((ncommits > 0) || (stage.itext < lastCommit))
+                ordered = false;
+            lastCommit = Math.max(lastCommit, stage.itext);
+            ncommits++;
+        }
+
+        int nstop = 0;
+
+        try {
+            stage.sort();
+
+            final int  [] hashes = stage.hashes;
+            final int  [] itexts = stage.texts;
+            final int  [] ilems  = stage.lemmas;
+            final byte [] itags  = stage.tags;
+            final int  [] iprints = stage.prints;
+            final int  [] order  = stage.order;
+            final int  [] starts = stage.starts;
+            final int     mask   = nbinmask;
+            final int     cap    = buildcap;
+            final Bins    bins   = this.bins;
+
+            // Lock each stripe once, appending all of its entries.
+            for (int istripe = 0; istripe < nstripes; istripe++) {
+                final int min = starts[istripe];
+                final int max = starts[istripe + 1];
+                if (min >= max)
+                    continue;
+
+                synchronized (stripes[istripe]) {
+                    for (int i = min; i < max; i++) {
+                        final int ipost = order[i];
+                        final int ibin  = (hashes[ipost] & mask);
+
+                        // Drop entries past the build cap.
+                        if (bins.count(ibin) >= cap) {
+                            nstop++;
+                            continue;
+                        }
+
+                        bins.append(ibin, itexts[ipost], ilems[ipost], itags[ipost], iprints[ipost]);
+                    }
+                }
+            }
+        } finally {
+            synchronized (stripes) {
+                nposts   += (stage.count - nstop);
+                nstopped += nstop;
+                ncommits--;
+            }
+        }
+    }
+
+    /** Renumber and re-index remaining texts, with the table write lock held. */
+    private void compactTexts() {
+        assert (table.isWriteLockedByCurrentThread());
+
+        final boolean refreeze   = frozen;
+        final boolean recompress = isCompressed();
+
+        // Move remaining texts down, keeping their order.
+        int ntexts2 = 0;
+        itexts.clear();
+        for (int itext = 0; itext < ntexts; itext++) {
+            final TextModel text = texts[itext];
+            if (text != null) {
+                texts[ntexts2] = text;
+                sizes[ntexts2] = text.size;
+                link(text, ntexts2);
+                ntexts2++;
+            }
+        }
+
+        // Reset references past the remaining texts to allow GC.
+        for (int itext = ntexts2; itext < ntexts; itext++)
+            texts[itext] = null;
+        ntexts = ntexts2;
+
+        // Re-index into a table sized for the remaining entries.
+        rehash(binsFor((nposts - ndead) * 2));
+
+        if (recompress)
+            compressBins();
+        else if (refreeze)
+            freezeBins();
+    }
+
+    /** Compact all bins, with the table write lock held. */
+    private void freezeBins() {
+        if (frozen)
+            return;
+
+        bins   = bins.freeze();
+        frozen = true;
+    }
+
+    /** Re-index live texts into compressed bins, with the table write lock held. */
+    private void compressBins() {
+        assert (table.isWriteLockedByCurrentThread());
+
+        if (isCompressed())
+            return;
+
+        final long nlive  = (nposts - ndead);
+        final int  nbins2 = binsFor(nlive, cmaxload);
+        final int  mask2  = (nbins2 - 1);
+        final int  shift2 = Integer.numberOfTrailingZeros(nbins2);
+
+        final CompressedBins.Encoder encoder = new CompressedBins.Encoder(nbins2, nlive, shift2, tagged, printed);
+
+        final Staging stage  = staging.get();
+        final int  [] counts = new int[nbins2];
+        final int     cap    = buildcap;
+        long          nkept  = 0;
+        long          nstop  = 0;
+
+        // Re-stage each live text once, in text order,
+        // so each bin is coded in ascending text order.
+        for (int itext = 0; itext < ntexts; itext++) {
+            if (texts[itext] == null)
+                continue;
+
+            stage.reset(itext);
+            index(itext, texts[itext], stage);
+            for (int i = 0; i < stage.count; i++) {
+                final int hash = stage.hashes[i];
+                final int ibin = (hash & mask2);
+
+                // Keep entries up to the build cap.
+                if (counts[ibin] >= cap) {
+                    nstop++;
+                    continue;
+                }
+                counts[ibin]++;
+                nkept++;
+
+                encoder.put(ibin, hash, (stage.texts[i] ^ hash), (stage.lemmas[i] ^ hash),
+                    tagged ? stage.tags[i] : 0, printed ? stage.prints[i] : 0);
+            }
+        }
+
+        final Bins bins2 = encoder.finish();
+
+        this.bins     = bins2;
+        this.nbins    = nbins2;
+        this.nbinmask = mask2;
+        this.nposts   = nkept;
+        this.nstopped = nstop;
+        this.ndead    = 0;
+        this.ordered  = true;
+        this.frozen   = true;
+    }
+
+    /** Whether any recorded text was removed, even one that left no entries. */
+    boolean hasRemovedTexts() {
+        table.readLock().lock();
+        try {
+            for (int itext = 0; itext < ntexts; itext++) {
+                if (texts[itext] == null)
+                    return true;
+            }
+            return false;
+        } finally {
+            table.readLock().unlock();
+        }
+    }
+
+    /** Frozen bins of an index that is frozen but not compressed, as MindexFile writes them. */
+    FrozenBins frozenBins() {
+        return (FrozenBins) bins;
+    }
+
+    /** Replace all contents with texts and frozen arrays held in buffers.
+     *
+     * Used by MindexFile to mount a memory-mapped index.
+     *
+     * @param texts2   Texts in index order.
+     * @param fbins2   Offset of each bin's first entry, plus the end offset.
+     * @param ftexts2  Text index for each entry.
+     * @param flems2   Lemma index for each entry.
+     * @param ftags2   Tag for each entry, or empty if untagged.
+     * @param fprints2 Fingerprint for each entry, or empty if not fingerprinted.
+     * @param ordered2 Whether entries in each bin are in ascending text order.
+     */
+    void mount(TextModel[] texts2, IntBuffer fbins2, IntBuffer ftexts2, IntBuffer flems2,
+            ByteBuffer ftags2, IntBuffer fprints2, boolean ordered2) {
+        final int nbins2  = fbins2.capacity() - 1;
+        final int nposts2 = fbins2.get(nbins2);
+
+        assert (Integer.bitCount(nbins2) == 1);
+        assert (ftexts2.capacity() == nposts2);
+        assert (flems2.capacity()  == nposts2);
+        assert (ftags2.capacity()  == (tagged ? nposts2 : 0));
+        assert (fprints2.capacity() == (printed ? nposts2 : 0));
+
+        table.writeLock().lock();
+        try {
+            // Reset to a minimal empty table, releasing the old one.
+            allocate(minbins);
+
+            // Record texts.
+            ntexts = 0;
+            itexts.clear();
+            texts    = new TextModel[Math.max(1024, texts2.length)];
+            sizes    = new int[texts.length];
+            samehash = new int[texts.length];
+            for (TextModel text : texts2)
+                addText(text);
+
+            this.bins     = new FrozenBins(fbins2, ftexts2, flems2, ftags2, fprints2, tagged, printed);
+            this.nbins    = nbins2;
+            this.nbinmask = (nbins2 - 1);
+            this.nposts   = nposts2;
+            this.ordered  = ordered2;
+            this.frozen   = true;
+        } finally {
+            table.writeLock().unlock();
+        }
+    }
+
+    /** Check if the bin table must grow to take more entries.
+     *
+     * @param nmore  Number of entries about to be added.
+     */
+    private boolean needsGrowth(long nmore) {
+        return (frozen == false) && (nbins < maxbins) &&
+            ((nposts + nmore) > ((long) nbins * maxload));
+    }
+
+    /** Allocate a new empty bin table.
+     *
+     * @param nbins2  Number of bins, a power of 2.
+     */
+    private void allocate(int nbins2) {
+        assert (nbins2 >= minbins);
+        assert (nbins2 <= maxbins);
+        assert (Integer.bitCount(nbins2) == 1);
+
+        // Allocate before assigning.
+        // If an allocation fails, the old table remains in place.
+        final Bins bins2 = offheap ? new OffHeapBins(nbins2, tagged, printed) : new HeapBins(nbins2, tagged, printed);
+
+        this.bins       = bins2;
+        this.nbins      = nbins2;
+        this.nbinmask   = (nbins2 - 1);
+        this.nposts     = 0;
+        this.nstopped   = 0;
+        this.ndead      = 0;
+        this.ordered    = true;
+        this.lastCommit = -1;
+        this.frozen     = false;
+    }
+
+    /** Calculate the number of bins for a given number of entries.
+     *
+     * @param nexpect  Expected number of entries.
+     */
+    public static int binsFor(long nexpect) {
+        return binsFor(nexpect, maxload);
+    }
+
+    /** Calculate the number of bins for a given number of entries and load.
+     *
+     * @param nexpect  Expected number of entries.
+     * @param load     Mean number of entries per bin.
+     */
+    private static int binsFor(long nexpect, int load) {
+        int nbins = minbins;
+        while ((nbins < maxbins) && (((long) nbins * load) < nexpect))
+            nbins <<= 1;
+        return nbins;
+    }
+
+    /** Entries for one text, hashed but not yet committed to the bins.
+     *
+     * Each thread owns one, reused for every text it adds.
+     */
+    protected static final class Staging {
+        /** Text index for all entries. */
+        public int     itext;
+
+        /** Number of staged entries. */
+        public int     count;
+
+        /** Hash of each entry, deciding its bin. */
+        public int  [] hashes = new int  [1024];
+
+        /** Text index (mixed with the hash) for each entry. */
+        public int  [] texts  = new int  [1024];
+
+        /** Lemma index (mixed with the hash) for each entry. */
+        public int  [] lemmas = new int  [1024];
+
+        /** Tag for each entry. */
+        public byte [] tags   = new byte [1024];
+
+        /** Fingerprint for each entry. */
+        public int  [] prints = new int  [1024];
+
+        /** Entry indices sorted by stripe. */
+        public int  [] order  = new int  [1024];
+
+        /** Start of each stripe's entries in order, plus the end. */
+        public final int [] starts = new int[nstripes + 1];
+
+        /** Reset to stage entries for a new text.
+         *
+         * @param itext  Text index.
+         */
+        public void reset(int itext) {
+            this.itext = itext;
+            this.count = 0;
+        }
+
+        /** Stage an entry.
+         *
+         * @param hash   Hash deciding the bin.
+         * @param itext  Text index, mixed with the hash.
+         * @param ilem   Lemma index, mixed with the hash.
+         * @param itag   Tag, ignored if untagged.
+         * @param iprint Fingerprint, ignored if not fingerprinted.
+         */
+        public void add(int hash, int itext, int ilem, byte itag, int iprint) {
+            if (count >= hashes.length) {
+                final int nlength = (hashes.length * 2);
+                hashes = Arrays.copyOf(hashes, nlength);
+                texts  = Arrays.copyOf(texts,  nlength);
+                lemmas = Arrays.copyOf(lemmas, nlength);
+                tags   = Arrays.copyOf(tags,   nlength);
+                prints = Arrays.copyOf(prints, nlength);
+            }
+
+            hashes [count] = hash;
+            texts  [count] = itext;
+            lemmas [count] = ilem;
+            tags   [count] = itag;
+            prints [count] = iprint;
+            count++;
+        }
+
+        /** Counting-sort entry indices by stripe into order and starts. */
+        public void sort() {
+            if (order.length < count)
+                order = new int[hashes.length];
+
+            // Count entries in each stripe.
+            Arrays.fill(starts, 0);
+            for (int i = 0; i < count; i++)
+                starts[(hashes[i] & stripemask) + 1]++;
+
+            // Convert into prefix sum.
+            for (int istripe = 0; istripe < nstripes; istripe++)
+                starts[istripe + 1] += starts[istripe];
+
+            // Scatter, moving each stripe's start along as a cursor.
+            for (int i = 0; i < count; i++)
+                order[starts[hashes[i] & stripemask]++] = i;
+
+            // Restore starts, which now hold the ends.
+            for (int istripe = nstripes; istripe > 0; istripe--)
+                starts[istripe] = starts[istripe - 1];
+            starts[0] = 0;
+        }
     }
 }
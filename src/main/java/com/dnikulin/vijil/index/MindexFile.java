@@ -0,0 +1,284 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import com.dnikulin.vijil.file.TextPack;
+import com.dnikulin.vijil.model.TextModel;
+import com.dnikulin.vijil.tools.Empty;
+
+/** Versioned file format for frozen Mindex and Stencils indexes.
+ *
+ * Layout, all big-endian:
+ *
+ *   int magic, int version, int header length, header bytes,
+ *   then each section padded to 8 bytes:
+ *   bin offsets (nbins + 1 ints), text indices (nposts ints),
+ *   lemma indices (nposts ints), tags (nposts bytes, if tagged),
+ *   fingerprints (nposts ints, if fingerprinted).
+ *
+ * The header records the index kind and parameters, the bin and entry
+ * counts, whether each bin is in text order, and the hash of each text
+ * in index order. Texts themselves are
+ * not stored, and are resolved by hash when the file is opened, e.g.
+ * from a TextPack.
+ *
+ * Sections are mapped read-only, so an opened index serves searches
+ * without loading its entries onto the heap. Each section is limited
+ * to 2GB by FileChannel.map().
+ *
+ * @author Dmitri Nikulin
+ */
+public final class MindexFile {
+    /** File magic number, "VJMX". */
+    public static final int magic   = 0x564a4d58;
+
+    /** File format version, to be incremented whenever entries or hashes change. */
+    public static final int version = 5;
+
+    /** Index kind for Mindex. */
+    public static final int MINDEX   = 1;
+
+    /** Index kind for Stencils. */
+    public static final int STENCILS = 2;
+
+    /** Write an index to a file.
+     *
+     * The index is compacted if it has removed texts, even texts too short
+     * to leave entries, and frozen.
+     * Compressed indexes cannot be written.
+     *
+     * @param index  Index to write.
+     * @param file   File to write to, replacing any existing file.
+     */
+    public static void write(MindexCore index, File file) throws IOException {
+        if (index.isCompressed())
+            throw new IllegalStateException("Cannot write a compressed index");
+
+        if (index.hasRemovedTexts())
+            index.compact();
+        index.freeze();
+
+        final byte[]     header = header(index);
+        final FrozenBins bins   = index.frozenBins();
+
+        final DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(header.length);
+            out.write(header);
+            long at = pad(out, 12 + header.length);
+
+            final int nbins  = index.nbins;
+            final int nposts = (int) index.nposts;
+
+            for (int i = 0; i <= nbins; i++)
+                out.writeInt(bins.offsets.get(i));
+            at = pad(out, at + (4L * (nbins + 1)));
+
+            for (int i = 0; i < nposts; i++)
+                out.writeInt(bins.texts.get(i));
+            at = pad(out, at + (4L * nposts));
+
+            for (int i = 0; i < nposts; i++)
+                out.writeInt(bins.lemmas.get(i));
+            at = pad(out, at + (4L * nposts));
+
+            if (index.tagged) {
+                for (int i = 0; i < nposts; i++)
+                    out.writeByte(bins.tags.get(i));
+                at = pad(out, at + nposts);
+            }
+
+            if (index.printed) {
+                for (int i = 0; i < nposts; i++)
+                    out.writeInt(bins.prints.get(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Open an index file, mapping its entries.
+     *
+     * @param file   File to open.
+     * @param texts  Texts to resolve by hash, must include every indexed text.
+     */
+    public static MindexCore open(File file, TextModel[] texts) throws IOException {
+        // Index all given texts by hash.
+        final HashMap<String, TextModel> byHash = new HashMap<String, TextModel>();
+        for (TextModel text : texts)
+            byHash.put(text.hash, text);
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+
+            if (raf.readInt() != magic)
+                throw new IOException("Not an index file: " + file);
+
+            final int version1 = raf.readInt();
+            if (version1 != version)
+                throw new IOException("Unsupported index file version " + version1 + ": " + file);
+
+            final byte[] header = new byte[raf.readInt()];
+            raf.readFully(header);
+            long at = align(12 + header.length);
+
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+
+            // Construct an empty index of the recorded kind.
+            final MindexCore index;
+            final int kind = in.readInt();
+            switch (kind) {
+            case MINDEX:
+                final int     length   = in.readInt();
+                index = new Mindex(length, 0, false, in.readBoolean());
+                break;
+
+            case STENCILS:
+                final int     size     = in.readInt();
+                final boolean sorted   = in.readBoolean();
+                final int []  offsets  = new int[in.readInt()];
+                for (int i = 0; i < offsets.length; i++)
+                    offsets[i] = in.readInt();
+                index = new Stencils(new StencilModel(size, offsets, sorted), 0, false, in.readBoolean());
+                break;
+
+            default:
+                throw new IOException("Unknown index kind " + kind + ": " + file);
+            }
+
+            final int     nbins   = in.readInt();
+            final int     nposts  = in.readInt();
+            final int     ntexts  = in.readInt();
+            final boolean ordered = in.readBoolean();
+
+            // Resolve texts in index order.
+            final TextModel[] texts2 = new TextModel[ntexts];
+            for (int itext = 0; itext < ntexts; itext++) {
+                final String hash = in.readUTF();
+                texts2[itext] = byHash.get(hash);
+                if (texts2[itext] == null)
+                    throw new IOException("Missing text " + hash + " for index file: " + file);
+            }
+
+            // Map each section.
+            final IntBuffer fbins  = map(channel, at, 4L * (nbins + 1)).asIntBuffer();
+            at = align(at + (4L * (nbins + 1)));
+
+            final IntBuffer ftexts = map(channel, at, 4L * nposts).asIntBuffer();
+            at = align(at + (4L * nposts));
+
+            final IntBuffer flems  = map(channel, at, 4L * nposts).asIntBuffer();
+            at = align(at + (4L * nposts));
+
+            final ByteBuffer ftags = index.tagged ? map(channel, at, nposts) : ByteBuffer.wrap(Empty.bytes);
+            if (index.tagged)
+                at = align(at + nposts);
+
+            final IntBuffer fprints = index.printed ? map(channel, at, 4L * nposts).asIntBuffer() : IntBuffer.wrap(Empty.ints);
+
+            index.mount(texts2, fbins, ftexts, flems, ftags, fprints, ordered);
+            return index;
+        } finally {
+            // Mappings remain valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    /** Open an index file, resolving its texts from a TextPack file.
+     *
+     * @param file  File to open.
+     * @param pack  TextPack file with every indexed text.
+     */
+    public static MindexCore open(File file, File pack) throws IOException {
+        return open(file, TextPack.read(pack));
+    }
+
+    private static byte[] header(MindexCore index) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        if (index instanceof Mindex) {
+            out.writeInt(MINDEX);
+            out.writeInt(((Mindex) index).matchLength);
+            out.writeBoolean(index.printed);
+        } else if (index instanceof Stencils) {
+            final StencilModel model = ((Stencils) index).model;
+            out.writeInt(STENCILS);
+            out.writeInt(model.size);
+            out.writeBoolean(model.sorted);
+            out.writeInt(model.offsets.length);
+            for (int offset : model.offsets)
+                out.writeInt(offset);
+            out.writeBoolean(index.printed);
+        } else {
+            throw new IOException("Unsupported index class " + index.getClass().getName());
+        }
+
+        out.writeInt(index.nbins);
+        out.writeInt((int) index.nposts);
+        out.writeInt(index.ntexts);
+        out.writeBoolean(index.ordered);
+
+        for (int itext = 0; itext < index.ntexts; itext++)
+            out.writeUTF(index.texts[itext].hash);
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer map(FileChannel channel, long at, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Index file section too large to map: " + size + " bytes");
+        return channel.map(FileChannel.MapMode.READ_ONLY, at, size);
+    }
+
+    private static long align(long at) {
+        return (at + 7) & ~7L;
+    }
+
+    private static long pad(DataOutputStream out, long at) throws IOException {
+        final long next = align(at);
+        for (long i = at; i < next; i++)
+            out.writeByte(0);
+        return next;
+    }
+
+    private MindexFile() {}
+}
@@ -0,0 +1,269 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import com.dnikulin.vijil.model.TextModel;
+
+/** Online index for lemma sublist matching, sampled by minimizers.
+ *
+ * Of every window of consecutive lemma sub-lists, only the one with the
+ * smallest hash is indexed, the rightmost on ties. Two texts sharing a run
+ * of at least (matchLength + window - 1) lemmas share a whole window, and
+ * so select and match the same sub-list. The index holds roughly
+ * 2 / (window + 1) of the entries of a Mindex with the same match length.
+ *
+ * Each confirmed match is extended by up to (window - 1) equal lemmas in
+ * both directions before it is reported, so that the matches found in a
+ * long shared run overlap and cover it, and merge into one span in
+ * LinkSpanGraph.
+ *
+ * @author Dmitri Nikulin
+ */
+public final class Minimizers extends MindexCore {
+    /** Exact match length of each indexed lemma sub-list. */
+    public final int matchLength;
+
+    /** Number of consecutive sub-lists in each window. */
+    public final int window;
+
+    /** Construct an index for the given match length and window.
+     *
+     * @param matchLength  Exact number of lemmas to regard as a match.
+     * @param window       Number of consecutive sub-lists to select one from.
+     */
+    public Minimizers(int matchLength, int window) {
+        this(matchLength, window, 0);
+    }
+
+    /** Construct an index for the given match length, window and expected size.
+     *
+     * @param matchLength  Exact number of lemmas to regard as a match.
+     * @param window       Number of consecutive sub-lists to select one from.
+     * @param nexpect      Expected number of lemmas to be indexed.
+     */
+    public Minimizers(int matchLength, int window, long nexpect) {
+        super((nexpect * 2) / (window + 1), false);
+
+        assert (matchLength > 0);
+        assert (window      > 0);
+
+        this.matchLength = matchLength;
+        this.window      = window;
+    }
+
+    /** Minimum length of a shared lemma run that is guaranteed to be found. */
+    public int guarantee() {
+        return matchLength + window - 1;
+    }
+
+    /** Count the entries that index() will add for a text.
+     *
+     * @param text  Parsed text to be indexed.
+     */
+    @Override
+    protected long countEntries(TextModel text) {
+        final int [] hashes    = hashes(text);
+        final int [] positions = new int[hashes.length];
+        return select(hashes, positions);
+    }
+
+    /** Bound the entries that index() will add for a text, without hashing it.
+     *
+     * @param text  Parsed text to be indexed.
+     */
+    @Override
+    protected long boundEntries(TextModel text) {
+        return Math.max(0, text.size + 1 - matchLength);
+    }
+
+    /** Stage entries for a text already recorded in the text list.
+     *
+     * @param itext  Text index.
+     * @param text   Parsed text to index for exact matches.
+     * @param stage  Staging buffer to add entries to.
+     */
+    @Override
+    protected void index(int itext, TextModel text, Staging stage) {
+        final int [] hashes    = hashes(text);
+        final int [] positions = new int[hashes.length];
+        final int    count     = select(hashes, positions);
+
+        for (int i = 0; i < count; i++) {
+            final int ilem = positions[i];
+            final int hash = hashes[ilem];
+
+            // Stage for the bin's chained array, mixing with the hash.
+            stage.add(hash, itext ^ hash, ilem ^ hash, (byte) 0, 0);
+        }
+    }
+
+    /** Match a text against other texts in the index.
+     *
+     * @param text1  Query text that will be 'text1' in visitor calls.
+     * @param each   Visitor that will be invoked for each extended match.
+     */
+    @Override
+    public void search(TextModel text1, MatchVisitor each) {
+        // Verify parameters.
+        assert (text1        != null);
+        assert (text1.hash   != null);
+        assert (each         != null);
+
+        // Select sub-lists of the query text as for indexing.
+        final int [] hashes    = hashes(text1);
+        final int [] positions = new int[hashes.length];
+        final int    nselect   = select(hashes, positions);
+
+        // Allocate view for bin entries.
+        final Postings view = new Postings();
+
+        // Text order within bins is only guaranteed if texts were added on one thread.
+        final boolean ordered = this.ordered;
+
+        // Count grams skipped for having too many candidates.
+        final int cap = querycap;
+        int nsuppress = 0;
+
+        final int length1 = text1.size;
+        final int extend  = (window - 1);
+
+        for (int iselect = 0; iselect < nselect; iselect++) {
+            final int ilem1 = positions[iselect];
+            final int hash  = hashes[ilem1];
+
+            // Load bin entries, skipping overly frequent grams.
+            load(hash, view);
+            if (suppress(hash, view, cap)) {
+                nsuppress++;
+                continue;
+            }
+
+            final int    post0  = view.min;
+            final int    post1  = view.max;
+            final int [] itexts = view.texts;
+            final int [] ilems  = view.lemmas;
+
+            // Maintain previous text index to confirm forward progress.
+            int prevText = 0;
+
+            // Search each entry in the bin.
+            perbin: for (int ipost = post0; ipost < post1; ipost++) {
+                // Eliminate entry by text index.
+                final int itext2 = (itexts[ipost] ^ hash);
+                if ((itext2 >= ntexts) || (itext2 < prevText))
+                    continue;
+
+                // Eliminate entry by text identity, or removal.
+                final TextModel text2 = texts[itext2];
+                if ((text1 == text2) || (text2 == null))
+                    continue;
+
+                // Eliminate entry by lemma index within text.
+                final int ilem2   = (ilems[ipost] ^ hash);
+                final int length2 = sizes[itext2];
+                if (((ilem2 + matchLength) > length2) || (ilem2 < 0))
+                    continue;
+
+                // Confirm the full length of the match.
+                for (int i = 0; i < matchLength; i++) {
+                    // Skip to next bin posting.
+                    if (text1.symbol(ilem1 + i) != text2.symbol(ilem2 + i))
+                        continue perbin;
+                }
+
+                // Extend backwards, then forwards, by up to a window less one.
+                int before = 0;
+                while ((before < extend) && (before < ilem1) && (before < ilem2) &&
+                       (text1.symbol(ilem1 - before - 1) == text2.symbol(ilem2 - before - 1)))
+                    before++;
+
+                int after = 0;
+                final int end1 = (ilem1 + matchLength);
+                final int end2 = (ilem2 + matchLength);
+                while ((after < extend) && ((end1 + after) < length1) && ((end2 + after) < length2) &&
+                       (text1.symbol(end1 + after) == text2.symbol(end2 + after)))
+                    after++;
+
+                // The match is confirmed, so invoke the visitor.
+                final int length = (before + matchLength + after);
+                each.matched(text1, text2, ilem1 - before, ilem2 - before, length, length);
+
+                // Update previous text index to strengthen future eliminations.
+                if (ordered)
+                    prevText = itext2;
+            }
+        }
+
+        if (nsuppress > 0)
+            nsuppressed.addAndGet(nsuppress);
+    }
+
+    /** Hash every lemma sub-list of a text.
+     *
+     * @param text  Parsed text to hash.
+     * @return      Hash of the sub-list at each lemma index.
+     */
+    private int[] hashes(TextModel text) {
+        return text.hashes(matchLength);
+    }
+
+    /** Select the minimum hash of every window.
+     *
+     * A text shorter than one window selects its single minimum,
+     * and a text shorter than one sub-list selects nothing.
+     *
+     * @param hashes     Hash of each sub-list.
+     * @param positions  Array to write selected lemma indices into, ascending.
+     * @return           Number of selected lemma indices.
+     */
+    private int select(int[] hashes, int[] positions) {
+        final int count   = hashes.length;
+        final int window1 = Math.min(window, count);
+
+        if (window1 < 1)
+            return 0;
+
+        int nselect = 0;
+        int imin    = -1;
+
+        for (int end = window1 - 1; end < count; end++) {
+            final int start = (end - window1 + 1);
+
+            if (imin < start) {
+                // Minimum left the window, so scan it again.
+                imin = start;
+                for (int i = start + 1; i <= end; i++) {
+                    if (hashes[i] <= hashes[imin])
+                        imin = i;
+                }
+            } else if (hashes[end] <= hashes[imin]) {
+                // Newest sub-list is the new minimum.
+                imin = end;
+            }
+
+            // Record each minimum once, though many windows select it.
+            if ((nselect == 0) || (positions[nselect - 1] != imin))
+                positions[nselect++] = imin;
+        }
+
+        return nselect;
+    }
+}
@@ -0,0 +1,270 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/** Growable bins held in off-heap memory.
+ *
+ * Entries are appended to fixed-size blocks, allocated from large direct
+ * buffer pages and linked into one chain per bin. The heap only holds the
+ * count, first and last block of each bin, and one reference per page, so
+ * heap size and GC work do not grow with the number of entries. Freezing
+ * compacts the chains into direct buffers.
+ *
+ * Pages are kept by clear(), and released when this object is collected.
+ *
+ * @author Dmitri Nikulin
+ */
+final class OffHeapBins implements Bins {
+    /** Number of entries in each block, a power of 2. */
+    public static final int nslots     = 8;
+
+    /** Number of blocks in each page, a power of 2. */
+    public static final int pageBlocks = (1 << 16);
+
+    /** Block index meaning no block. */
+    public static final int none       = -1;
+
+    /** Whether entries carry a tag byte. */
+    public  final boolean tagged;
+
+    /** Whether entries carry a fingerprint. */
+    public  final boolean printed;
+
+    /** Bytes in each block: next block, texts, lemmas, fingerprints, tags. */
+    public  final int     blockBytes;
+
+    /** Offset of fingerprints in each block. */
+    private final int     oprints;
+
+    /** Offset of tags in each block. */
+    private final int     otags;
+
+    /** Number of entries in each bin. */
+    private final int []  counts;
+
+    /** First block of each bin. */
+    private final int []  heads;
+
+    /** Last block of each bin. */
+    private final int []  tails;
+
+    /** Pages of blocks, replaced whenever a page is added. */
+    private volatile ByteBuffer [] pages;
+
+    /** Number of blocks allocated. */
+    private int nblocks;
+
+    public OffHeapBins(int nbins, boolean tagged, boolean printed) {
+        this.tagged     = tagged;
+        this.printed    = printed;
+        this.oprints    = 4 + (8 * nslots);
+        this.otags      = oprints + (printed ? (4 * nslots) : 0);
+        this.blockBytes = otags + (tagged ? nslots : 0);
+
+        this.counts     = new int[nbins];
+        this.heads      = new int[nbins];
+        this.tails      = new int[nbins];
+        Arrays.fill(heads, none);
+        Arrays.fill(tails, none);
+
+        this.pages      = new ByteBuffer[0];
+        this.nblocks    = 0;
+    }
+
+    /** Number of off-heap bytes allocated. */
+    @Override
+    public long bytes() {
+        return (long) pages.length * pageBlocks * blockBytes;
+    }
+
+    @Override
+    public int count(int ibin) {
+        return counts[ibin];
+    }
+
+    @Override
+    public void append(int ibin, int itext, int ilem, byte itag, int iprint) {
+        final int at   = counts[ibin];
+        final int slot = (at & (nslots - 1));
+
+        // Start a new block if the last one is full.
+        if (slot == 0) {
+            final int block = allocate();
+            if (at == 0)
+                heads[ibin] = block;
+            else
+                page(tails[ibin]).putInt(offset(tails[ibin]), block);
+            tails[ibin] = block;
+        }
+
+        final int        block = tails[ibin];
+        final ByteBuffer page  = page(block);
+        final int        base  = offset(block);
+
+        page.putInt(base + 4 + (4 * slot), itext);
+        page.putInt(base + 4 + (4 * nslots) + (4 * slot), ilem);
+        if (printed)
+            page.putInt(base + oprints + (4 * slot), iprint);
+        if (tagged)
+            page.put(base + otags + slot, itag);
+
+        counts[ibin] = (at + 1);
+    }
+
+    /** Copy the entries of a bin into a view's own arrays. */
+    @Override
+    public void load(int ibin, int hash, Postings view) {
+        final int count = counts[ibin];
+        view.scratch(count, tagged, printed);
+
+        final int  [] itexts  = view.texts;
+        final int  [] ilems   = view.lemmas;
+        final byte [] itags   = view.tags;
+        final int  [] iprints = view.prints;
+
+        int block = heads[ibin];
+        for (int at = 0; at < count; at += nslots) {
+            final ByteBuffer page  = page(block);
+            final int        base  = offset(block);
+            final int        nread = Math.min(nslots, count - at);
+
+            for (int slot = 0; slot < nread; slot++) {
+                itexts [at + slot] = page.getInt(base + 4 + (4 * slot));
+                ilems  [at + slot] = page.getInt(base + 4 + (4 * nslots) + (4 * slot));
+            }
+
+            if (printed) {
+                for (int slot = 0; slot < nread; slot++)
+                    iprints[at + slot] = page.getInt(base + oprints + (4 * slot));
+            }
+
+            if (tagged) {
+                for (int slot = 0; slot < nread; slot++)
+                    itags[at + slot] = page.get(base + otags + slot);
+            }
+
+            block = page.getInt(base);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        // Reuse pages from the first block.
+        Arrays.fill(counts, 0);
+        Arrays.fill(heads, none);
+        Arrays.fill(tails, none);
+        nblocks = 0;
+    }
+
+    /** Compact all bins into direct buffers. */
+    @Override
+    public Bins freeze() {
+        final int nbins = counts.length;
+
+        long total = 0;
+        for (int ibin = 0; ibin < nbins; ibin++)
+            total += counts[ibin];
+
+        if (total > (Integer.MAX_VALUE / 4))
+            throw new IllegalStateException("Too many entries to freeze off-heap: " + total);
+
+        final int nposts = (int) total;
+
+        // Allocate all before assigning any.
+        // If an allocation fails, the bins remain in place.
+        final IntBuffer  fbins   = direct(4 * (nbins + 1)).asIntBuffer();
+        final IntBuffer  ftexts  = direct(4 * nposts).asIntBuffer();
+        final IntBuffer  flems   = direct(4 * nposts).asIntBuffer();
+        final ByteBuffer ftags   = direct(tagged ? nposts : 0);
+        final IntBuffer  fprints = direct(printed ? (4 * nposts) : 0).asIntBuffer();
+
+        // Copy each bin in order, recording its offset.
+        final Postings view = new Postings();
+        int at = 0;
+        for (int ibin = 0; ibin < nbins; ibin++) {
+            final int count = counts[ibin];
+            fbins.put(at);
+
+            if (count > 0) {
+                load(ibin, 0, view);
+                ftexts.put(view.texts, 0, count);
+                flems.put(view.lemmas, 0, count);
+                if (tagged)
+                    ftags.put(view.tags, 0, count);
+                if (printed)
+                    fprints.put(view.prints, 0, count);
+                at += count;
+            }
+        }
+
+        fbins.put(at);
+        assert (at == nposts);
+
+        fbins.rewind();
+        ftexts.rewind();
+        flems.rewind();
+        ftags.rewind();
+        fprints.rewind();
+
+        return new FrozenBins(fbins, ftexts, flems, ftags, fprints, tagged, printed);
+    }
+
+    /** Allocate a direct buffer in native byte order.
+     *
+     * @param nbytes  Capacity in bytes.
+     */
+    private static ByteBuffer direct(int nbytes) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(nbytes);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    /** Allocate a block, adding a page if necessary. */
+    private synchronized int allocate() {
+        final int block = nblocks++;
+
+        if ((block / pageBlocks) >= pages.length) {
+            final ByteBuffer page = ByteBuffer.allocateDirect(pageBlocks * blockBytes);
+            page.order(ByteOrder.nativeOrder());
+
+            final ByteBuffer[] pages2 = Arrays.copyOf(pages, pages.length + 1);
+            pages2[pages.length] = page;
+            pages = pages2;
+        }
+
+        // Terminate the chain at this block.
+        page(block).putInt(offset(block), none);
+        return block;
+    }
+
+    private ByteBuffer page(int block) {
+        return pages[block / pageBlocks];
+    }
+
+    private int offset(int block) {
+        return (block & (pageBlocks - 1)) * blockBytes;
+    }
+}
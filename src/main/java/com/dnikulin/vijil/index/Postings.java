@@ -0,0 +1,89 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import com.dnikulin.vijil.tools.Empty;
+
+/** View of the entries in one bin of a MindexCore.
+ *
+ * Filled by MindexCore.load(). The arrays may be shared with the index,
+ * so entries must only be read from min (inclusive) to max (exclusive).
+ * A view belongs to one search call, and must not be shared by threads.
+ *
+ * @author Dmitri Nikulin
+ */
+public final class Postings {
+    /** Text index (mixed with the hash) for each entry. */
+    public int  [] texts  = Empty.ints;
+
+    /** Lemma index (mixed with the hash) for each entry. */
+    public int  [] lemmas = Empty.ints;
+
+    /** Tag for each entry, or empty if untagged. */
+    public byte [] tags   = Empty.bytes;
+
+    /** Fingerprint for each entry, or empty if not fingerprinted. */
+    public int  [] prints = Empty.ints;
+
+    /** Index of the first entry. */
+    public int     min    = 0;
+
+    /** Index after the last entry. */
+    public int     max    = 0;
+
+    /** Private arrays for entries copied out of buffers. */
+    private int  [] owntexts  = Empty.ints;
+    private int  [] ownlemmas = Empty.ints;
+    private byte [] owntags   = Empty.bytes;
+    private int  [] ownprints = Empty.ints;
+
+    /** Point the view at its own arrays, holding at least the given entries.
+     *
+     * Existing contents are not preserved.
+     *
+     * @param count   Number of entries to make room for.
+     * @param tagged   Whether entries carry a tag byte.
+     * @param printed  Whether entries carry a fingerprint.
+     */
+    public void scratch(int count, boolean tagged, boolean printed) {
+        if (owntexts.length < count) {
+            int nlength = Math.max(64, owntexts.length);
+            while (nlength < count)
+                nlength *= 2;
+
+            owntexts  = new int[nlength];
+            ownlemmas = new int[nlength];
+        }
+
+        // Allocate optional columns to match.
+        if (tagged && (owntags.length < owntexts.length))
+            owntags = new byte[owntexts.length];
+        if (printed && (ownprints.length < owntexts.length))
+            ownprints = new int[owntexts.length];
+
+        texts  = owntexts;
+        lemmas = ownlemmas;
+        tags   = tagged  ? owntags   : Empty.bytes;
+        prints = printed ? ownprints : Empty.ints;
+        min    = 0;
+        max    = count;
+    }
+}
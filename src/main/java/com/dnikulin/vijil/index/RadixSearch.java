@@ -206,6 +206,6 @@ public final class RadixSearch {
     }
 
     public static void search(MatchVisitor visitor, TextModel[] models, int maxDepth) {
-        new RadixSearch(visitor, new TextModelTape(models), maxDepth).search();
+        new RadixSearch(visitor, new TextModelTape(models, true), maxDepth).search();
     }
 }
@@ -0,0 +1,131 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import com.dnikulin.vijil.tools.HashInts;
+
+/** Map from match diagonals to the end of the last run reported on each.
+ *
+ * Open addressing over a long key array and an int end array, so no
+ * entry is boxed. Seeds are visited in order of query offset, so a run
+ * that ends at or before the current offset can never contain another
+ * seed, and is dropped whenever the table is rebuilt. The table then
+ * holds only runs still ahead of the query, not every run of a search.
+ *
+ * A map belongs to one search call, and must not be shared by threads.
+ *
+ * @author Dmitri Nikulin
+ */
+final class RunEnds {
+    /** Diagonal key of each slot. */
+    private long [] keys;
+
+    /** Run end of each slot, or 0 if the slot is empty. */
+    private int  [] ends;
+
+    /** Bit mask for slot indices. */
+    private int     mask;
+
+    /** Number of slots in use. */
+    private int     count;
+
+    public RunEnds() {
+        this.keys  = new long[16];
+        this.ends  = new int[16];
+        this.mask  = 15;
+        this.count = 0;
+    }
+
+    /** Find the end of the last run reported on a diagonal.
+     *
+     * @param diagonal  Diagonal key.
+     * @return          End of the run, or 0 if none is recorded.
+     */
+    public int get(long diagonal) {
+        int slot = slot(diagonal);
+        while (ends[slot] != 0) {
+            if (keys[slot] == diagonal)
+                return ends[slot];
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /** Record the end of a run reported on a diagonal.
+     *
+     * @param diagonal  Diagonal key.
+     * @param end       End of the run, at least 1.
+     * @param offset    Current query offset, before which runs may be dropped.
+     */
+    public void put(long diagonal, int end, int offset) {
+        assert (end > 0);
+
+        // Keep at most half of the slots in use.
+        if ((count * 2) >= keys.length)
+            rebuild(offset);
+
+        int slot = slot(diagonal);
+        while ((ends[slot] != 0) && (keys[slot] != diagonal))
+            slot = (slot + 1) & mask;
+
+        if (ends[slot] == 0)
+            count++;
+
+        keys[slot] = diagonal;
+        ends[slot] = end;
+    }
+
+    /** Rebuild the table without runs that end at or before an offset.
+     *
+     * The table grows only if the remaining runs would fill a quarter of it,
+     * so rebuilds stay amortised over insertions.
+     *
+     * @param offset  Current query offset.
+     */
+    private void rebuild(int offset) {
+        final long [] keys0 = keys;
+        final int  [] ends0 = ends;
+
+        int nlive = 0;
+        for (int slot = 0; slot < ends0.length; slot++) {
+            if (ends0[slot] > offset)
+                nlive++;
+        }
+
+        int nslots = keys0.length;
+        while ((nlive * 4) > nslots)
+            nslots *= 2;
+
+        keys  = new long[nslots];
+        ends  = new int[nslots];
+        mask  = (nslots - 1);
+        count = 0;
+
+        for (int slot = 0; slot < ends0.length; slot++) {
+            if (ends0[slot] > offset)
+                put(keys0[slot], ends0[slot], offset);
+        }
+    }
+
+    private int slot(long diagonal) {
+        return HashInts.fmix((int) diagonal ^ (int) (diagonal >>> 32)) & mask;
+    }
+}
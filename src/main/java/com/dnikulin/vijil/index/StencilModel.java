@@ -23,6 +23,8 @@ package com.dnikulin.vijil.index;
 import java.util.Arrays;
 
 import com.dnikulin.vijil.model.TextModel;
+import com.dnikulin.vijil.tools.HashInts;
+import com.dnikulin.vijil.tools.RollingHash;
 
 public final class StencilModel {
     public final int     size;
@@ -31,6 +33,15 @@ public final class StencilModel {
     public final int []  offsets;
     public final boolean sorted;
 
+    /** Prefix trie over stencil offsets, in creation order, so each
+     *  node follows its parent. Stencils that share leading offsets share
+     *  the nodes, and so the partial hashes, for those offsets. */
+    private final int [] tparents;
+    private final int [] toffsets;
+
+    /** Trie node holding the last offset of each stencil. */
+    private final int [] tleaves;
+
     public StencilModel(int size, int[] offsets, boolean sorted) {
         assert (size > 1);
         assert (size <= offsets.length);
@@ -48,6 +59,39 @@ public final class StencilModel {
         this.size    = size;
         this.offsets = offsets;
         this.sorted  = sorted;
+
+        // Build the prefix trie, with -1 as the root.
+        final int [] parents2 = new int[offsets.length];
+        final int [] offsets2 = new int[offsets.length];
+        this.tleaves = new int[nstencils];
+
+        int nnodes = 0;
+        for (int isten = 0; isten < nstencils; isten++) {
+            int node = -1;
+
+            for (int i = isten * size, o = 0; o < size; i++, o++) {
+                // Find an existing child with this offset.
+                int child = -1;
+                for (int n = 0; (n < nnodes) && (child < 0); n++) {
+                    if ((parents2[n] == node) && (offsets2[n] == offsets[i]))
+                        child = n;
+                }
+
+                // Otherwise add one.
+                if (child < 0) {
+                    child = nnodes++;
+                    parents2[child] = node;
+                    offsets2[child] = offsets[i];
+                }
+
+                node = child;
+            }
+
+            tleaves[isten] = node;
+        }
+
+        this.tparents = Arrays.copyOf(parents2, nnodes);
+        this.toffsets = Arrays.copyOf(offsets2, nnodes);
     }
 
     public void sample(int[] buffer, TextModel text, int offset, int nstencil) {
@@ -66,6 +110,140 @@ public final class StencilModel {
             Arrays.sort(buffer);
     }
 
+    /** Hash the lemmas sampled by a stencil, without sampling into a buffer.
+     *
+     * Unsorted samples hash as HashInts would hash the sampled buffer.
+     * Sorted samples hash as the sum of their scrambled lemmas, which does
+     * not depend on lemma order, so they need not be sorted.
+     */
+    public int hash(TextModel text, int offset, int nstencil, int seed) {
+        assert (offset >= 0);
+        assert (nstencil >= 0);
+        assert (nstencil < nstencils);
+
+        final int at = (nstencil * size);
+        int h = seed;
+
+        if (sorted) {
+            for (int o = 0; o < size; o++)
+                h += RollingHash.premix(text.symbol(offset + offsets[at + o]), seed);
+        } else {
+            for (int o = 0; o < size; o++)
+                h = HashInts.round(h, text.symbol(offset + offsets[at + o]));
+        }
+
+        return HashInts.fmix(h);
+    }
+
+    /** Number of partial hashes needed by hashes(). */
+    public int nodes() {
+        return tparents.length;
+    }
+
+    /** Scramble every lemma of a text once, for hashes().
+     *
+     * @param text  Text to scramble.
+     * @param seed  Seed to hash with, only mixed in here if sorted.
+     */
+    public int[] premix(TextModel text, int seed) {
+        final int [] mixed = new int[text.size];
+        for (int i = 0; i < mixed.length; i++) {
+            final int lemma = text.symbol(i);
+            mixed[i] = sorted ? RollingHash.premix(lemma, seed) : HashInts.scramble(lemma);
+        }
+        return mixed;
+    }
+
+    /** Hash every stencil sample at one position, sharing partial hashes.
+     *
+     * Each stencil's hash equals hash() with the same seed.
+     * Stencils that pass the end of the text are left unchanged.
+     *
+     * @param mixed    Lemmas scrambled by premix() with the same seed.
+     * @param offset   Lemma index of the position.
+     * @param seed     Seed to hash with.
+     * @param partial  Scratch array for at least nodes() partial hashes.
+     * @param hashes   Array to write each stencil's hash into.
+     */
+    public void hashes(int[] mixed, int offset, int seed, int[] partial, int[] hashes) {
+        assert (partial.length >= tparents.length);
+        assert (hashes.length  >= nstencils);
+
+        final int length = mixed.length;
+        final int nnodes = tparents.length;
+
+        // Offsets ascend along each stencil, so a node past the end of
+        // the text has only descendants past the end of the text.
+        for (int n = 0; n < nnodes; n++) {
+            final int at = (offset + toffsets[n]);
+            if (at >= length)
+                continue;
+
+            final int parent = tparents[n];
+            final int h      = (parent < 0) ? seed : partial[parent];
+            partial[n] = sorted ? (h + mixed[at]) : HashInts.combine(h, mixed[at]);
+        }
+
+        for (int isten = 0; isten < nstencils; isten++) {
+            if ((offset + width(isten)) <= length)
+                hashes[isten] = HashInts.fmix(partial[tleaves[isten]]);
+        }
+    }
+
+    /** Sum the lemmas sampled by a stencil, which does not depend on their order. */
+    public int sum(TextModel text, int offset, int nstencil) {
+        final int at = (nstencil * size);
+        int sum = 0;
+        for (int o = 0; o < size; o++)
+            sum += text.symbol(offset + offsets[at + o]);
+        return sum;
+    }
+
+    /** Compare the lemmas sampled by two stencils, without sampling into buffers.
+     *
+     * Sorted samples are compared as multisets, with no sorting.
+     */
+    public boolean equal(TextModel text1, int offset1, int nstencil1,
+                         TextModel text2, int offset2, int nstencil2) {
+        final int at1 = (nstencil1 * size);
+        final int at2 = (nstencil2 * size);
+
+        if (sorted == false) {
+            for (int o = 0; o < size; o++) {
+                if (text1.symbol(offset1 + offsets[at1 + o]) != text2.symbol(offset2 + offsets[at2 + o]))
+                    return false;
+            }
+            return true;
+        }
+
+        // Each distinct lemma of sample 1 must occur as often in sample 2.
+        // Samples have equal sizes, so the multisets are then equal.
+        outer: for (int o1 = 0; o1 < size; o1++) {
+            final int lemma = text1.symbol(offset1 + offsets[at1 + o1]);
+
+            // Count each distinct lemma only at its first occurrence.
+            for (int o = 0; o < o1; o++) {
+                if (text1.symbol(offset1 + offsets[at1 + o]) == lemma)
+                    continue outer;
+            }
+
+            int count = 0;
+            for (int o = o1; o < size; o++) {
+                if (text1.symbol(offset1 + offsets[at1 + o]) == lemma)
+                    count++;
+            }
+            for (int o = 0; o < size; o++) {
+                if (text2.symbol(offset2 + offsets[at2 + o]) == lemma)
+                    count--;
+            }
+
+            if (count != 0)
+                return false;
+        }
+
+        return true;
+    }
+
     public int width(int nstencil) {
         assert (nstencil >= 0);
         assert (nstencil < nstencils);
@@ -20,38 +20,108 @@
 
 package com.dnikulin.vijil.index;
 
+import java.io.Closeable;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.dnikulin.vijil.model.TextModel;
+import com.dnikulin.vijil.tools.DaemonThreads;
 import com.dnikulin.vijil.tools.Empty;
 import com.dnikulin.vijil.tools.HashInts;
 
 /** Software device for substring stencil matching within sets of texts.
+ *
+ * search() matches every text of a set against every other, in two
+ * parallel passes: linking every stencil sample into hash bin chains,
+ * then reading each bin and confirming every pair of samples in full.
+ * Bins with more than maxlink samples are skipped and counted, bounding
+ * the time spent on frequent grams.
+ *
+ * Linking needs two ints per stencil sample, limited to 2^31 samples,
+ * and scatters across all bins. Partitioned mode instead plans passes
+ * over ranges of hash values, each of about passSize samples. A pass
+ * collects its samples as long keys of the full hash and an index into
+ * the pass's sample positions, partitions them by hash into cache-sized
+ * blocks, then sorts and reads each block independently. It is used
+ * when enabled with setPassSize(), or when there are too many samples
+ * to link.
+ *
+ * Every pass hashes every sample of the corpus to find its own, so the
+ * pass size grows to keep the number of passes near maxPasses, and the
+ * total hashing work within a constant factor of one pass over the
+ * corpus. Memory is then bounded by the larger of passSize samples
+ * and 1/maxPasses of the corpus, at three longs per sample.
+ *
+ * Each match is reported in both directions. The visitor is called
+ * concurrently from all worker threads, so it must be thread-safe, e.g.
+ * a ShardedCollector, or wrapped in a SyncMatchVisitor. It must not call
+ * back into this engine.
+ *
+ * search() is synchronized, so one engine runs one search at a time.
+ * cancel() may be called from any thread to stop a search in progress,
+ * which then throws CancellationException. A cancel() while no search
+ * is running cancels the next search instead. An engine that made its own
+ * worker pool must be closed to release it, though its threads are
+ * daemons and never keep the JVM alive.
  *
  * @author Dmitri Nikulin
  */
-public class Stencilin {
-    protected static final int         nbins   = (1 << 20);
-    protected static final int         binmask = (nbins - 1);
+public class Stencilin implements Closeable {
+    /** Default number of hash bins. */
+    public static final int            defaultBins    = (1 << 20);
+
+    /** Default number of lemmas or bins taken by a worker at once. */
+    public static final int            defaultChunk   = 16;
+
+    /** Default maximum number of samples in a bin before it is skipped. */
+    public static final int            defaultMaxLink = 1000;
+
+    /** Default number of stencil samples in each pass of partitioned mode. */
+    public static final int            defaultPass    = (1 << 22);
+
+    /** Number of passes in partitioned mode beyond which passes grow instead. */
+    public static final int            maxPasses      = 16;
+
     protected static final int         none    = -1;
-    protected static final int         nchunk  = 16;
-    protected static final int         maxlink = 1000;
+
+    // Partitioned keys hold the full hash in the high 32 bits, then the
+    // index of the sample within its pass in the low 32 bits.
+    // Passes are planned over buckets of the top bucketBits of the hash,
+    // and partitioned by the low bits of the hash.
+    protected static final int         bucketBits = 12;
+    protected static final int         buckets    = (1 << bucketBits);
+    protected static final int         partSize   = (1 << 14);
+    protected static final int         maxParts   = (1 << 12);
 
     public    final int                nworkers;
+    public    final int                nbins;
+    public    final int                nchunk;
+    public    final int                maxlink;
+
+    protected final int                binmask;
     protected final Executor           workers;
+    protected final ExecutorService    ownPool;
 
     protected final AtomicIntegerArray heads;
     protected final AtomicInteger      cursor;
+    protected final AtomicLong         nskipped;
     protected final ArrayList<FutureTask<Object>> tasks;
 
+    protected final AtomicInteger      nkeys;
+    protected final long []            counts;
+
+    protected volatile boolean         cancelled;
+    protected volatile int             passSize;
+
     protected       TextModel []        texts;
     protected       StencilModel       model;
     protected       MatchVisitor       callback;
@@ -62,6 +132,15 @@ public class Stencilin {
     protected       int []             ilemms;
     protected       int []             links;
     protected       int []             offsets;
+    protected       TextModel          mixed;
+    protected       long               nsamples;
+    protected       int                bucket0;
+    protected       int                bucket1;
+    protected       long []            keys;
+    protected       long []            parts;
+    protected       long []            samples;
+    protected       int []             starts;
+    protected       int                nparts;
 
     protected final Callable<Object> linker = new Callable<Object>() {
         @Override
@@ -79,17 +158,86 @@ public class Stencilin {
         }
     };
 
+    protected final Callable<Object> counter = new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+            countSamples();
+            return null;
+        }
+    };
+
+    protected final Callable<Object> scatterer = new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+            scatterSamples();
+            return null;
+        }
+    };
+
+    protected final Callable<Object> grouper = new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+            readPartitions();
+            return null;
+        }
+    };
+
+    /** Construct an engine with one worker per processor. */
     public Stencilin() {
-        this(16);
+        this(DaemonThreads.processors());
     }
 
+    /** Construct an engine with default parameters.
+     *
+     * @param nworkers  Number of worker threads.
+     */
     public Stencilin(int nworkers) {
+        this(nworkers, defaultBins, defaultChunk, defaultMaxLink);
+    }
+
+    /** Construct an engine with its own pool of worker threads.
+     *
+     * @param nworkers  Number of worker threads.
+     * @param nbins     Number of hash bins, a power of 2.
+     * @param nchunk    Number of lemmas or bins taken by a worker at once.
+     * @param maxlink   Maximum number of samples in a bin before it is skipped.
+     */
+    public Stencilin(int nworkers, int nbins, int nchunk, int maxlink) {
+        this(DaemonThreads.pool("stencilin", nworkers), true, nworkers, nbins, nchunk, maxlink);
+    }
+
+    /** Construct an engine running on a given executor, which it will not shut down.
+     *
+     * @param workers   Executor to run workers on.
+     * @param nworkers  Number of workers to run at once.
+     * @param nbins     Number of hash bins, a power of 2.
+     * @param nchunk    Number of lemmas or bins taken by a worker at once.
+     * @param maxlink   Maximum number of samples in a bin before it is skipped.
+     */
+    public Stencilin(Executor workers, int nworkers, int nbins, int nchunk, int maxlink) {
+        this(workers, false, nworkers, nbins, nchunk, maxlink);
+    }
+
+    private Stencilin(Executor workers, boolean own, int nworkers, int nbins, int nchunk, int maxlink) {
+        if ((nworkers < 1) || (nchunk < 1) || (maxlink < 2) || (nbins < 1) || (Integer.bitCount(nbins) != 1))
+            throw new IllegalArgumentException("Invalid Stencilin parameters");
+
         this.nworkers  = nworkers;
+        this.nbins     = nbins;
+        this.nchunk    = nchunk;
+        this.maxlink   = maxlink;
+        this.binmask   = (nbins - 1);
 
-        this.workers   = Executors.newFixedThreadPool(nworkers);
+        this.workers   = workers;
+        this.ownPool   = own ? (ExecutorService) workers : null;
         this.heads     = new AtomicIntegerArray(nbins);
         this.cursor    = new AtomicInteger(0);
+        this.nskipped  = new AtomicLong(0);
         this.tasks     = new ArrayList<FutureTask<Object>>();
+        this.nkeys     = new AtomicInteger(0);
+        this.counts    = new long[buckets];
+        this.cancelled = false;
+        this.passSize  = 0;
 
         this.texts     = null;
         this.model     = null;
@@ -101,83 +249,155 @@ public class Stencilin {
         this.ilemms    = Empty.ints;
         this.links     = Empty.ints;
         this.offsets   = Empty.ints;
+        this.mixed     = null;
+        this.nsamples  = 0;
+        this.keys      = Empty.longs;
+        this.parts     = Empty.longs;
+        this.samples   = Empty.longs;
+        this.starts    = Empty.ints;
+        this.nparts    = 0;
     }
 
+    /** Match every text against every other, reporting both directions.
+     *
+     * @param texts  Texts to match.
+     * @param model  Stencil model to sample lemmas with.
+     * @param each   Thread-safe visitor, called concurrently by workers.
+     * @throws CancellationException if cancel() was called during or before the search.
+     */
     public synchronized void search(TextModel[] texts, StencilModel model, MatchVisitor each) {
+        assert (texts != null);
+        assert (model != null);
+        assert (each  != null);
+
         this.texts     = texts;
         this.model     = model;
         this.nstencils = model.nstencils;
         this.callback  = each;
 
-        long time1 = System.currentTimeMillis();
-
-        resize(texts);
-        allocate();
-        fill(texts);
-
-        long time2 = System.currentTimeMillis();
+        try {
+            resize(texts);
+            allocate();
+            fill(texts);
 
-        // Reset all bin heads.
-        for (int ibin = 0; ibin < nbins; ibin++)
-            heads.set(ibin, none);
-
-        // Reset lemma cursor.
-        cursor.set(0);
+            if ((passSize > 0) || (nsamples > Integer.MAX_VALUE)) {
+                // Too many samples to link, or partitioning requested.
+                searchPartitioned();
+            } else {
+                allocateLinks();
 
-        // Reset task list.
-        tasks.clear();
+                // Reset all bin heads.
+                for (int ibin = 0; ibin < nbins; ibin++)
+                    heads.set(ibin, none);
 
-        long time3 = System.currentTimeMillis();
+                // Run linker, then reader, on each worker.
+                run(linker);
+                run(reader);
+            }
 
-        // Create futures to run linker on each worker thread.
-        for (int i = 0; i < nworkers; i++) {
-            FutureTask<Object> task = new FutureTask<Object>(linker);
-            workers.execute(task);
-            tasks.add(task);
+            if (cancelled)
+                throw new CancellationException("Stencilin search cancelled");
+        } finally {
+            // Release object references.
+            this.texts    = null;
+            this.model    = null;
+            this.callback = null;
+            this.mixed    = null;
+
+            // Consume the cancellation, if any, with the search it stopped.
+            this.cancelled = false;
         }
+    }
 
-        // Wait for all linkers.
-        for (FutureTask<Object> task : tasks)
-            join(task);
+    /** Stop the search in progress as soon as possible, or else the next search. */
+    public void cancel() {
+        cancelled = true;
+    }
 
-        long time4 = System.currentTimeMillis();
+    /** Set the number of stencil samples in each pass of partitioned mode.
+     *
+     * Passes are made larger where needed to keep to about maxPasses.
+     *
+     * @param passSize  Samples per pass, or 0 to link samples whenever they fit.
+     */
+    public void setPassSize(int passSize) {
+        if (passSize < 0)
+            throw new IllegalArgumentException("Invalid pass size " + passSize);
+        this.passSize = passSize;
+    }
 
-        // Reset task list.
-        tasks.clear();
+    /** Number of bins or hash groups skipped for having more than maxlink samples, over all searches. */
+    public long skippedBins() {
+        return nskipped.get();
+    }
 
-        // Reset bin cursor.
+    /** Shut down the worker pool, if this engine made it. */
+    @Override
+    public void close() {
+        if (ownPool != null)
+            ownPool.shutdown();
+    }
+
+    /** Run a pass on every worker and wait for all of them.
+     *
+     * An interrupt cancels the search, but workers are still waited for,
+     * as they use this engine's arrays.
+     *
+     * @param pass  Pass to run.
+     */
+    private void run(Callable<Object> pass) {
+        // Reset cursor and task list.
         cursor.set(0);
+        tasks.clear();
 
-        // Create futures to run reader on each worker thread.
+        // Create futures to run the pass on each worker thread.
         for (int i = 0; i < nworkers; i++) {
-            FutureTask<Object> task = new FutureTask<Object>(reader);
+            FutureTask<Object> task = new FutureTask<Object>(pass);
             workers.execute(task);
             tasks.add(task);
         }
 
-        // Wait for all readers.
-        for (FutureTask<Object> task : tasks)
-            join(task);
-
-        long time5 = System.currentTimeMillis();
+        // Wait for all workers, keeping the first failure.
+        Throwable failure     = null;
+        boolean   interrupted = false;
+        for (FutureTask<Object> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (ExecutionException ex) {
+                    // Stop other workers early.
+                    cancelled = true;
+                    if (failure == null)
+                        failure = ex.getCause();
+                    break;
+                } catch (InterruptedException ex) {
+                    cancelled   = true;
+                    interrupted = true;
+                }
+            }
+        }
 
-        // Reset task list.
         tasks.clear();
 
-        // Release object references.
-        this.texts    = null;
-        this.model    = null;
-        this.callback = null;
+        // Restore interrupt status for the caller.
+        if (interrupted)
+            Thread.currentThread().interrupt();
 
-        System.out.println(String.format("%9d ms populating", (time2 - time1)));
-        System.out.println(String.format("%9d ms linking",    (time4 - time3)));
-        System.out.println(String.format("%9d ms reading",    (time5 - time4)));
+        if (failure != null)
+            throw new RuntimeException("Stencilin worker failed", failure);
     }
 
     private int resize(TextModel[] texts) {
-        nlemmas = 0;
+        long total = 0;
         for (TextModel text : texts)
-            nlemmas += text.size;
+            total += text.size;
+
+        if (total > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many lemmas for Stencilin: " + total);
+
+        nlemmas  = (int) total;
+        nsamples = (total * nstencils);
         return nlemmas;
     }
 
@@ -187,8 +407,10 @@ public class Stencilin {
             itexts  = new int[nlemmas];
             ilemms  = new int[nlemmas];
         }
+    }
 
-        int nlinks = (nlemmas * nstencils);
+    private void allocateLinks() {
+        int nlinks = (int) nsamples;
         if (nlinks > links.length) {
             links   = new int[nlinks];
             offsets = new int[nlinks];
@@ -203,10 +425,7 @@ public class Stencilin {
             TextModel text = texts[itext];
             for (int ilemma = 0; ilemma < text.size; ilemma++, offset++) {
                 // Pre-hash lemma code.
-                int k = text.symbol(ilemma);
-                k *= 0xcc9e2d51;
-                k  = Integer.rotateLeft(k, 15);
-                k *= 0x1b873593;
+                int k = HashInts.scramble(text.symbol(ilemma));
 
                 // Record pre-hash and offsets.
                 lemmas [offset] = k;
@@ -214,20 +433,117 @@ public class Stencilin {
                 ilemms [offset] = ilemma;
             }
         }
+
+        // Wrap pre-hashes for sampling with the stencil model.
+        mixed = new TextModel("stencilin", lemmas);
     }
 
-    private int hash(int[] data) {
-        int h = 0xbcaa747;
+    /** Match all samples in passes over ranges of hash buckets. */
+    private void searchPartitioned() {
+        // Grow passes rather than hash every sample in too many passes.
+        final long pass  = (passSize > 0) ? passSize : defaultPass;
+        final long share = (nsamples + maxPasses - 1) / maxPasses;
+        final long cap   = Math.min(Integer.MAX_VALUE, Math.max(pass, share));
+
+        // Count samples in each hash bucket.
+        Arrays.fill(counts, 0);
+        run(counter);
+
+        // Plan each pass over consecutive buckets, up to the pass size,
+        // but always with at least one bucket.
+        int bucket = 0;
+        while ((bucket < buckets) && (cancelled == false)) {
+            long npass = counts[bucket];
+            int  end   = bucket + 1;
+            while ((end < buckets) && ((npass + counts[end]) <= cap))
+                npass += counts[end++];
+
+            if (npass > Integer.MAX_VALUE)
+                throw new IllegalStateException("Too many samples in one hash bucket: " + npass);
+
+            if (npass > 1)
+                searchPass(bucket, end, (int) npass);
+
+            bucket = end;
+        }
+    }
 
-        for (int i = 0; i < model.size; i++) {
-            h ^= data[i];
-            h  = Integer.rotateLeft(h, 13);
-            h  = ((h * 5) + 0xe6546b64);
+    /** Collect, partition and read the samples of one pass.
+     *
+     * @param bucket0  First hash bucket in the pass.
+     * @param bucket1  Hash bucket after the last in the pass.
+     * @param npass    Number of samples in the pass.
+     */
+    private void searchPass(int bucket0, int bucket1, int npass) {
+        this.bucket0 = bucket0;
+        this.bucket1 = bucket1;
+
+        if (npass > keys.length) {
+            keys    = new long[npass];
+            parts   = new long[npass];
+            samples = new long[npass];
         }
 
+        // Collect keys for every sample in the pass.
+        nkeys.set(0);
+        run(scatterer);
+        if (cancelled)
+            return;
+
+        assert (nkeys.get() == npass);
+
+        // Choose enough partitions to keep each in cache.
+        int nparts = 1;
+        while ((nparts < maxParts) && ((npass / nparts) > partSize))
+            nparts <<= 1;
+
+        final int      partmask = (nparts - 1);
+        final long []  mykeys   = keys;
+        final long []  myparts  = parts;
+        final int  []  mystarts = new int[nparts + 1];
+
+        // Count keys in each partition.
+        for (int i = 0; i < npass; i++)
+            mystarts[((int) (mykeys[i] >>> 32) & partmask) + 1]++;
+
+        // Accumulate counts into partition starts.
+        for (int ipart = 0; ipart < nparts; ipart++)
+            mystarts[ipart + 1] += mystarts[ipart];
+
+        // Scatter keys into partitions.
+        final int [] at = Arrays.copyOf(mystarts, nparts);
+        for (int i = 0; i < npass; i++) {
+            final long key = mykeys[i];
+            myparts[at[(int) (key >>> 32) & partmask]++] = key;
+        }
+
+        // Sort and read each partition on the workers.
+        this.starts = mystarts;
+        this.nparts = nparts;
+        run(grouper);
+    }
+
+    private int hash(int[] data) {
+        int h = HashInts.seed;
+
+        for (int i = 0; i < model.size; i++)
+            h = HashInts.combine(h, data[i]);
+
         return HashInts.fmix(h);
     }
 
+    /** Hash a stencil sample of the pre-hashed lemmas. */
+    private int hash(StencilModel mymodel, int ilemm, int istencil, int[] buffer) {
+        if (mymodel.sorted) {
+            // Sum pre-hashed lemmas, independent of their order.
+            return HashInts.fmix(mymodel.sum(mixed, ilemm, istencil));
+        }
+
+        // Sample lemmas using stencil, then hash buffered data.
+        mymodel.sample(buffer, mixed, ilemm, istencil);
+        return hash(buffer);
+    }
+
     protected void makeLinks() {
         // Take final references to arrays,
         // helping the JVM JIT considerably.
@@ -236,13 +552,10 @@ public class Stencilin {
         final int      []  mylinks   = links;
         final int      []  myoffsets = offsets;
 
-        // Produce a TextBody from the current data.
-        final TextModel text = new TextModel("stencilin", lemmas);
-
         // Prepare stencil sample buffer.
         final int [] buffer = new int[model.size];
 
-        while (true) {
+        while (cancelled == false) {
             final int ilemm0 = cursor.getAndAdd(nchunk);
             if (ilemm0 >= mynlemmas)
                 return;
@@ -256,11 +569,7 @@ public class Stencilin {
                     if ((ilemm + mymodel.width(istencil)) > mynlemmas)
                         continue;
 
-                    // Sample lemmas using stencil.
-                    mymodel.sample(buffer, text, ilemm, istencil);
-
-                    // Hash buffered data.
-                    final int hash = hash(buffer);
+                    final int hash = hash(mymodel, ilemm, istencil, buffer);
 
                     // Calculate bin index.
                     final int ibin = hash & binmask;
@@ -282,19 +591,16 @@ public class Stencilin {
     protected void readLinks() {
         // Take final references to arrays,
         // helping the JVM JIT considerably.
-        final TextModel [] mytexts   = texts;
         final int      [] myitexts  = itexts;
         final int      [] myilemms  = ilemms;
         final int      [] mylinks   = links;
         final int      [] myoffsets = offsets;
-        final MatchVisitor each     = callback;
-        final StencilModel mymodel  = model;
 
         final int [] mtexts = new int[maxlink];
         final int [] mlemms = new int[maxlink];
         final int [] mstens = new int[maxlink];
 
-        while (true) {
+        while (cancelled == false) {
             final int ibin0 = cursor.getAndAdd(nchunk);
             if (ibin0 >= nbins)
                 return;
@@ -308,76 +614,218 @@ public class Stencilin {
                     // Take lemma offset from chain.
                     final int ioffset = myoffsets[ilink];
 
-                    // Buffer position.
+                    // Buffer position, with the stencil index from the link index.
                     mtexts[count] = myitexts[ioffset];
                     mlemms[count] = myilemms[ioffset];
-                    mstens[count] = (ioffset % nstencils);
+                    mstens[count] = (ilink % nstencils);
                     count++;
 
                     // Update cursor to next link.
                     ilink = mylinks[ilink];
                 }
 
-                // Ignore underly or overly matched bins.
-                if ((count < 2) || (count >= maxlink))
+                // Ignore underly matched bins.
+                if (count < 2)
+                    continue;
+
+                // Ignore and count overly matched bins.
+                if (ilink != none) {
+                    nskipped.incrementAndGet();
                     continue;
+                }
+
+                matchGroup(count, mtexts, mlemms, mstens);
+            }
+        }
+    }
 
-                for (int i1 = 0; i1 < count; i1++) {
-                    final int      itext1 = mtexts[i1];
-                    final int      ilemm1 = mlemms[i1];
-                    final int      isten1 = mstens[i1];
+    protected void countSamples() {
+        // Take final references to arrays,
+        // helping the JVM JIT considerably.
+        final int          mynlemmas = nlemmas;
+        final StencilModel mymodel   = model;
+        final TextModel [] mytexts   = texts;
+        final int      []  myitexts  = itexts;
+        final int      []  myilemms  = ilemms;
 
-                    final TextModel text1  = mytexts[itext1];
-                    final int      nlemm1 = mymodel.width(isten1);
+        // Count locally, then merge once.
+        final long [] mycounts = new long[buckets];
+        final int  [] buffer   = new int[mymodel.size];
 
-                    // Check bounds within text1.
-                    if ((ilemm1 + nlemm1) > text1.size)
+        while (cancelled == false) {
+            final int ilemm0 = cursor.getAndAdd(nchunk);
+            if (ilemm0 >= mynlemmas)
+                break;
+
+            final int ilemm1 = Math.min(ilemm0 + nchunk, mynlemmas);
+            for (int ilemm = ilemm0; ilemm < ilemm1; ilemm++) {
+                final int size = mytexts[myitexts[ilemm]].size;
+
+                for (int istencil = 0; istencil < nstencils; istencil++) {
+                    // Exclude samples that pass the end of their own text.
+                    if ((myilemms[ilemm] + mymodel.width(istencil)) > size)
                         continue;
 
-                    // Take first and last lemma of text1.
-                    final int      lemm1F = text1.symbol(ilemm1);
-                    final int      lemm1L = text1.symbol(ilemm1 + nlemm1 - 1);
+                    final int hash = hash(mymodel, ilemm, istencil, buffer);
+                    mycounts[hash >>> (32 - bucketBits)]++;
+                }
+            }
+        }
 
-                    for (int i2 = i1 + 1; i2 < count; i2++) {
-                        final int      itext2 = mtexts[i2];
+        synchronized (counts) {
+            for (int bucket = 0; bucket < buckets; bucket++)
+                counts[bucket] += mycounts[bucket];
+        }
+    }
 
-                        // Don't match within the same text.
-                        if (itext1 == itext2)
-                            continue;
+    protected void scatterSamples() {
+        // Take final references to arrays,
+        // helping the JVM JIT considerably.
+        final int          mynlemmas = nlemmas;
+        final StencilModel mymodel   = model;
+        final TextModel [] mytexts   = texts;
+        final int      []  myitexts  = itexts;
+        final int      []  myilemms  = ilemms;
+        final long     []  mykeys    = keys;
+        final long     []  mysamples = samples;
+        final int          mybucket0 = bucket0;
+        final int          mybucket1 = bucket1;
+
+        // Collect samples locally, then reserve space once per chunk.
+        final int  [] lhashes  = new int[nchunk * nstencils];
+        final long [] lsamples = new long[nchunk * nstencils];
+        final int  [] buffer   = new int[mymodel.size];
+
+        while (cancelled == false) {
+            final int ilemm0 = cursor.getAndAdd(nchunk);
+            if (ilemm0 >= mynlemmas)
+                return;
 
-                        final TextModel text2  = mytexts[itext2];
-                        final int      ilemm2 = mlemms[i2];
-                        final int      isten2 = mstens[i2];
-                        final int      nlemm2 = mymodel.width(isten2);
+            final int ilemm1 = Math.min(ilemm0 + nchunk, mynlemmas);
+            int nlocal = 0;
 
-                        // Check bounds within text2.
-                        if ((ilemm2 + nlemm2) > text2.size)
-                            continue;
+            for (int ilemm = ilemm0; ilemm < ilemm1; ilemm++) {
+                final int size = mytexts[myitexts[ilemm]].size;
 
-                        // Take first and last lemma of text2.
-                        final int      lemm2F = text2.symbol(ilemm2);
-                        final int      lemm2L = text2.symbol(ilemm2 + nlemm2 - 1);
+                for (int istencil = 0; istencil < nstencils; istencil++) {
+                    // Exclude samples that pass the end of their own text.
+                    if ((myilemms[ilemm] + mymodel.width(istencil)) > size)
+                        continue;
 
-                        if ((lemm1F == lemm2F) && (lemm1L == lemm2L)) {
-                            each.matched(text1, text2, ilemm1, ilemm2, nlemm1, nlemm2);
-                            each.matched(text2, text1, ilemm2, ilemm1, nlemm2, nlemm1);
-                        }
-                    }
+                    // Exclude samples outside this pass.
+                    final int hash   = hash(mymodel, ilemm, istencil, buffer);
+                    final int bucket = hash >>> (32 - bucketBits);
+                    if ((bucket < mybucket0) || (bucket >= mybucket1))
+                        continue;
+
+                    lhashes  [nlocal] = hash;
+                    lsamples [nlocal] = ((long) ilemm * nstencils) + istencil;
+                    nlocal++;
                 }
             }
+
+            // Key each sample by its full hash and index within the pass.
+            final int at = nkeys.getAndAdd(nlocal);
+            for (int i = 0; i < nlocal; i++)
+                mykeys[at + i] = ((long) lhashes[i] << 32) | (at + i);
+            System.arraycopy(lsamples, 0, mysamples, at, nlocal);
         }
     }
 
-    private static void join(FutureTask<Object> task) {
-        while (true) {
-            try {
-                task.get();
-                return;
-            } catch (ExecutionException ex) {
-                ex.printStackTrace();
+    protected void readPartitions() {
+        // Take final references to arrays,
+        // helping the JVM JIT considerably.
+        final int     []  myitexts  = itexts;
+        final int     []  myilemms  = ilemms;
+        final long    []  myparts   = parts;
+        final long    []  mysamples = samples;
+        final int     []  mystarts  = starts;
+        final int         mynparts  = nparts;
+
+        final int [] mtexts = new int[maxlink];
+        final int [] mlemms = new int[maxlink];
+        final int [] mstens = new int[maxlink];
+
+        while (cancelled == false) {
+            final int ipart = cursor.getAndIncrement();
+            if (ipart >= mynparts)
                 return;
-            } catch (InterruptedException ex) {
-                // Continue to wait.
+
+            // Sort the partition, bringing hash groups together.
+            final int part0 = mystarts[ipart];
+            final int part1 = mystarts[ipart + 1];
+            Arrays.sort(myparts, part0, part1);
+
+            int key0 = part0;
+            while (key0 < part1) {
+                // Find the end of this hash group.
+                final int hash = (int) (myparts[key0] >>> 32);
+                int key1 = key0 + 1;
+                while ((key1 < part1) && ((int) (myparts[key1] >>> 32) == hash))
+                    key1++;
+
+                final int count = (key1 - key0);
+
+                if (count > maxlink) {
+                    // Ignore and count overly matched groups.
+                    nskipped.incrementAndGet();
+                } else if (count > 1) {
+                    // Buffer positions from sample indices.
+                    for (int i = 0; i < count; i++) {
+                        final long sample = mysamples[(int) myparts[key0 + i]];
+                        final int  ilemm  = (int) (sample / nstencils);
+                        mtexts[i] = myitexts[ilemm];
+                        mlemms[i] = myilemms[ilemm];
+                        mstens[i] = (int) (sample % nstencils);
+                    }
+
+                    matchGroup(count, mtexts, mlemms, mstens);
+                }
+
+                key0 = key1;
+            }
+        }
+    }
+
+    /** Confirm and report every pair of samples in a group from different texts. */
+    private void matchGroup(int count, int[] mtexts, int[] mlemms, int[] mstens) {
+        final TextModel [] mytexts   = texts;
+        final MatchVisitor each     = callback;
+        final StencilModel mymodel  = model;
+
+        for (int i1 = 0; i1 < count; i1++) {
+            final int      itext1 = mtexts[i1];
+            final int      ilemm1 = mlemms[i1];
+            final int      isten1 = mstens[i1];
+
+            final TextModel text1  = mytexts[itext1];
+            final int      nlemm1 = mymodel.width(isten1);
+
+            // Check bounds within text1.
+            if ((ilemm1 + nlemm1) > text1.size)
+                continue;
+
+            for (int i2 = i1 + 1; i2 < count; i2++) {
+                final int      itext2 = mtexts[i2];
+
+                // Don't match within the same text.
+                if (itext1 == itext2)
+                    continue;
+
+                final TextModel text2  = mytexts[itext2];
+                final int      ilemm2 = mlemms[i2];
+                final int      isten2 = mstens[i2];
+                final int      nlemm2 = mymodel.width(isten2);
+
+                // Check bounds within text2.
+                if ((ilemm2 + nlemm2) > text2.size)
+                    continue;
+
+                // Confirm the full samples, not only their hashes.
+                if (mymodel.equal(text1, ilemm1, isten1, text2, ilemm2, isten2)) {
+                    each.matched(text1, text2, ilemm1, ilemm2, nlemm1, nlemm2);
+                    each.matched(text2, text1, ilemm2, ilemm1, nlemm2, nlemm1);
+                }
             }
         }
     }
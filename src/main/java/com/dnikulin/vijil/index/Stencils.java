@@ -20,11 +20,9 @@
 
 package com.dnikulin.vijil.index;
 
-import java.util.Arrays;
-
 import com.dnikulin.vijil.model.TextModel;
 
-import static com.dnikulin.vijil.tools.HashInts.hash;
+import static com.dnikulin.vijil.tools.HashInts.seed;
 
 /** Online index for lemma subsequence matching.
  *
@@ -34,57 +32,95 @@ public final class Stencils extends MindexCore {
     /** Stencil model. */
     public final StencilModel model;
 
-    /** Stencil index within model for each entry in each bin. */
-    protected final byte [][] ibstens;
-
-    /** Buffer for stencil sampling (for add() only). */
-    protected final int    [] buffer;
-
     /** Construct an index for the given stencil model.
      *
-     * @param matchLength  Exact number of lemmas to regard as a match.
+     * @param model  Stencil model to sample lemmas with.
      */
     public Stencils(StencilModel model) {
-        this.model = model;
+        this(model, 0);
+    }
+
+    /** Construct an index for the given stencil model and expected size.
+     *
+     * @param model    Stencil model to sample lemmas with.
+     * @param nexpect  Expected number of lemmas to be indexed.
+     */
+    public Stencils(StencilModel model, long nexpect) {
+        this(model, nexpect, false);
+    }
+
+    /** Construct an index for the given stencil model and expected size.
+     *
+     * @param model    Stencil model to sample lemmas with.
+     * @param nexpect  Expected number of lemmas to be indexed.
+     * @param offheap  Whether to hold bins in off-heap memory.
+     */
+    public Stencils(StencilModel model, long nexpect, boolean offheap) {
+        this(model, nexpect, offheap, false);
+    }
 
-        // Allocate empty initial bin array.
-        this.ibstens = new byte[nbins][];
+    /** Construct an index for the given stencil model and expected size.
+     *
+     * @param model    Stencil model to sample lemmas with.
+     * @param nexpect  Expected number of lemmas to be indexed.
+     * @param offheap  Whether to hold bins in off-heap memory.
+     * @param printed  Whether to store a fingerprint for each entry.
+     */
+    public Stencils(StencilModel model, long nexpect, boolean offheap, boolean printed) {
+        super(nexpect * model.nstencils, true, offheap, printed);
 
-        // Allocate buffer for stencil sampling.
-        this.buffer = new int[model.size];
+        this.model = model;
     }
 
-    /** Add a text to the index.
+    /** Count the entries that index() will add for a text.
      *
-     * @param text  Parsed text to index for exact matches.
+     * @param text  Parsed text to be indexed.
      */
     @Override
-    public void add(final TextModel text) {
-        // Verify parameters.
-        assert (text        != null);
-        assert (text.hash   != null);
+    protected long countEntries(TextModel text) {
+        long count = 0;
+        for (int isten = 0; isten < model.nstencils; isten++)
+            count += Math.max(0, text.size + 1 - model.width(isten));
+        return count;
+    }
+
+    /** Stage entries for a text already recorded in the text list.
+     *
+     * @param itext  Text index.
+     * @param text   Parsed text to index for exact matches.
+     * @param stage  Staging buffer to add entries to.
+     */
+    @Override
+    protected void index(int itext, TextModel text, Staging stage) {
+        final int length = text.size;
+
+        // Scramble each lemma once, for hashes and any fingerprints.
+        final int [] mixed   = model.premix(text, seed);
+        final int [] mixedp  = printed ? model.premix(text, fseed) : null;
 
-        final int    length  = text.size;
-        final int    itext   = ntexts;
-        addText(text);
+        // Allocate buffers for the hashes of all stencils at one position.
+        final int [] partial = new int[model.nodes()];
+        final int [] hashes  = new int[model.nstencils];
+        final int [] prints  = new int[model.nstencils];
 
         for (int ilem = 0; ilem < length; ilem++) {
+            // Hash all stencil samples, deciding the bins and mixing with the records.
+            model.hashes(mixed, ilem, seed, partial, hashes);
+
+            // Hash again for fingerprints, if stored.
+            if (printed)
+                model.hashes(mixedp, ilem, fseed, partial, prints);
+
             for (int isten = 0; isten < model.nstencils; isten++) {
                 // Exclude stencils that pass the edge of the lemma data.
                 if ((ilem + model.width(isten)) > length)
                     continue;
 
-                // Sample stencil.
-                model.sample(buffer, text, ilem, isten);
-
-                // Hash buffer, deciding the bin and mixing with the record.
-                final int hash = hash(buffer, 0, buffer.length);
+                final int hash  = hashes[isten];
+                final int print = prints[isten];
 
-                // Calculate bin index.
-                final int ibin = (hash & nbinmask);
-
-                // Append to the bin's chained array, mixing with the hash.
-                addEntry(ibin, itext ^ hash, ilem ^ hash, (byte) isten);
+                // Stage for the bin's chained array, mixing with the hash.
+                stage.add(hash, itext ^ hash, ilem ^ hash, (byte) isten, print);
             }
         }
     }
@@ -101,36 +137,66 @@ public final class Stencils extends MindexCore {
         assert (text1.hash   != null);
         assert (each         != null);
 
-        // Allocate temporary buffers for stencil sampling.
-        final int [] buffer1 = new int[model.size];
-        final int [] buffer2 = new int[model.size];
+        // Allocate view for bin entries.
+        final Postings view = new Postings();
+
+        // Text order within bins is only guaranteed if texts were added on one thread.
+        final boolean ordered = this.ordered;
+
+        // Symbols need not be compared if fingerprints are trusted.
+        final boolean confirm = (printed == false) || verify;
+
+        // Count grams skipped for having too many candidates.
+        final int cap = querycap;
+        int nsuppress = 0;
+
+        // Scramble each lemma once, for hashes and any fingerprints.
+        final int [] mixed   = model.premix(text1, seed);
+        final int [] mixedp  = printed ? model.premix(text1, fseed) : null;
+
+        // Allocate buffers for the hashes of all stencils at one position.
+        final int [] partial = new int[model.nodes()];
+        final int [] hashes  = new int[model.nstencils];
+        final int [] prints  = new int[model.nstencils];
 
         final int length1 = text1.size;
         for (int ilem1 = 0; ilem1 < length1; ilem1++) {
+            // Hash all stencil samples, deciding the bins and mixing with the records.
+            model.hashes(mixed, ilem1, seed, partial, hashes);
+
+            // Hash again for fingerprints, if stored.
+            if (printed)
+                model.hashes(mixedp, ilem1, fseed, partial, prints);
+
             for (int isten1 = 0; isten1 < model.nstencils; isten1++) {
                 // Exclude stencils that pass the edge of the lemma data.
                 final int nlems1 = model.width(isten1);
                 if ((ilem1 + nlems1) > length1)
                     continue;
 
-                // Sample stencil into buffer 1.
-                model.sample(buffer1, text1, ilem1, isten1);
+                final int     hash   = hashes[isten1];
+
+                // Load bin entries, skipping overly frequent grams.
+                load(hash, view);
+                if (suppress(hash, view, cap)) {
+                    nsuppress++;
+                    continue;
+                }
 
-                // Hash buffer, deciding the bin and mixing with the record.
-                final int     hash   = hash(buffer1, 0, buffer1.length);
+                final int     post0  = view.min;
+                final int     post1  = view.max;
+                final int  [] itexts = view.texts;
+                final int  [] ilems  = view.lemmas;
+                final byte [] istens = view.tags;
+                final int  [] iprints = view.prints;
 
-                // Calculate bin index.
-                final int     ibin   = (hash & nbinmask);
-                final int     nposts = nbposts [ibin];
-                final int  [] itexts = ibtexts [ibin];
-                final int  [] ilems  = iblems  [ibin];
-                final byte [] istens = ibstens [ibin];
+                final int     print  = prints[isten1];
 
                 // Maintain previous text index to confirm forward progress.
                 int prevText = 0;
 
-                // Search each entry in the bin's chained array.
-                perbin: for (int ipost = 0; ipost < nposts; ipost++) {
+                // Search each entry in the bin.
+                for (int ipost = post0; ipost < post1; ipost++) {
                     // Eliminate entry by text index.
                     // If the hash was 'wrong', this is almost certain to be
                     // an invalid text index, allowing it to be ignored at
@@ -139,9 +205,9 @@ public final class Stencils extends MindexCore {
                     if ((itext2 >= ntexts) || (itext2 < prevText))
                         continue;
 
-                    // Eliminate entry by text identity.
+                    // Eliminate entry by text identity, or removal.
                     final TextModel text2 = texts[itext2];
-                    if (text1 == text2)
+                    if ((text1 == text2) || (text2 == null))
                         continue;
 
                     // Eliminate entry by lemma index within text.
@@ -150,80 +216,31 @@ public final class Stencils extends MindexCore {
                     final int  ilem2   = (ilems[ipost] ^ hash);
                     final byte isten2  = istens[ipost];
                     final int  nlems2  = model.width(isten2);
-                    final int  length2 = text2.size;
+                    final int  length2 = sizes[itext2];
                     if (((ilem2 + nlems2) > length2) || (ilem2 < 0))
                         continue;
 
-                    // Sample stencil into buffer 2.
-                    model.sample(buffer2, text2, ilem2, isten2);
+                    // Eliminate entry by fingerprint, without touching text2.
+                    if (printed && (iprints[ipost] != print))
+                        continue;
 
                     // Cheap eliminations have failed, and it is very likely
                     // that this is a real match. Confirm the full length of
                     // the match before invoking the visitor.
-                    for (int i = 0; i < buffer1.length; i++) {
-                        // Skip to next bin posting.
-                        if (buffer1[i] != buffer2[i])
-                            continue perbin;
-                    }
+                    if (confirm && !model.equal(text1, ilem1, isten1, text2, ilem2, isten2))
+                        continue;
 
                     // The match is confirmed, so invoke the visitor.
                     each.matched(text1, text2, ilem1, ilem2, nlems1, nlems2);
 
                     // Update previous text index to strengthen future eliminations.
-                    prevText = itext2;
+                    if (ordered)
+                        prevText = itext2;
                 }
             }
         }
-    }
-
-    /** Add an entry to a bin.
-     *
-     * @param ibin   Bin index.
-     * @param itext  Text index.
-     * @param ilem   Lemma index.
-     * @param isten  Stencil index.
-     */
-    protected void addEntry(int ibin, int itext, int ilem, byte isten) {
-        assert (ibtexts.length == nbins);
-        assert (iblems.length  == nbins);
-        assert (ibstens.length  == nbins);
-        assert ((ibtexts[ibin] == null) == (iblems[ibin] == null));
-        assert ((ibtexts[ibin] == null) == (ibstens[ibin] == null));
-
-        // Allocate per-bin arrays if necessary.
-        if (ibtexts[ibin] == null) {
-            // Allocate both before assigning either.
-            // If an allocation fails, they remain equally unassigned.
-            final int  [] itexts2 = new int  [8];
-            final int  [] ilems2  = new int  [8];
-            final byte [] istens2 = new byte [8];
-            ibtexts [ibin] = itexts2;
-            iblems  [ibin] = ilems2;
-            ibstens [ibin] = istens2;
-        }
-
-        assert (ibtexts[ibin].length == iblems[ibin].length);
-        assert (ibtexts[ibin].length == ibstens[ibin].length);
-
-        // Expand per-bin arrays if necessary.
-        if (nbposts[ibin] >= ibtexts[ibin].length) {
-            final int nlength = (ibtexts[ibin].length * 2);
-
-            // Allocate both before assigning either.
-            // If an allocation fails, they remain equally unassigned.
-            final int  [] itexts2  = Arrays.copyOf(ibtexts [ibin], nlength);
-            final int  [] ilems2   = Arrays.copyOf(iblems  [ibin], nlength);
-            final byte [] istens2  = Arrays.copyOf(ibstens [ibin], nlength);
-            ibtexts  [ibin] = itexts2;
-            iblems   [ibin] = ilems2;
-            ibstens  [ibin] = istens2;
-        }
 
-        // Write into per-bin arrays.
-        final int at       = nbposts[ibin];
-        ibtexts [ibin][at] = itext;
-        iblems  [ibin][at] = ilem;
-        ibstens [ibin][at] = isten;
-        nbposts [ibin]     = (at + 1);
+        if (nsuppress > 0)
+            nsuppressed.addAndGet(nsuppress);
     }
 }
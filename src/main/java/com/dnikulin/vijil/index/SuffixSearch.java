@@ -0,0 +1,447 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.dnikulin.vijil.model.TextModel;
+
+/** Exact search for maximal repeats between texts, using a suffix array.
+ *
+ * The suffix array of the whole tape is built with SA-IS in linear time,
+ * and its LCP array with Kasai's algorithm, stopping at barriers so that
+ * no common prefix crosses between texts. LCP intervals are enumerated
+ * bottom-up with a stack, and every pair of positions in different texts
+ * whose common prefix is at least minLength, and cannot be extended left
+ * or right, is reported once to the visitor.
+ *
+ * Positions within each interval are grouped by their preceding symbol,
+ * so pairs that extend left are never enumerated. Unlike hashing
+ * searches, each repeat is reported once at its full length, without
+ * overlapping k-grams to merge.
+ *
+ * Memory is about 20 bytes per tape symbol, plus SA-IS scratch space.
+ *
+ * @author Dmitri Nikulin
+ */
+public final class SuffixSearch {
+    /** Preceding symbol for positions at the start of a text. */
+    private static final int START = -1;
+
+    public final MatchVisitor  visitor;
+    public final TextModelTape tape;
+    public final int           minLength;
+    public final int           nsymbols;
+
+    /** Symbols ranked into 0 (sentinel), 1 (barrier), then 2 and above. */
+    private final int []   ranks;
+
+    /** Suffix array. */
+    private final int []   suffix;
+
+    /** Longest common prefix with the previous suffix, not crossing barriers. */
+    private final int []   lcp;
+
+    /** Next position in an interval's class list. */
+    private final int []   next;
+
+    /** Frames for LCP intervals, and their free list. */
+    private final ArrayList<Frame> stack;
+    private final ArrayList<Frame> free;
+
+    public SuffixSearch(MatchVisitor visitor, TextModelTape tape, int minLength) {
+        assert (minLength > 0);
+
+        this.visitor   = visitor;
+        this.tape      = tape;
+        this.minLength = minLength;
+        this.nsymbols  = tape.nsymbols;
+
+        // Allocate arrays.
+        this.ranks     = new int[nsymbols];
+        this.suffix    = new int[nsymbols];
+        this.lcp       = new int[nsymbols];
+        this.next      = new int[nsymbols];
+
+        this.stack     = new ArrayList<Frame>();
+        this.free      = new ArrayList<Frame>();
+    }
+
+    public void search() {
+        final int nranks = rank();
+        sais(ranks, suffix, nsymbols, nranks);
+        kasai();
+        intervals();
+    }
+
+    /** Rank text symbols densely, above the sentinel and barrier.
+     *
+     * @return Number of distinct ranks.
+     */
+    private int rank() {
+        // Dense tapes are already ranked.
+        if (tape.dense) {
+            for (int is = 0; is < nsymbols; is++)
+                ranks[is] = tape.symbol(is);
+            return (tape.maximum + 1);
+        }
+
+        // Collect and sort all text symbols.
+        int ntext = 0;
+        final int [] sorted = new int[nsymbols];
+        for (int is = 0; is < nsymbols; is++) {
+            if (tape.modelIndex(is) != TextModelTape.VOID)
+                sorted[ntext++] = tape.symbol(is);
+        }
+        Arrays.sort(sorted, 0, ntext);
+
+        // Remove duplicates.
+        int ndistinct = 0;
+        for (int i = 0; i < ntext; i++) {
+            if ((ndistinct == 0) || (sorted[i] != sorted[ndistinct - 1]))
+                sorted[ndistinct++] = sorted[i];
+        }
+
+        // Replace each symbol with its rank.
+        for (int is = 0; is < nsymbols; is++) {
+            if (tape.modelIndex(is) != TextModelTape.VOID)
+                ranks[is] = Arrays.binarySearch(sorted, 0, ndistinct, tape.symbol(is)) + TextModelTape.FIRST;
+            else
+                ranks[is] = tape.symbol(is);
+        }
+
+        return (ndistinct + TextModelTape.FIRST);
+    }
+
+    /** Compute LCP values with Kasai's algorithm, stopping at barriers. */
+    private void kasai() {
+        // Use the next array as the inverse suffix array for now.
+        final int [] inverse = next;
+        for (int i = 0; i < nsymbols; i++)
+            inverse[suffix[i]] = i;
+
+        // Capping at barriers keeps lcp[i + 1] >= lcp[i] - 1 in text order.
+        int h = 0;
+        for (int is1 = 0; is1 < nsymbols; is1++) {
+            final int rank1 = inverse[is1];
+            if (rank1 == 0) {
+                h = 0;
+                continue;
+            }
+
+            final int is2 = suffix[rank1 - 1];
+            while (((is1 + h) < nsymbols) && ((is2 + h) < nsymbols)
+                    && (ranks[is1 + h] == ranks[is2 + h])
+                    && (ranks[is1 + h] > TextModelTape.BARRIER))
+                h++;
+
+            lcp[rank1] = h;
+            if (h > 0)
+                h--;
+        }
+
+        lcp[0] = 0;
+    }
+
+    /** Enumerate LCP intervals bottom-up, reporting maximal pairs. */
+    private void intervals() {
+        stack.clear();
+        stack.add(frame(0));
+
+        Frame pending = leaf(suffix[0]);
+
+        for (int i = 1; i <= nsymbols; i++) {
+            // Height of the boundary between suffixes i - 1 and i.
+            final int h = (i < nsymbols) ? lcp[i] : 0;
+
+            // Close every interval deeper than this boundary.
+            Frame top = stack.get(stack.size() - 1);
+            while (top.height > h) {
+                stack.remove(stack.size() - 1);
+                merge(top, pending);
+                pending = top;
+                top = stack.get(stack.size() - 1);
+            }
+
+            if (top.height < h) {
+                // Open an interval, starting with the pending child.
+                final Frame frame = frame(h);
+                merge(frame, pending);
+                stack.add(frame);
+            } else {
+                merge(top, pending);
+            }
+
+            pending = (i < nsymbols) ? leaf(suffix[i]) : null;
+        }
+
+        // Release the root frame.
+        release(stack.remove(0));
+    }
+
+    /** Merge a child into an interval, reporting pairs between them.
+     *
+     * @param frame  Interval frame.
+     * @param child  Child frame, released afterwards, or null.
+     */
+    private void merge(Frame frame, Frame child) {
+        if (child == null)
+            return;
+
+        // Intervals shorter than a match need no positions.
+        if (frame.height < minLength) {
+            release(child);
+            return;
+        }
+
+        for (int ic = 0; ic < child.nclasses; ic++) {
+            final int lsym = child.syms[ic];
+
+            // Pair with every class of a different preceding symbol.
+            for (int jc = 0; jc < frame.nclasses; jc++) {
+                final int rsym = frame.syms[jc];
+                if ((lsym == rsym) && (lsym != START))
+                    continue;
+
+                for (int is1 = frame.heads[jc]; is1 >= 0; is1 = next[is1]) {
+                    for (int is2 = child.heads[ic]; is2 >= 0; is2 = next[is2])
+                        report(is1, is2, frame.height);
+                }
+            }
+        }
+
+        // Append each child class to the interval.
+        for (int ic = 0; ic < child.nclasses; ic++)
+            frame.append(child.syms[ic], child.heads[ic], child.tails[ic], next);
+
+        release(child);
+    }
+
+    private void report(int is1, int is2, int length) {
+        final int imodel1 = tape.modelIndex(is1);
+        final int imodel2 = tape.modelIndex(is2);
+
+        // Don't match within the same text.
+        if (imodel1 == imodel2)
+            return;
+
+        visitor.matched(tape.model(imodel1), tape.model(imodel2),
+            tape.modelOffset(is1), tape.modelOffset(is2), length, length);
+    }
+
+    /** Make a frame for a single suffix, or null if not in a text. */
+    private Frame leaf(int is) {
+        if (tape.modelIndex(is) == TextModelTape.VOID)
+            return null;
+
+        final int lsym = (tape.modelOffset(is) == 0) ? START : ranks[is - 1];
+
+        next[is] = -1;
+
+        final Frame frame = frame(Integer.MAX_VALUE);
+        frame.append(lsym, is, is, next);
+        return frame;
+    }
+
+    private Frame frame(int height) {
+        final Frame frame = free.isEmpty() ? new Frame() : free.remove(free.size() - 1);
+        frame.height   = height;
+        frame.nclasses = 0;
+        return frame;
+    }
+
+    private void release(Frame frame) {
+        free.add(frame);
+    }
+
+    /** LCP interval, holding its positions in lists by preceding symbol. */
+    private static final class Frame {
+        public int    height;
+        public int    nclasses;
+        public int [] syms  = new int[4];
+        public int [] heads = new int[4];
+        public int [] tails = new int[4];
+
+        public void append(int sym, int head, int tail, int[] next) {
+            // Join an existing class.
+            for (int ic = 0; ic < nclasses; ic++) {
+                if (syms[ic] == sym) {
+                    next[tails[ic]] = head;
+                    tails[ic] = tail;
+                    return;
+                }
+            }
+
+            // Start a new class.
+            if (nclasses == syms.length) {
+                syms  = Arrays.copyOf(syms,  nclasses * 2);
+                heads = Arrays.copyOf(heads, nclasses * 2);
+                tails = Arrays.copyOf(tails, nclasses * 2);
+            }
+
+            syms  [nclasses] = sym;
+            heads [nclasses] = head;
+            tails [nclasses] = tail;
+            nclasses++;
+        }
+    }
+
+    /** Build a suffix array with SA-IS.
+     *
+     * @param s   Symbols, each in [0, k), ending with a unique 0.
+     * @param sa  Output suffix array.
+     * @param n   Number of symbols.
+     * @param k   Alphabet size.
+     */
+    static void sais(int[] s, int[] sa, int n, int k) {
+        assert (s[n - 1] == 0);
+
+        if (n == 1) {
+            sa[0] = 0;
+            return;
+        }
+
+        // Classify each suffix as S-type (true) or L-type (false).
+        final boolean [] t = new boolean[n];
+        t[n - 1] = true;
+        for (int i = n - 2; i >= 0; i--)
+            t[i] = (s[i] < s[i + 1]) || ((s[i] == s[i + 1]) && t[i + 1]);
+
+        final int [] bkt = new int[k];
+
+        // Place LMS suffixes at the ends of their buckets, then induce.
+        buckets(s, bkt, n, k, true);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (lms(t, i))
+                sa[--bkt[s[i]]] = i;
+        }
+        induce(s, sa, t, bkt, n, k);
+
+        // Compact the sorted LMS substrings to the front.
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            if (lms(t, sa[i]))
+                sa[n1++] = sa[i];
+        }
+
+        // Name LMS substrings, equal substrings sharing names.
+        Arrays.fill(sa, n1, n, -1);
+        int name = 0;
+        int prev = -1;
+        for (int i = 0; i < n1; i++) {
+            final int pos = sa[i];
+            boolean diff = false;
+
+            for (int d = 0; d < n; d++) {
+                if ((prev == -1) || (s[pos + d] != s[prev + d]) || (t[pos + d] != t[prev + d])) {
+                    diff = true;
+                    break;
+                } else if ((d > 0) && (lms(t, pos + d) || lms(t, prev + d))) {
+                    break;
+                }
+            }
+
+            if (diff) {
+                name++;
+                prev = pos;
+            }
+
+            sa[n1 + (pos / 2)] = (name - 1);
+        }
+
+        // Reduced string, in text order of LMS positions.
+        final int [] s1 = new int[n1];
+        for (int i = n1, j = 0; i < n; i++) {
+            if (sa[i] >= 0)
+                s1[j++] = sa[i];
+        }
+
+        // Sort the reduced string, recursing only if names repeat.
+        final int [] sa1 = new int[n1];
+        if (name < n1) {
+            sais(s1, sa1, n1, name);
+        } else {
+            for (int i = 0; i < n1; i++)
+                sa1[s1[i]] = i;
+        }
+
+        // Map reduced suffixes back to LMS positions.
+        for (int i = 1, j = 0; i < n; i++) {
+            if (lms(t, i))
+                s1[j++] = i;
+        }
+        for (int i = 0; i < n1; i++)
+            sa1[i] = s1[sa1[i]];
+
+        // Place sorted LMS suffixes at the ends of their buckets, then induce.
+        buckets(s, bkt, n, k, true);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = n1 - 1; i >= 0; i--) {
+            final int j = sa1[i];
+            sa[--bkt[s[j]]] = j;
+        }
+        induce(s, sa, t, bkt, n, k);
+    }
+
+    private static void induce(int[] s, int[] sa, boolean[] t, int[] bkt, int n, int k) {
+        // Induce L-type suffixes from bucket starts.
+        buckets(s, bkt, n, k, false);
+        for (int i = 0; i < n; i++) {
+            final int j = sa[i] - 1;
+            if ((j >= 0) && (t[j] == false))
+                sa[bkt[s[j]]++] = j;
+        }
+
+        // Induce S-type suffixes from bucket ends.
+        buckets(s, bkt, n, k, true);
+        for (int i = n - 1; i >= 0; i--) {
+            final int j = sa[i] - 1;
+            if ((j >= 0) && t[j])
+                sa[--bkt[s[j]]] = j;
+        }
+    }
+
+    private static void buckets(int[] s, int[] bkt, int n, int k, boolean ends) {
+        Arrays.fill(bkt, 0);
+        for (int i = 0; i < n; i++)
+            bkt[s[i]]++;
+
+        int sum = 0;
+        for (int i = 0; i < k; i++) {
+            sum += bkt[i];
+            bkt[i] = ends ? sum : (sum - bkt[i]);
+        }
+    }
+
+    private static boolean lms(boolean[] t, int i) {
+        return (i > 0) && t[i] && (t[i - 1] == false);
+    }
+
+    public static void search(MatchVisitor visitor, TextModelTape tape, int minLength) {
+        new SuffixSearch(visitor, tape, minLength).search();
+    }
+
+    public static void search(MatchVisitor visitor, TextModel[] models, int minLength) {
+        new SuffixSearch(visitor, new TextModelTape(models, true), minLength).search();
+    }
+}
@@ -49,16 +49,42 @@ public final class TextModelTape {
      */
     public static final int VOID     = -1;
 
+    /** First dense symbol id, just above the sentinel and barrier. */
+    public static final int FIRST    =  2;
+
     private final TextModel [] models;
     private final int       [] symbols;
     private final int       [] imodels;
     private final int       [] isymbols;
 
+    /** Original symbol for each dense id, from FIRST, if dense. */
+    private final int       [] alphabet;
+
+    /** Distinct original symbols in ascending order, and their dense ids, if dense. */
+    private final int       [] distinct;
+    private final int       [] ids;
+
     public  final int          nmodels;
     public  final int          nsymbols;
     public  final int          maximum;
+    public  final boolean      dense;
 
     public TextModelTape(TextModel [] models) {
+        this(models, false);
+    }
+
+    /**
+     * Construct a tape, optionally remapping symbols to a dense alphabet.
+     *
+     * Dense ids run from FIRST in order of descending frequency, so that
+     * algorithms indexed by symbol need memory only for the vocabulary,
+     * and text symbols never collide with the sentinel or barrier.
+     * The original symbols remain available with original().
+     *
+     * @param models  Text models to concatenate.
+     * @param dense   Whether to remap symbols to dense ids.
+     */
+    public TextModelTape(TextModel [] models, boolean dense) {
         // Defensively copy model array.
         this.models   = Arrays.copyOf(models, models.length);
 
@@ -66,9 +92,6 @@ public final class TextModelTape {
         this.nmodels  = this.models.length;
         this.nsymbols = totalSymbols(this.models);
 
-        // Find maximum symbol integer.
-        this.maximum  = maxSymbol(this.models);
-
         // Allocate arrays spanning all symbols with padding.
         this.symbols  = new int [this.nsymbols];
         this.imodels  = new int [this.nsymbols];
@@ -107,6 +130,56 @@ public final class TextModelTape {
 
         // Check the full size was recorded.
         assert(cursor == this.nsymbols);
+
+        this.dense = dense;
+        if (dense) {
+            this.distinct = distinctSymbols(this.models);
+            this.ids      = new int[this.distinct.length];
+            this.alphabet = new int[this.distinct.length + FIRST];
+            this.maximum  = remap();
+        } else {
+            this.distinct = null;
+            this.ids      = null;
+            this.alphabet = null;
+
+            // Find maximum symbol integer.
+            this.maximum  = maxSymbol(this.models);
+        }
+    }
+
+    /** Assign dense ids by descending frequency and rewrite text symbols. */
+    private int remap() {
+        final int ndistinct = distinct.length;
+
+        // Count the frequency of each distinct symbol.
+        final int [] counts = new int[ndistinct];
+        for (int is = 0; is < nsymbols; is++) {
+            if (imodels[is] != VOID)
+                counts[Arrays.binarySearch(distinct, symbols[is])]++;
+        }
+
+        // Order by descending count, then ascending symbol, packed to sort as longs.
+        final long [] order = new long[ndistinct];
+        for (int i = 0; i < ndistinct; i++)
+            order[i] = ((long) (Integer.MAX_VALUE - counts[i]) << 32) | i;
+        Arrays.sort(order);
+
+        // Assign ids in that order, keeping the reverse map.
+        alphabet[SENTINEL] = SENTINEL;
+        alphabet[BARRIER]  = BARRIER;
+        for (int rank = 0; rank < ndistinct; rank++) {
+            final int i = (int) order[rank];
+            ids      [i]            = rank + FIRST;
+            alphabet [rank + FIRST] = distinct[i];
+        }
+
+        // Rewrite text symbols.
+        for (int is = 0; is < nsymbols; is++) {
+            if (imodels[is] != VOID)
+                symbols[is] = ids[Arrays.binarySearch(distinct, symbols[is])];
+        }
+
+        return (ndistinct + FIRST - 1);
     }
 
     public TextModel model(int im) {
@@ -117,6 +190,20 @@ public final class TextModelTape {
         return symbols[is];
     }
 
+    /** Original symbol for a tape symbol, which differs only if dense. */
+    public int original(int symbol) {
+        return dense ? alphabet[symbol] : symbol;
+    }
+
+    /** Tape symbol for an original symbol, or VOID if dense and absent from the tape. */
+    public int dense(int symbol) {
+        if (dense == false)
+            return symbol;
+
+        final int i = Arrays.binarySearch(distinct, symbol);
+        return (i >= 0) ? ids[i] : VOID;
+    }
+
     public int modelIndex(int is) {
         return imodels[is];
     }
@@ -141,6 +228,26 @@ public final class TextModelTape {
         return nsymbols;
     }
 
+    public static int[] distinctSymbols(TextModel [] models) {
+        // Collect and sort all symbols.
+        final int [] sorted = new int[totalSymbols(models)];
+        int cursor = 0;
+        for (TextModel model : models) {
+            for (int isymbol = 0; isymbol < model.size; isymbol++)
+                sorted[cursor++] = model.symbol(isymbol);
+        }
+        Arrays.sort(sorted, 0, cursor);
+
+        // Remove duplicates.
+        int ndistinct = 0;
+        for (int i = 0; i < cursor; i++) {
+            if ((ndistinct == 0) || (sorted[i] != sorted[ndistinct - 1]))
+                sorted[ndistinct++] = sorted[i];
+        }
+
+        return Arrays.copyOf(sorted, ndistinct);
+    }
+
     public static int maxSymbol(TextModel [] models) {
         int max = 0;
 
@@ -22,6 +22,7 @@ package com.dnikulin.vijil.model;
 
 import com.dnikulin.vijil.tools.Empty;
 import com.dnikulin.vijil.tools.HashInts;
+import com.dnikulin.vijil.tools.RollingHash;
 
 public final class TextModel implements Comparable<TextModel> {
     /** Sentinel text model singleton. */
@@ -128,4 +129,14 @@ public final class TextModel implements Comparable<TextModel> {
     public int hash(int ilemma, int nlemmas) {
         return HashInts.hash(symbols, ilemma, nlemmas);
     }
+
+    /** Rolling hash of every lemma sub-list of a given length. */
+    public int[] hashes(int nlemmas) {
+        return RollingHash.hashes(symbols, 0, size, nlemmas);
+    }
+
+    /** Rolling hash of every lemma sub-list of a given length, with a seed. */
+    public int[] hashes(int nlemmas, int seed) {
+        return RollingHash.hashes(symbols, 0, size, nlemmas, seed);
+    }
 }
@@ -23,331 +23,343 @@ package com.dnikulin.vijil.result;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 
 import com.dnikulin.vijil.index.MatchVisitor;
 import com.dnikulin.vijil.model.TextModel;
+import com.dnikulin.vijil.tools.DaemonThreads;
 
-final class GraphSet {
-    public final int                code;
-    public final SpanDomain         domain;
-    public final HashSet<GraphSpan> spans;
+final class GraphView {
+    public final String                     hash;
 
-    public GraphSet(int code, SpanDomain domain) {
-        this.code    = code;
-        this.domain  = domain;
-        this.spans   = new HashSet<GraphSpan>();
-    }
+    // Character domain: surviving span index by start position.
+    // Spans in one view never overlap, so this is a disjoint interval map.
+    public final TreeMap<Integer, Integer>  starts;
 
-    @Override
-    public boolean equals(Object obj) {
-        if (obj == null) return false;
-        if ((obj instanceof GraphSet) == false) return false;
-        final GraphSet that = (GraphSet) obj;
-        return (this.code == that.code);
-    }
+    // Symbol domain: span index at each position, or none.
+    // Each resolves through aliases to the surviving span covering it.
+    public       int []                     covers;
 
-    @Override
-    public int hashCode() {
-        return code;
+    public GraphView(String hash, SpanDomain domain) {
+        this.hash = hash;
+
+        if (domain == SpanDomain.SYMBOLS) {
+            this.starts = null;
+            this.covers = new int[64];
+            Arrays.fill(this.covers, LinkSpanGraph.none);
+        } else {
+            this.starts = new TreeMap<Integer, Integer>();
+            this.covers = null;
+        }
     }
 }
 
-final class GraphSpan {
-    public final String   hash;
-    public final int      code;
-
-    public       GraphSet set;
-    public       int      min;
-    public       int      max;
-
-    private final HashSet<GraphSpan> links;
-
-    private LinkSpan result;
-
-    public GraphSpan(String hash, int code, GraphSet set, int min, int max) {
-        this.hash = hash;
-        this.code = code;
+/** Graph of linked spans, merging overlapping spans within each text.
+ *
+ * Spans are held in primitive arrays by index. A span that overlaps
+ * another in the same text absorbs it, and the absorbed index is then
+ * an alias for the survivor. Linked spans are joined into sets by a
+ * union-find with path halving and union by size. Links are kept as an
+ * edge list of span indices, resolved through aliases and deduplicated
+ * only when the list fills and when results are made.
+ *
+ * In the symbol domain, each text keeps the span index at every position
+ * it covers, so a span is made by scanning and filling only its own
+ * positions, without allocating. In the character domain, texts are
+ * far longer than their spans, so each keeps its surviving spans in a
+ * map by start position instead, costing a logarithmic lookup per span
+ * involved, plus one per span absorbed.
+ *
+ * Not thread-safe; see SyncMatchVisitor.
+ *
+ * @author Dmitri Nikulin
+ */
+public final class LinkSpanGraph implements MatchVisitor {
+    static final int                         none = -1;
 
-        this.set  = set;
-        this.min  = min;
-        this.max  = max;
+    public  final SpanDomain                 domain;
 
-        this.links  = new HashSet<GraphSpan>();
-        this.result = null;
-    }
+    private final HashMap<String, GraphView> views;
 
-    @Override
-    public boolean equals(Object obj) {
-        if (obj == this) return true;
-        if (obj == null) return false;
-        if ((obj instanceof GraphSpan) == false) return false;
-        final GraphSpan that = (GraphSpan) obj;
-        return (this.code == that.code);
-    }
+    // Per span: extent, view, alias for absorbed spans,
+    // and set union-find parent and size.
+    private       int                        nspans;
+    private       int []                     mins;
+    private       int []                     maxs;
+    private       GraphView []               owners;
+    private       int []                     aliases;
+    private       int []                     parents;
+    private       int []                     sizes;
 
-    @Override
-    public int hashCode() {
-        return code;
-    }
+    // Links as pairs of span indices.
+    private       int                        nedges;
+    private       long []                    edges;
 
-    public Iterable<GraphSpan> links() {
-        return links;
-    }
+    public LinkSpanGraph(SpanDomain domain) {
+        this.domain  = domain;
 
-    public void link(GraphSpan that) {
-        result = null;
-        links.add(that);
-    }
+        this.views   = new HashMap<String, GraphView>();
 
-    public boolean linked(GraphSpan that) {
-        return links.contains(that);
-    }
+        this.nspans  = 0;
+        this.mins    = new int[64];
+        this.maxs    = new int[64];
+        this.owners  = new GraphView[64];
+        this.aliases = new int[64];
+        this.parents = new int[64];
+        this.sizes   = new int[64];
 
-    public void unlink(GraphSpan that) {
-        result = null;
-        links.remove(that);
+        this.nedges  = 0;
+        this.edges   = new long[64];
     }
 
-    public LinkSpan result(LinkSpanSet dset, int dcode) {
-        if (result == null) {
-            LinkSpan [] dlinks = new LinkSpan[links.size()];
-            result = new LinkSpan(dset, dcode, hash, min, max, dlinks);
+    private GraphView makeView(String hash) {
+        GraphView view = views.get(hash);
+        if (view == null) {
+            view = new GraphView(hash, domain);
+            views.put(hash, view);
         }
-        return result;
-    }
-
-    public LinkSpan result() {
-        assert (result != null);
-        return result;
+        return view;
     }
-}
-
-final class GraphView {
-    private final String               hash;
-    private final SpanDomain           domain;
-    private final ArrayList<GraphSpan> buffer;
-    private final HashSet<GraphSet>    sets;
-    private final int []               codes;
-
-    // Keyed by indices in the span domain.
-    private       GraphSpan []         spans;
 
-    public GraphView(String hash, SpanDomain domain, ArrayList<GraphSpan> buffer, HashSet<GraphSet> sets, int[] codes) {
-        this.hash    = hash;
-        this.domain  = domain;
-        this.buffer  = buffer;
-        this.sets    = sets;
-        this.codes   = codes;
+    /** Make a span covering [min, max), absorbing every span it overlaps.
+     *
+     * @param view   View of the span's text.
+     * @param min    Start of the span.
+     * @param max    End of the span.
+     * @param span0  Span to link to, or none.
+     * @return Index of the resulting span.
+     */
+    private int makeSpan(GraphView view, int min, int max, int span0) {
+        final int span1 = (view.covers != null) ? coverSpan(view, min, max) : startSpan(view, min, max);
+
+        // Link to designated span, if any.
+        if (span0 != none) {
+            addEdge(span1, span0);
+            union(span1, span0);
+        }
 
-        this.spans   = new GraphSpan[2048];
+        return span1;
     }
 
-    public GraphSpan makeSpan(int min, int max, GraphSpan span0) {
-        buffer.clear();
-
-        GraphSpan span1 = null;
-        int       min1  = min;
-        int       max1  = max;
-
-        // Expand to new max if necessary.
-        expand(max1);
+    /** Make a span in a view of per-position span indices. */
+    private int coverSpan(GraphView view, int min, int max) {
+        if (max > view.covers.length) {
+            // Grow geometrically, marking new positions uncovered.
+            final int ncap = Math.max(max, view.covers.length * 2);
+            final int nold = view.covers.length;
+            view.covers = Arrays.copyOf(view.covers, ncap);
+            Arrays.fill(view.covers, nold, ncap, none);
+        }
 
-        // Take final reference to own span array, to help JIT.
-        final GraphSpan [] myspans = spans;
+        // Take final reference to view's positions, to help JIT.
+        final int [] covers = view.covers;
 
-        // Find all spans overlapping this new span.
-        for (int i = min; i < max; i++) {
-            GraphSpan span2 = myspans[i];
+        int span1 = none;
+        int min1  = min;
+        int max1  = max;
 
-            // Ignore un-spanned positions.
-            if (span2 == null)
+        // Find all spans covering positions of this new span.
+        for (int pos = min; pos < max; pos++) {
+            if (covers[pos] == none)
                 continue;
 
-            // Ensure no repeated spans due to skip.
-            assert (span2 != span1);
-            if (span1 != null)
-                assert (span2.min >= span1.max);
-
-            // Check the domain.
-            assert (span2.set.domain == domain);
+            final int span2 = alias(covers[pos]);
 
-            // Record this as the latest span.
-            // It may be expanded later.
-            span1 = span2;
-
-            // Record the span as overlapping the new span.
-            buffer.add(span1);
+            if (span1 == none) {
+                // Keep the first span found.
+                span1 = span2;
+            } else if (span2 != span1) {
+                // Absorb later spans into it.
+                aliases[span2] = span1;
+                union(span1, span2);
+            }
 
             // Record known extents.
             // These may be beyond the new span.
-            min1 = Math.min(span1.min, min1);
-            max1 = Math.max(span1.max, max1);
+            min1 = Math.min(mins[span2], min1);
+            max1 = Math.max(maxs[span2], max1);
 
-            // Skip ahead to known extent.
-            i = span1.max - 1;
+            // Skip the rest of this span, since spans are disjoint.
+            pos = Math.max(pos, maxs[span2] - 1);
         }
 
-        // Start with no set.
-        GraphSet set = null;
+        // No spans here, create a new one.
+        if (span1 == none)
+            span1 = addSpan(view);
 
-        // If a span was given, use its set.
-        if (span0 != null) {
-            set = span0.set;
-            assert (set.domain == domain);
-        }
+        // Make span all-inclusive.
+        mins[span1] = min1;
+        maxs[span1] = max1;
 
-        if (buffer.isEmpty()) {
-            // No spans here, create a new graph span for the set.
-            final int code = codes[0]++;
+        // Cover the new positions. Those of absorbed spans
+        // already resolve to this span through aliases.
+        for (int pos = min; pos < max; pos++)
+            covers[pos] = span1;
 
-            if (set == null) {
-                // No set was given, create a new one.
-                // It is safe to share the code for the set and span.
-                set = new GraphSet(code, domain);
-            }
+        return span1;
+    }
 
-            // Create new span.
-            span1 = new GraphSpan(hash, code, set, min1, max1);
-            set.spans.add(span1);
+    /** Make a span in a view of spans by start position. */
+    private int startSpan(GraphView view, int min, int max) {
+        // Take final reference to view's span map, to help JIT.
+        final TreeMap<Integer, Integer> starts = view.starts;
+
+        int span1 = none;
+        int min1  = min;
+        int max1  = max;
+
+        // Start from a span reaching into this new span from before,
+        // otherwise from the first span starting within it.
+        Integer key = null;
+        if (min < max) {
+            key = starts.floorKey(min);
+            if ((key == null) || (maxs[starts.get(key)] <= min))
+                key = starts.higherKey(min);
         }
 
-        // Make latest span all-inclusive.
-        span1.min = min1;
-        span1.max = max1;
-
-        // Create symmetric link to designated linked span, if any.
-        if (span0 != null) {
-            span1.link(span0);
-            span0.link(span1);
-        }
+        // Find all spans overlapping this new span.
+        for (; (key != null) && (key < max); key = starts.higherKey(key)) {
+            final int span2 = starts.get(key);
+
+            if (span1 == none) {
+                // Keep the first span found.
+                span1 = span2;
+            } else {
+                // Absorb later spans into it.
+                aliases[span2] = span1;
+                union(span1, span2);
+            }
 
-        if (set == null) {
-            // No set was given, use the latest span's one.
-            set = span1.set;
-            assert (set.domain == domain);
+            // Record known extents.
+            // These may be beyond the new span.
+            min1 = Math.min(mins[span2], min1);
+            max1 = Math.max(maxs[span2], max1);
         }
 
-        // Clean and combine graph sets.
-        for (GraphSpan span2 : buffer) {
-            // Reference set from old span.
-            GraphSet set2 = span2.set;
-            assert (set2.domain == domain);
-            span2.set = set;
-
-            // If sets are separate, combine them.
-            if (set != set2) {
-                // Add all set2 spans to set1.
-                for (GraphSpan span3 : set2.spans) {
-                    assert ((span3.set == set) || (span3.set == set2));
-                    assert (span3.set.domain == domain);
-                    set.spans.add(span3);
-                    span3.set = set;
-                }
+        // No spans here, create a new one.
+        if (span1 == none)
+            span1 = addSpan(view);
 
-                // Remove set2 from the set-set.
-                sets.remove(set2);
-            }
+        // Make span all-inclusive.
+        mins[span1] = min1;
+        maxs[span1] = max1;
 
-            set.spans.remove(span2);
+        // Replace all spans starting within this span.
+        // Those are exactly the spans absorbed, since spans are disjoint.
+        if (min1 < max1) {
+            starts.subMap(min1, max1).clear();
+            starts.put(min1, span1);
         }
 
-        // Consume links from all absorbed spans.
-        for (GraphSpan span2 : buffer) {
-            // Verify set identity.
-            assert (span2.set == set);
-            assert (span2.set.domain == domain);
-
-            // Ignore the latest span.
-            if (span2 == span1)
-                continue;
-
-            for (GraphSpan span3 : span2.links()) {
-                // Verify set identity.
-                assert (span3.set == set);
-                assert (span3.set.domain == domain);
+        return span1;
+    }
 
-                // Verify link symmetry.
-                assert (span3.linked(span2));
+    private int addSpan(GraphView view) {
+        if (nspans == mins.length) {
+            final int ncap = nspans * 2;
+            mins    = Arrays.copyOf(mins,    ncap);
+            maxs    = Arrays.copyOf(maxs,    ncap);
+            owners  = Arrays.copyOf(owners,  ncap);
+            aliases = Arrays.copyOf(aliases, ncap);
+            parents = Arrays.copyOf(parents, ncap);
+            sizes   = Arrays.copyOf(sizes,   ncap);
+        }
 
-                // Remove old link.
-                span3.unlink(span2);
+        final int span = nspans++;
+        owners  [span] = view;
+        aliases [span] = span;
+        parents [span] = span;
+        sizes   [span] = 1;
+        return span;
+    }
 
-                // Create symmetric link to latest span.
-                span1.link(span3);
-                span3.link(span1);
-            }
+    private void addEdge(int span1, int span2) {
+        if (nedges == edges.length) {
+            // Deduplicate first, growing only if still over half full.
+            compactEdges();
+            if ((nedges * 2) > edges.length)
+                edges = Arrays.copyOf(edges, edges.length * 2);
         }
 
-        // Verify link symmetry.
-        for (GraphSpan span2 : span1.links())
-            assert (span2.linked(span1));
+        edges[nedges++] = edge(span1, span2);
+    }
 
-        // Mark text positions for this span.
-        for (int i = span1.min; i < span1.max; i++)
-            myspans[i] = span1;
+    /** Pack an undirected edge, lower index first. */
+    private static long edge(int span1, int span2) {
+        if (span1 > span2)
+            return ((long) span2 << 32) | span1;
+        return ((long) span1 << 32) | span2;
+    }
 
-        // Ensure the span is in the set.
-        set.spans.add(span1);
-        span1.set = set;
+    /** Resolve edges through aliases, dropping self-links and duplicates. */
+    private void compactEdges() {
+        int nout = 0;
+        for (int i = 0; i < nedges; i++) {
+            final int span1 = alias((int) (edges[i] >>> 32));
+            final int span2 = alias((int) edges[i]);
+            if (span1 != span2)
+                edges[nout++] = edge(span1, span2);
+        }
 
-        // Ensure the set is in the set-set.
-        sets.add(set);
+        Arrays.sort(edges, 0, nout);
 
-        buffer.clear();
-        return span1;
+        nedges = 0;
+        for (int i = 0; i < nout; i++) {
+            if ((nedges == 0) || (edges[i] != edges[nedges - 1]))
+                edges[nedges++] = edges[i];
+        }
     }
 
-    private void expand(int max) {
-        if (max > spans.length) {
-            // Grow array size by powers of 2.
-            int nmax = spans.length;
-            while (max > nmax)
-                nmax *= 2;
-
-            // Extend array.
-            spans = Arrays.copyOf(spans, nmax);
+    /** Surviving span for a possibly absorbed span. */
+    private int alias(int span) {
+        while (aliases[span] != span) {
+            aliases[span] = aliases[aliases[span]];
+            span = aliases[span];
         }
+        return span;
     }
-}
-
-public final class LinkSpanGraph implements MatchVisitor {
-    public  final SpanDomain                 domain;
-
-    private final HashSet<GraphSet>          sets;
-    private final ArrayList<GraphSpan>       buffer;
-    private final HashMap<String, GraphView> views;
-    private final int []                     codes;
 
-    public LinkSpanGraph(SpanDomain domain) {
-        this.domain  = domain;
-
-        this.sets    = new HashSet<GraphSet>();
-        this.buffer  = new ArrayList<GraphSpan>();
-        this.views   = new HashMap<String, GraphView>();
-        this.codes   = new int[1];
+    /** Set root of a span. */
+    private int find(int span) {
+        while (parents[span] != span) {
+            parents[span] = parents[parents[span]];
+            span = parents[span];
+        }
+        return span;
     }
 
-    private GraphView makeView(String hash) {
-        GraphView view = views.get(hash);
-        if (view == null) {
-            view = new GraphView(hash, domain, buffer, sets, codes);
-            views.put(hash, view);
+    private void union(int span1, int span2) {
+        int root1 = find(span1);
+        int root2 = find(span2);
+        if (root1 == root2)
+            return;
+
+        if (sizes[root1] < sizes[root2]) {
+            final int root = root1;
+            root1 = root2;
+            root2 = root;
         }
-        return view;
+
+        parents[root2] = root1;
+        sizes[root1] += sizes[root2];
     }
 
     public void include(LinkSpan lspan1) {
         assert (lspan1.set.domain == domain);
 
         final GraphView view1 = makeView(lspan1.hash);
-        final GraphSpan span1 = view1.makeSpan(lspan1.min, lspan1.max, null);
+        final int       span1 = makeSpan(view1, lspan1.min, lspan1.max, none);
 
         for (LinkSpan lspan2 : lspan1.links) {
             assert (lspan2.set == lspan1.set);
 
             final GraphView view2 = makeView(lspan2.hash);
-            view2.makeSpan(lspan2.min, lspan2.max, span1);
+            makeSpan(view2, lspan2.min, lspan2.max, span1);
         }
     }
 
@@ -362,52 +374,69 @@ public final class LinkSpanGraph implements MatchVisitor {
     }
 
     public void normalise(LinkSpanSet[] sets, TextModel[] models) {
+        normalise(sets, 0, sets.length, byHash(models));
+    }
+
+    /** Normalise a range of sets from symbol to character spans.
+     *
+     * @param sets    Symbol domain sets.
+     * @param min     First set to include.
+     * @param max     Set after the last to include.
+     * @param models  Text models by hash.
+     */
+    private void normalise(LinkSpanSet[] sets, int min, int max, HashMap<String, TextModel> models) {
         // Only usable in character domain.
         assert (domain == SpanDomain.CHARACTERS);
 
-        for (LinkSpanSet set : sets) {
+        for (int iset = min; iset < max; iset++) {
+            final LinkSpanSet set = sets[iset];
+
             // Only usable for symbol spans.
             assert (set.domain == SpanDomain.SYMBOLS);
 
             for (LinkSpan lspan1 : set.spans) {
                 // Find matching text model.
-                for (TextModel model1 : models) {
-                    if (model1.hash.equals(lspan1.hash)) {
-                        final int cmin1 = model1.minChar(lspan1.min);
-                        final int cmax1 = model1.maxChar(lspan1.max - 1);
-
-                        // Create view and linked span.
-                        final GraphView view1 = makeView(lspan1.hash);
-                        final GraphSpan span1 = view1.makeSpan(cmin1, cmax1, null);
-
-                        for (LinkSpan lspan2 : lspan1.links) {
-                            assert (lspan2.set == lspan1.set);
-                            assert (lspan2.hash.equals(lspan1.hash) == false);
-
-                            // Find matching text model.
-                            for (TextModel model2 : models) {
-                                if (model2.hash.equals(lspan2.hash)) {
-                                    final int cmin2 = model2.minChar(lspan2.min);
-                                    final int cmax2 = model2.maxChar(lspan2.max - 1);
-
-                                    // Create view and linked span.
-                                    final GraphView view2 = makeView(lspan2.hash);
-                                    view2.makeSpan(cmin2, cmax2, span1);
-
-                                    // Stop searching for model 2.
-                                    break;
-                                }
-                            }
-                        }
-
-                        // Stop searching for model 1.
-                        break;
-                    }
+                final TextModel model1 = models.get(lspan1.hash);
+                if (model1 == null)
+                    continue;
+
+                final int cmin1 = model1.minChar(lspan1.min);
+                final int cmax1 = model1.maxChar(lspan1.max - 1);
+
+                // Create view and linked span.
+                final GraphView view1 = makeView(lspan1.hash);
+                final int       span1 = makeSpan(view1, cmin1, cmax1, none);
+
+                for (LinkSpan lspan2 : lspan1.links) {
+                    assert (lspan2.set == lspan1.set);
+                    assert (lspan2.hash.equals(lspan1.hash) == false);
+
+                    // Find matching text model.
+                    final TextModel model2 = models.get(lspan2.hash);
+                    if (model2 == null)
+                        continue;
+
+                    final int cmin2 = model2.minChar(lspan2.min);
+                    final int cmax2 = model2.maxChar(lspan2.max - 1);
+
+                    // Create view and linked span.
+                    final GraphView view2 = makeView(lspan2.hash);
+                    makeSpan(view2, cmin2, cmax2, span1);
                 }
             }
         }
     }
 
+    /** Index text models by hash, keeping the first of any duplicates. */
+    private static HashMap<String, TextModel> byHash(TextModel[] models) {
+        final HashMap<String, TextModel> byHash = new HashMap<String, TextModel>();
+        for (TextModel model : models) {
+            if (byHash.containsKey(model.hash) == false)
+                byHash.put(model.hash, model);
+        }
+        return byHash;
+    }
+
     @Override
     public void matched(TextModel text1, TextModel text2, int min1, int min2, int len1, int len2) {
         // Only usable in symbol domain.
@@ -431,56 +460,67 @@ public final class LinkSpanGraph implements MatchVisitor {
         final GraphView view1 = makeView(text1.hash);
         final GraphView view2 = makeView(text2.hash);
 
-        // Make or get graph spans for given data spans.
-        final GraphSpan span1 = view1.makeSpan(min1, max1, null);
-        final GraphSpan span2 = view2.makeSpan(min2, max2, span1);
+        // Make or get spans for given data spans, linking them.
+        final int span1 = makeSpan(view1, min1, max1, none);
+        final int span2 = makeSpan(view2, min2, max2, span1);
 
-        // Refer directly to graph sets for the spans.
-        final GraphSet  set1  = span1.set;
-        final GraphSet  set2  = span2.set;
+        // Verify both spans are in the same set.
+        assert (find(span1) == find(span2));
+    }
 
-        // Verify both sets are the same.
-        assert (set1 == set2);
+    public LinkSpanSet[] result() {
+        compactEdges();
 
-        // Verify the set-set has the set.
-        assert (sets.contains(set1));
+        // Number each set in order of its first surviving span.
+        final int [] setIndex  = new int[nspans];
+        final int [] setCounts = new int[nspans];
+        Arrays.fill(setIndex, none);
 
-        // Verify link symmetry.
-        assert (span1.linked(span2));
-        assert (span2.linked(span1));
-    }
+        int nsets = 0;
+        for (int span = 0; span < nspans; span++) {
+            if (aliases[span] != span)
+                continue;
 
-    public LinkSpanSet[] result() {
-        LinkSpanSet [] out = new LinkSpanSet[sets.size()];
-        int iout = 0;
+            final int root = find(span);
+            if (setIndex[root] == none)
+                setIndex[root] = nsets++;
+            setCounts[setIndex[root]]++;
+        }
 
-        int setCode  = 0;
-        int spanCode = 0;
+        final LinkSpanSet [] out = new LinkSpanSet[nsets];
+        for (int iset = 0; iset < nsets; iset++)
+            out[iset] = new LinkSpanSet(iset + 1, setCounts[iset], domain);
 
-        for (GraphSet set : sets) {
-            final int nspans = set.spans.size();
+        // Count links of each surviving span.
+        final int [] degrees = new int[nspans];
+        for (int i = 0; i < nedges; i++) {
+            degrees[(int) (edges[i] >>> 32)]++;
+            degrees[(int) edges[i]]++;
+        }
 
-            // Create set that each node will reference.
-            LinkSpanSet dset = new LinkSpanSet(++setCode, nspans, domain);
+        // Create each data span with its set but empty links.
+        final LinkSpan [] lspans = new LinkSpan[nspans];
+        final int      [] filled = new int[nsets];
+        int spanCode = 0;
+        for (int span = 0; span < nspans; span++) {
+            if (aliases[span] != span)
+                continue;
 
-            // Create each data span.
-            int iout2 = 0;
-            for (GraphSpan span : set.spans) {
-                // Create data span with set but null links.
-                final LinkSpan lspan = span.result(dset, ++spanCode);
-                dset.spans[iout2++] = lspan;
-            }
+            final LinkSpanSet dset = out[setIndex[find(span)]];
+            final LinkSpan lspan = new LinkSpan(dset, ++spanCode, owners[span].hash,
+                mins[span], maxs[span], new LinkSpan[degrees[span]]);
 
-            iout2 = 0;
-            for (GraphSpan span : set.spans) {
-                // Populate links.
-                final LinkSpan lspan = dset.spans[iout2++];
-                int ilink = 0;
-                for (GraphSpan link : span.links())
-                    lspan.links[ilink++] = link.result();
-            }
+            lspans[span] = lspan;
+            dset.spans[filled[dset.code - 1]++] = lspan;
+        }
 
-            out[iout++] = dset;
+        // Populate links in both directions.
+        Arrays.fill(degrees, 0);
+        for (int i = 0; i < nedges; i++) {
+            final int span1 = (int) (edges[i] >>> 32);
+            final int span2 = (int) edges[i];
+            lspans[span1].links[degrees[span1]++] = lspans[span2];
+            lspans[span2].links[degrees[span2]++] = lspans[span1];
         }
 
         return out;
@@ -503,4 +543,66 @@ public final class LinkSpanGraph implements MatchVisitor {
         graph.normalise(sets, models);
         return graph.result();
     }
+
+    /** Normalise sets from symbol to character spans, in parallel.
+     *
+     * Each worker normalises a contiguous range of sets into its own graph.
+     * Their results are then merged in range order, joining any spans that
+     * overlap only once in the character domain, so the result does not
+     * depend on thread scheduling.
+     *
+     * @param sets      Symbol domain sets.
+     * @param models    Text models for every span.
+     * @param nworkers  Number of worker threads.
+     */
+    public static LinkSpanSet[] normaliseSets(final LinkSpanSet[] sets, TextModel[] models, int nworkers) {
+        nworkers = Math.min(nworkers, sets.length);
+        if (nworkers < 2)
+            return normaliseSets(sets, models);
+
+        final HashMap<String, TextModel> byHash  = byHash(models);
+        final ExecutorService            workers = DaemonThreads.pool("normalise", nworkers);
+
+        try {
+            // Create futures to normalise each range of sets.
+            final List<FutureTask<LinkSpanSet[]>> tasks = new ArrayList<FutureTask<LinkSpanSet[]>>(nworkers);
+            for (int i = 0; i < nworkers; i++) {
+                final int min = (int) (((long) sets.length * i) / nworkers);
+                final int max = (int) (((long) sets.length * (i + 1)) / nworkers);
+
+                final FutureTask<LinkSpanSet[]> task = new FutureTask<LinkSpanSet[]>(new Callable<LinkSpanSet[]>() {
+                    @Override
+                    public LinkSpanSet[] call() throws Exception {
+                        final LinkSpanGraph graph = new LinkSpanGraph(SpanDomain.CHARACTERS);
+                        graph.normalise(sets, min, max, byHash);
+                        return graph.result();
+                    }
+                });
+
+                workers.execute(task);
+                tasks.add(task);
+            }
+
+            // Merge results in range order, keeping the first failure.
+            final LinkSpanGraph graph   = new LinkSpanGraph(SpanDomain.CHARACTERS);
+            Throwable           failure = null;
+            for (FutureTask<LinkSpanSet[]> task : tasks) {
+                try {
+                    final LinkSpanSet [] part = DaemonThreads.join(task);
+                    if (failure == null)
+                        graph.include(part);
+                } catch (ExecutionException ex) {
+                    if (failure == null)
+                        failure = ex.getCause();
+                }
+            }
+
+            if (failure != null)
+                throw new RuntimeException("Normalise worker failed", failure);
+
+            return graph.result();
+        } finally {
+            workers.shutdown();
+        }
+    }
 }
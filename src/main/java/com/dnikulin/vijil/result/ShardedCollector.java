@@ -0,0 +1,237 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.result;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import com.dnikulin.vijil.index.MatchVisitor;
+import com.dnikulin.vijil.model.TextModel;
+
+/** Concurrent visitor that buffers matches per thread, for merging later.
+ *
+ * Each thread calling matched() appends to its own shard of primitive
+ * arrays, without locks or contention. Once every matching thread has
+ * finished, and been joined, the shards are replayed in a deterministic
+ * order: by text hash, then offsets, then lengths. A result built from
+ * the replay, such as by linkSpans() or spanPairs(), therefore does not
+ * depend on thread scheduling.
+ *
+ * replay() and the results must not run concurrently with matched().
+ *
+ * @author Dmitri Nikulin
+ */
+public final class ShardedCollector implements MatchVisitor {
+    private static final int startSize = 512;
+
+    private final ArrayList<Shard>   shards;
+    private final ThreadLocal<Shard> local;
+
+    public ShardedCollector() {
+        this.shards = new ArrayList<Shard>();
+        this.local  = new ThreadLocal<Shard>() {
+            @Override
+            protected Shard initialValue() {
+                final Shard shard = new Shard();
+                synchronized (shards) {
+                    shards.add(shard);
+                }
+                return shard;
+            }
+        };
+    }
+
+    @Override
+    public void matched(TextModel text1, TextModel text2, int offset1, int offset2, int length1, int length2) {
+        local.get().add(text1, text2, offset1, offset2, length1, length2);
+    }
+
+    /** Number of matches buffered in all shards. */
+    public long count() {
+        long count = 0;
+        synchronized (shards) {
+            for (Shard shard : shards)
+                count += shard.nmatches;
+        }
+        return count;
+    }
+
+    /** Discard all buffered matches, keeping shard memory. */
+    public void clear() {
+        synchronized (shards) {
+            for (Shard shard : shards)
+                shard.clear();
+        }
+    }
+
+    /** Replay all buffered matches in deterministic order.
+     *
+     * @param each  Visitor to replay matches to, called on this thread.
+     */
+    public void replay(MatchVisitor each) {
+        synchronized (shards) {
+            // Number texts in order of hash.
+            final HashMap<String, TextModel> byHash = new HashMap<String, TextModel>();
+            int nmatches = 0;
+            for (Shard shard : shards) {
+                for (int i = 0; i < shard.nmatches; i++) {
+                    byHash.put(shard.text1s[i].hash, shard.text1s[i]);
+                    byHash.put(shard.text2s[i].hash, shard.text2s[i]);
+                }
+                nmatches += shard.nmatches;
+            }
+
+            final String [] hashes = byHash.keySet().toArray(new String[byHash.size()]);
+            Arrays.sort(hashes);
+
+            final HashMap<String, Integer> ids   = new HashMap<String, Integer>();
+            final TextModel []             texts = new TextModel[hashes.length];
+            for (int id = 0; id < hashes.length; id++) {
+                ids.put(hashes[id], Integer.valueOf(id));
+                texts[id] = byHash.get(hashes[id]);
+            }
+
+            // Gather all shards into one table of ids and spans.
+            final int [][] table = new int[6][nmatches];
+            int row = 0;
+            for (Shard shard : shards) {
+                for (int i = 0; i < shard.nmatches; i++, row++) {
+                    table[0][row] = ids.get(shard.text1s[i].hash).intValue();
+                    table[1][row] = ids.get(shard.text2s[i].hash).intValue();
+                    table[2][row] = shard.off1s[i];
+                    table[3][row] = shard.off2s[i];
+                    table[4][row] = shard.len1s[i];
+                    table[5][row] = shard.len2s[i];
+                }
+            }
+
+            // Sort row indices by every column in turn.
+            final int [] order = new int[nmatches];
+            for (int i = 0; i < nmatches; i++)
+                order[i] = i;
+            sort(table, order, new int[nmatches], 0, nmatches);
+
+            for (int i = 0; i < nmatches; i++) {
+                final int r = order[i];
+                each.matched(texts[table[0][r]], texts[table[1][r]],
+                    table[2][r], table[3][r], table[4][r], table[5][r]);
+            }
+        }
+    }
+
+    /** Merge all buffered matches into linked span sets. */
+    public LinkSpanSet[] linkSpans() {
+        final LinkSpanGraph graph = new LinkSpanGraph(SpanDomain.SYMBOLS);
+        replay(graph);
+        return graph.result();
+    }
+
+    /** Merge all buffered matches between two texts into span pairs.
+     *
+     * Matches between other texts are ignored, and matches from text2
+     * to text1 are inverted.
+     */
+    public ModelSpanPair[] spanPairs(final TextModel text1, final TextModel text2) {
+        final SpanMerger merger = new SpanMerger(text1, text2);
+        replay(new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                if ((ntext1 == text1) && (ntext2 == text2))
+                    merger.matched(ntext1, ntext2, offset1, offset2, length1, length2);
+                else if ((ntext1 == text2) && (ntext2 == text1))
+                    merger.matched(ntext2, ntext1, offset2, offset1, length2, length1);
+            }
+        });
+        return merger.result();
+    }
+
+    /** Stable merge sort of row indices in [min, max) by every column. */
+    private static void sort(int[][] table, int[] order, int[] buffer, int min, int max) {
+        if ((max - min) < 2)
+            return;
+
+        final int mid = (min + ((max - min) >> 1));
+        sort(table, order, buffer, min, mid);
+        sort(table, order, buffer, mid, max);
+
+        // Skip merging if already in order.
+        if (compare(table, order[mid - 1], order[mid]) <= 0)
+            return;
+
+        int i = min;
+        int j = mid;
+        int o = min;
+        while ((i < mid) && (j < max))
+            buffer[o++] = (compare(table, order[j], order[i]) < 0) ? order[j++] : order[i++];
+        while (i < mid)
+            buffer[o++] = order[i++];
+        while (j < max)
+            buffer[o++] = order[j++];
+
+        System.arraycopy(buffer, min, order, min, max - min);
+    }
+
+    private static int compare(int[][] table, int row1, int row2) {
+        for (int [] column : table) {
+            if (column[row1] != column[row2])
+                return (column[row1] < column[row2]) ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /** Matches from one thread. */
+    private static final class Shard {
+        public TextModel [] text1s = new TextModel[startSize];
+        public TextModel [] text2s = new TextModel[startSize];
+        public int       [] off1s  = new int[startSize];
+        public int       [] off2s  = new int[startSize];
+        public int       [] len1s  = new int[startSize];
+        public int       [] len2s  = new int[startSize];
+        public int          nmatches;
+
+        public void add(TextModel text1, TextModel text2, int offset1, int offset2, int length1, int length2) {
+            if (nmatches == off1s.length) {
+                final int nlength = (nmatches * 2);
+                text1s = Arrays.copyOf(text1s, nlength);
+                text2s = Arrays.copyOf(text2s, nlength);
+                off1s  = Arrays.copyOf(off1s,  nlength);
+                off2s  = Arrays.copyOf(off2s,  nlength);
+                len1s  = Arrays.copyOf(len1s,  nlength);
+                len2s  = Arrays.copyOf(len2s,  nlength);
+            }
+
+            text1s [nmatches] = text1;
+            text2s [nmatches] = text2;
+            off1s  [nmatches] = offset1;
+            off2s  [nmatches] = offset2;
+            len1s  [nmatches] = length1;
+            len2s  [nmatches] = length2;
+            nmatches++;
+        }
+
+        public void clear() {
+            Arrays.fill(text1s, 0, nmatches, null);
+            Arrays.fill(text2s, 0, nmatches, null);
+            nmatches = 0;
+        }
+    }
+}
@@ -20,11 +20,46 @@
 
 package com.dnikulin.vijil.result;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 import com.dnikulin.vijil.index.MatchVisitor;
 import com.dnikulin.vijil.model.TextModel;
 
+/** Concurrent visitor that merges matches between two texts into span pairs.
+ *
+ * Each thread calling matched() appends to its own shard of primitive
+ * arrays, without locks. A shard keeps its pairs bucketed by diagonal
+ * (offset2 - offset1), sorted by offset1 within each diagonal. Once
+ * enough new pairs accumulate, they are sorted alone and merged forward
+ * with the shard's sorted pairs, so overlapping pairs on one diagonal
+ * collapse into a single run. A dense match cloud, with a pair for every
+ * gram of a long passage, therefore stays small.
+ *
+ * cleanup() gathers all shards, collapses each diagonal, and then merges
+ * pairs that overlap across diagonals with a sweep line over offset1,
+ * holding active spans in a map by offset2. Each pair enters and leaves
+ * the map once, so a sweep costs O(n log n) however dense the pairs.
+ * A merged span can reach back past spans the sweep line has left, so
+ * the sweep is repeated until it merges nothing, which is rarely more
+ * than twice.
+ *
+ * Pairs are merged when they overlap or touch in both texts. The result
+ * is in order of offset1, then offset2, so it does not depend on thread
+ * scheduling.
+ *
+ * cleanup() shrinks each drained shard back to its starting size, since
+ * a shard stays reachable from its thread until the thread drops it.
+ *
+ * replay() replays the merged pairs, not the raw matches received.
+ *
+ * cleanup(), replay(), result(), count() and clear() must not run
+ * concurrently with matched().
+ *
+ * @author Dmitri Nikulin
+ */
 public final class SpanMerger implements MatchVisitor {
     private static final int startSize =  512;
     private static final int cleanSize = 8192;
@@ -32,166 +67,137 @@ public final class SpanMerger implements MatchVisitor {
     public final TextModel text1;
     public final TextModel text2;
 
-    private int [] off1s;
-    private int [] off2s;
-    private int [] len1s;
-    private int [] len2s;
-    private int    npairs;
-    private int    nclean;
+    private final ArrayList<Shard>   shards;
+    private final ThreadLocal<Shard> local;
+
+    // Merged pairs, in order of offset1.
+    private       Shard              merged;
 
     public SpanMerger(TextModel text1, TextModel text2) {
         assert(text1 !=  null);
         assert(text2 !=  null);
         assert(text1 != text2);
 
-        this.text1 = text1;
-        this.text2 = text2;
+        this.text1  = text1;
+        this.text2  = text2;
 
-        this.off1s  = new int [startSize];
-        this.off2s  = new int [startSize];
-        this.len1s  = new int [startSize];
-        this.len2s  = new int [startSize];
-        this.npairs = 0;
-        this.nclean = 0;
-    }
+        this.shards = new ArrayList<Shard>();
+        this.local  = new ThreadLocal<Shard>() {
+            @Override
+            protected Shard initialValue() {
+                final Shard shard = new Shard(startSize);
+                synchronized (shards) {
+                    shards.add(shard);
+                }
+                return shard;
+            }
+        };
 
-    public synchronized void clear() {
-        // Reset number of pairs.
-        npairs = 0;
-        nclean = 0;
+        this.merged = new Shard(0);
     }
 
-    public synchronized int count() {
-        return npairs;
+    public void clear() {
+        synchronized (shards) {
+            for (Shard shard : shards)
+                shard.release();
+            merged = new Shard(0);
+        }
     }
 
-    public synchronized void cleanup() {
-        // Verify internal consistency.
-        assert (nclean >= 0);
-        assert (npairs >= nclean);
-        assert (npairs <= off1s.length);
-
-        // Check that cleanup is actually necessary.
-        if (npairs <= nclean)
-            return;
-
-        // Sort all pairs.
-        quicksort(0, npairs - 1);
+    /** Number of pairs held, whether merged or not. */
+    public int count() {
+        synchronized (shards) {
+            int count = merged.npairs;
+            for (Shard shard : shards)
+                count += shard.npairs;
+            return count;
+        }
+    }
 
-        // Verify the sort.
-        for (int i = 1; i < npairs; i++)
-            assert (more(i - 1, i) == false);
+    public void cleanup() {
+        synchronized (shards) {
+            // Check that cleanup is actually necessary.
+            int nnew = 0;
+            for (Shard shard : shards)
+                nnew += shard.npairs;
+            if (nnew == 0)
+                return;
+
+            // Gather merged pairs and all shards.
+            final Shard all = new Shard(merged.npairs + nnew);
+            all.append(merged);
+            for (Shard shard : shards) {
+                all.append(shard);
+                shard.release();
+            }
 
-        // Keep track of pairs already cleared.
-        boolean[] clear = new boolean[npairs];
+            // Merge each diagonal, then across diagonals.
+            // A merged span may reach back past spans the sweep has left,
+            // so sweep again until no spans merge.
+            all.collapse();
 
-        // Merge pairs going forward.
-        int o = 0;
+            Shard swept = all;
+            int   nlast;
+            do {
+                nlast = swept.npairs;
+                swept = sweep(swept);
+            } while (swept.npairs < nlast);
 
-        for (int i = 0; i < npairs; i++) {
-            // Ignore pairs already cleared.
-            if (clear[i] == true)
-                continue;
+            merged = swept;
+        }
+    }
 
-            // Note the limit of the spans.
-            int min1 = off1s[i];
-            int min2 = off2s[i];
-            int max1 = (min1 + len1s[i]);
-            int max2 = (min2 + len2s[i]);
-            clear[i] = true;
-
-            // Find matching pairs past this pair.
-            for (int j = i + 1; j < npairs; j++) {
-                // Ignore pairs already cleared.
-                if (clear[j] == true)
-                    continue;
+    /** Replay merged pairs in order, rather than the matches received.
+     *
+     * @param each  Visitor to replay pairs to, called on this thread.
+     */
+    public void replay(MatchVisitor each) {
+        synchronized (shards) {
+            cleanup();
 
-                // Note the limit of the new spans.
-                final int min1j = off1s[j];
-                final int min2j = off2s[j];
-                final int max1j = (min1j + len1s[j]);
-                final int max2j = (min2j + len2s[j]);
-
-                // Check that the entry is from the same span pair.
-                assert (min1j >= min1);
-                if (max1j < min1) break;
-                if (max2j < min2) continue;
-                if (min1j > max1) break;
-                if (min2j > max2) continue;
-
-                // Consume this pair, extending current spans.
-                min1 = Math.min(min1, min1j);
-                min2 = Math.min(min2, min2j);
-                max1 = Math.max(max1, max1j);
-                max2 = Math.max(max2, max2j);
-                clear[j] = true;
+            final Shard pairs = merged;
+            for (int i = 0; i < pairs.npairs; i++) {
+                each.matched(
+                    text1          , text2          ,
+                    pairs.off1s [i], pairs.off2s [i],
+                    pairs.len1s [i], pairs.len2s [i]
+                );
             }
-
-            // Update first pair with expanded ranges.
-            off1s[o] = min1;
-            off2s[o] = min2;
-            len1s[o] = (max1 - min1);
-            len2s[o] = (max2 - min2);
-            o++;
         }
-
-        // Verify that all pairs were cleared.
-        for (int i = 0; i < npairs; i++)
-            assert (clear[i] == true);
-
-        // Truncate arrays post-merge.
-        npairs = o;
-        nclean = o;
     }
 
-    public synchronized void replay(MatchVisitor each) {
-        // Verify internal consistency.
-        assert (nclean >= 0);
-        assert (npairs >= nclean);
-        assert (npairs <= off1s.length);
+    public ModelSpanPair[] result() {
+        synchronized (shards) {
+            // Clean before finishing.
+            cleanup();
 
-        for (int i = 0; i < npairs; i++) {
-            each.matched(
-                text1    , text2    ,
-                off1s [i], off2s [i],
-                len1s [i], len2s [i]
-            );
-        }
-    }
+            final Shard pairs  = merged;
+            final int   npairs = pairs.npairs;
 
-    public synchronized ModelSpanPair[] result() {
-        // Clean before finishing.
-        cleanup();
-        assert(npairs == nclean);
+            // Allocate array for pairs.
+            final ModelSpanPair [] out = new ModelSpanPair [npairs];
 
-        // Allocate array for pairs.
-        final ModelSpanPair [] pairs = new ModelSpanPair [npairs];
+            // Refer to fixed objects.
+            final String     hash1  = text1.hash;
+            final String     hash2  = text2.hash;
+            final SpanDomain domain = SpanDomain.SYMBOLS;
 
-        // Refer to fixed objects.
-        final String     hash1  = text1.hash;
-        final String     hash2  = text2.hash;
-        final SpanDomain domain = SpanDomain.SYMBOLS;
+            for (int ipair = 0; ipair < npairs; ipair++) {
+                // Use 1-based pair index as pair code.
+                // The same code is used within each text, and within the set of pairs.
+                final int code = (ipair + 1);
 
-        for (int ipair = 0; ipair < npairs; ipair++) {
-            // Use 1-based pair index as pair code.
-            // The same code is used within each text, and within the set of pairs.
-            final int code = (ipair + 1);
+                final ModelSpan span1 = new ModelSpan(hash1, domain, code, pairs.off1s[ipair], pairs.len1s[ipair]);
+                final ModelSpan span2 = new ModelSpan(hash2, domain, code, pairs.off2s[ipair], pairs.len2s[ipair]);
+                out[ipair] = new ModelSpanPair(span1, span2, code);
+            }
 
-            final ModelSpan span1 = new ModelSpan(hash1, domain, code, off1s[ipair], len1s[ipair]);
-            final ModelSpan span2 = new ModelSpan(hash2, domain, code, off2s[ipair], len2s[ipair]);
-            pairs[ipair] = new ModelSpanPair(span1, span2, code);
+            return out;
         }
-
-        return pairs;
     }
 
     @Override
-    public synchronized void matched(TextModel text1, TextModel text2, int offset1, int offset2, int length1, int length2) {
-        // Verify internal consistency.
-        assert (nclean >= 0);
-        assert (npairs >= nclean);
-        assert (npairs <= off1s.length);
-
+    public void matched(TextModel text1, TextModel text2, int offset1, int offset2, int length1, int length2) {
         // Verify parameters.
         assert (text1   == this.text1);
         assert (text2   == this.text2);
@@ -206,125 +212,297 @@ public final class SpanMerger implements MatchVisitor {
         if (text1.hash.equals(text2.hash))
             return;
 
-        // Cleanup if many matches added without clean.
-        if ((npairs - nclean) >= cleanSize) {
-            cleanup();
-            assert (npairs == nclean);
-        }
+        // Append to this thread's shard, without locking.
+        local.get().add(offset1, offset2, length1, length2);
+    }
+
+    /** Merge pairs overlapping across diagonals.
+     *
+     * @param all  Pairs to merge, reordered by offset1.
+     * @return Merged pairs in order of offset1.
+     */
+    private static Shard sweep(Shard all) {
+        final int npairs = all.npairs;
+        if (npairs > 1)
+            all.sort(0, npairs - 1, false);
+
+        // Spans made so far, and whether each was absorbed by a later span.
+        final Shard      boxes = new Shard(npairs);
+        final boolean [] dead  = new boolean[npairs];
+
+        // Spans by offset2, never overlapping in text2.
+        // Spans that ended before the sweep line are removed when next overlapped.
+        final TreeMap<Integer, Integer> active = new TreeMap<Integer, Integer>();
+
+        for (int i = 0; i < npairs; i++) {
+            // Sweep line.
+            final int at = all.off1s[i];
+
+            // Note the limit of the spans.
+            int min1 = at;
+            int min2 = all.off2s[i];
+            int max1 = (min1 + all.len1s[i]);
+            int max2 = (min2 + all.len2s[i]);
+
+            // Start from an active span reaching into this span from before,
+            // otherwise from the first span starting within it.
+            Map.Entry<Integer, Integer> entry = active.floorEntry(min2);
+            if ((entry == null) || (boxes.max2(entry.getValue()) < min2))
+                entry = active.higherEntry(min2);
+
+            // Consume every span overlapping in text2, extending current spans.
+            for (; (entry != null) && (entry.getKey() <= max2); entry = active.higherEntry(entry.getKey())) {
+                final int box = entry.getValue();
+                active.remove(entry.getKey());
+
+                // Spans ending before the sweep line do not overlap in text1.
+                if (boxes.max1(box) < at)
+                    continue;
+
+                min1 = Math.min(min1, boxes.off1s[box]);
+                min2 = Math.min(min2, boxes.off2s[box]);
+                max1 = Math.max(max1, boxes.max1(box));
+                max2 = Math.max(max2, boxes.max2(box));
+                dead[box] = true;
+            }
 
-        // Grow arrays if necessary.
-        grow();
+            active.put(min2, boxes.npairs);
+            boxes.push(min1, min2, (max1 - min1), (max2 - min2));
+        }
 
-        // Record in arrays.
-        off1s [npairs] = offset1;
-        off2s [npairs] = offset2;
-        len1s [npairs] = length1;
-        len2s [npairs] = length2;
+        // Keep surviving spans, in order.
+        final Shard out = new Shard(boxes.npairs);
+        for (int box = 0; box < boxes.npairs; box++) {
+            if (dead[box] == false)
+                out.push(boxes.off1s[box], boxes.off2s[box], boxes.len1s[box], boxes.len2s[box]);
+        }
 
-        // Advance cursor.
-        npairs++;
-        assert (npairs > nclean);
+        if (out.npairs > 1)
+            out.sort(0, out.npairs - 1, false);
+        out.nclean = out.npairs;
+        return out;
     }
 
-    private void grow() {
-        if (npairs >= off1s.length) {
-            final int nlength = (off1s.length * 2);
+    /** Pairs from one thread, bucketed by diagonal. */
+    private static final class Shard {
+        public int [] off1s;
+        public int [] off2s;
+        public int [] len1s;
+        public int [] len2s;
+
+        // Pairs before nclean are sorted by diagonal and merged.
+        public int    npairs;
+        public int    nclean;
+
+        public Shard(int size) {
+            this.off1s  = new int [size];
+            this.off2s  = new int [size];
+            this.len1s  = new int [size];
+            this.len2s  = new int [size];
+            this.npairs = 0;
+            this.nclean = 0;
+        }
+
+        public int max1(int i) {
+            return off1s[i] + len1s[i];
+        }
+
+        public int max2(int i) {
+            return off2s[i] + len2s[i];
+        }
+
+        public void clear() {
+            npairs = 0;
+            nclean = 0;
+        }
+
+        /** Clear, and drop arrays grown past the start size. */
+        public void release() {
+            clear();
+            if (off1s.length > startSize) {
+                off1s = new int [startSize];
+                off2s = new int [startSize];
+                len1s = new int [startSize];
+                len2s = new int [startSize];
+            }
+        }
+
+        public void add(int offset1, int offset2, int length1, int length2) {
+            // Collapse once new pairs are numerous, relative to merged pairs.
+            if ((npairs - nclean) >= Math.max(cleanSize, nclean)) {
+                collapse();
+                assert (npairs == nclean);
+            }
+
+            push(offset1, offset2, length1, length2);
+        }
+
+        public void push(int offset1, int offset2, int length1, int length2) {
+            // Grow arrays if necessary.
+            if (npairs >= off1s.length) {
+                final int nlength = Math.max(startSize, off1s.length * 2);
+                off1s = Arrays.copyOf(off1s, nlength);
+                off2s = Arrays.copyOf(off2s, nlength);
+                len1s = Arrays.copyOf(len1s, nlength);
+                len2s = Arrays.copyOf(len2s, nlength);
+            }
+
+            // Record in arrays.
+            off1s [npairs] = offset1;
+            off2s [npairs] = offset2;
+            len1s [npairs] = length1;
+            len2s [npairs] = length2;
+
+            // Advance cursor.
+            npairs++;
+        }
+
+        public void append(Shard other) {
+            for (int i = 0; i < other.npairs; i++)
+                push(other.off1s[i], other.off2s[i], other.len1s[i], other.len2s[i]);
+        }
+
+        /** Sort new pairs by diagonal, and merge them forward with sorted pairs. */
+        public void collapse() {
+            // Verify internal consistency.
+            assert (nclean >= 0);
+            assert (npairs >= nclean);
+            assert (npairs <= off1s.length);
+
+            // Check that collapse is actually necessary.
+            if (npairs <= nclean)
+                return;
+
+            // Sort only new pairs.
+            sort(nclean, npairs - 1, true);
+
+            final int [] _off1s = new int [off1s.length];
+            final int [] _off2s = new int [off1s.length];
+            final int [] _len1s = new int [off1s.length];
+            final int [] _len2s = new int [off1s.length];
+
+            // Merge sorted and new pairs going forward.
+            int i = 0;
+            int j = nclean;
+            int o = 0;
+
+            while ((i < nclean) || (j < npairs)) {
+                final int k;
+                if ((j >= npairs) || ((i < nclean) && less(i, j, true)))
+                    k = i++;
+                else
+                    k = j++;
+
+                final int min1 = off1s[k];
+                final int min2 = off2s[k];
+                final int max1 = (min1 + len1s[k]);
+                final int max2 = (min2 + len2s[k]);
+
+                // Extend the last run if on the same diagonal, and overlapping.
+                // It cannot start later than this pair, by the sort.
+                if (o > 0) {
+                    final int min1o = _off1s[o - 1];
+                    final int min2o = _off2s[o - 1];
+                    final int max1o = (min1o + _len1s[o - 1]);
+                    final int max2o = (min2o + _len2s[o - 1]);
+
+                    if (((min2 - min1) == (min2o - min1o)) && (min1 <= max1o) && (min2 <= max2o)) {
+                        _len1s[o - 1] = (Math.max(max1, max1o) - min1o);
+                        _len2s[o - 1] = (Math.max(max2, max2o) - min2o);
+                        continue;
+                    }
+                }
 
-            // Allocate all arrays before assigning any.
-            // If an allocation fails, they remain equally unassigned.
-            final int [] _off1s = Arrays.copyOf(this.off1s, nlength);
-            final int [] _off2s = Arrays.copyOf(this.off2s, nlength);
-            final int [] _len1s = Arrays.copyOf(this.len1s, nlength);
-            final int [] _len2s = Arrays.copyOf(this.len2s, nlength);
+                _off1s[o] = min1;
+                _off2s[o] = min2;
+                _len1s[o] = (max1 - min1);
+                _len2s[o] = (max2 - min2);
+                o++;
+            }
 
-            // Assign arrays without risk of exceptions.
             off1s = _off1s;
             off2s = _off2s;
             len1s = _len1s;
             len2s = _len2s;
+
+            // Truncate arrays post-merge.
+            npairs = o;
+            nclean = o;
         }
-    }
 
-    private void quicksort(int i1, int i2) {
-        // Pivot element is the middle of the array.
-        int pivot = (i1 + ((i2 - i1) >> 1));
+        public void sort(int i1, int i2, boolean diagonal) {
+            // Pivot element is the middle of the array.
+            int pivot = (i1 + ((i2 - i1) >> 1));
 
-        int i = i1;
-        int j = i2;
+            int i = i1;
+            int j = i2;
 
-        while (i <= j) {
-            while (less(i, pivot))
-                i++;
+            while (i <= j) {
+                while (less(i, pivot, diagonal))
+                    i++;
 
-            while (more(j, pivot))
-                j--;
+                while (less(pivot, j, diagonal))
+                    j--;
 
-            if (i <= j) {
-                if (i != j) {
-                    swap(i, j);
+                if (i <= j) {
+                    if (i != j) {
+                        swap(i, j);
 
-                    if (pivot == i) pivot = j;
-                    else
-                    if (pivot == j) pivot = i;
-                }
+                        if (pivot == i) pivot = j;
+                        else
+                        if (pivot == j) pivot = i;
+                    }
 
-                i++;
-                j--;
+                    i++;
+                    j--;
+                }
             }
-        }
-
-        if (i1 <  j) quicksort(i1, j);
-        if (i  < i2) quicksort(i, i2);
-    }
 
-    private boolean less(int a, int b) {
-        final int cmpO1 = off1s[a] - off1s[b];
-        if (cmpO1 < 0) return true;
-        if (cmpO1 > 0) return false;
-        assert (off1s[a] == off1s[b]);
+            if (i1 <  j) sort(i1, j, diagonal);
+            if (i  < i2) sort(i, i2, diagonal);
+        }
 
-        final int cmpO2 = off2s[a] - off2s[b];
-        if (cmpO2 < 0) return true;
-        if (cmpO2 > 0) return false;
-        assert (off2s[a] == off2s[b]);
+        private boolean less(int a, int b, boolean diagonal) {
+            if (diagonal) {
+                final int diagA = off2s[a] - off1s[a];
+                final int diagB = off2s[b] - off1s[b];
+                if (diagA != diagB)
+                    return (diagA < diagB);
+            }
 
-        // Note that order is reversed for lengths,
-        // i.e. longer spans are sorted first.
+            if (off1s[a] != off1s[b])
+                return (off1s[a] < off1s[b]);
 
-        final int cmpL1 = len1s[b] - len1s[a];
-        if (cmpL1 < 0) return true;
-        if (cmpL1 > 0) return false;
-        assert (len1s[a] == len1s[b]);
+            if (off2s[a] != off2s[b])
+                return (off2s[a] < off2s[b]);
 
-        final int cmpL2 = len2s[b] - len2s[a];
-        if (cmpL2 < 0) return true;
-        if (cmpL2 > 0) return false;
-        assert (len2s[a] == len2s[b]);
+            // Note that order is reversed for lengths,
+            // i.e. longer spans are sorted first.
 
-        return false;
-    }
+            if (len1s[a] != len1s[b])
+                return (len1s[a] > len1s[b]);
 
-    private boolean more(int a, int b) {
-        return less(b, a);
-    }
+            return (len2s[a] > len2s[b]);
+        }
 
-    private void swap(int a, int b) {
-        if (a == b)
-            return;
+        private void swap(int a, int b) {
+            if (a == b)
+                return;
 
-        final int off1 = off1s[a];
-        final int off2 = off2s[a];
-        final int len1 = len1s[a];
-        final int len2 = len2s[a];
+            final int off1 = off1s[a];
+            final int off2 = off2s[a];
+            final int len1 = len1s[a];
+            final int len2 = len2s[a];
 
-        off1s[a] = off1s[b];
-        off2s[a] = off2s[b];
-        len1s[a] = len1s[b];
-        len2s[a] = len2s[b];
+            off1s[a] = off1s[b];
+            off2s[a] = off2s[b];
+            len1s[a] = len1s[b];
+            len2s[a] = len2s[b];
 
-        off1s[b] = off1;
-        off2s[b] = off2;
-        len1s[b] = len1;
-        len2s[b] = len2;
+            off1s[b] = off1;
+            off2s[b] = off2;
+            len1s[b] = len1;
+            len2s[b] = len2;
+        }
     }
 }
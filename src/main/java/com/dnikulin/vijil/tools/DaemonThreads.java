@@ -0,0 +1,91 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.tools;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Thread factory for named daemon worker threads.
+ *
+ * Daemon threads never keep the JVM alive, so a pool that is not shut
+ * down does not hang the process on exit.
+ *
+ * @author Dmitri Nikulin
+ */
+public final class DaemonThreads implements ThreadFactory {
+    private final String        name;
+    private final AtomicInteger count;
+
+    public DaemonThreads(String name) {
+        this.name  = name;
+        this.count = new AtomicInteger(0);
+    }
+
+    @Override
+    public Thread newThread(Runnable task) {
+        final Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /** Create a fixed pool of daemon threads.
+     *
+     * @param name      Name prefix for the threads.
+     * @param nthreads  Number of threads.
+     */
+    public static ExecutorService pool(String name, int nthreads) {
+        return Executors.newFixedThreadPool(nthreads, new DaemonThreads(name));
+    }
+
+    /** Wait for a task to finish, even if interrupted.
+     *
+     * An interrupt while waiting is recorded, and restored on this
+     * thread once the task has finished.
+     *
+     * @param task  Task to wait for.
+     * @return      Result of the task.
+     */
+    public static <T> T join(Future<T> task) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            // Restore interrupt status for the caller.
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Number of processors available to the JVM. */
+    public static int processors() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
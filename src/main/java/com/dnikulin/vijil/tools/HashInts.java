@@ -26,12 +26,15 @@
 package com.dnikulin.vijil.tools;
 
 public final class HashInts {
+    /** Default seed. */
+    public static final int seed = 0xbcaa747;
+
     public static int hash(int[] data) {
         return hash(data, 0, data.length);
     }
 
     public static int hash(int[] data, int at, int len) {
-        return hash(data, at, len, 0xbcaa747);
+        return hash(data, at, len, seed);
     }
 
     public static int hash(int[] data, int at, int len, int seed) {
@@ -41,19 +44,31 @@ public final class HashInts {
 
         int h = seed;
 
-        for (int i = 0; i < len; i++) {
-            int k = data[at + i];
+        for (int i = 0; i < len; i++)
+            h = round(h, data[at + i]);
+
+        return fmix(h);
+    }
 
-            k *= 0xcc9e2d51;
-            k  = Integer.rotateLeft(k, 15);
-            k *= 0x1b873593;
+    /** Mix one value into a running hash. */
+    public static int round(int h, int k) {
+        return combine(h, scramble(k));
+    }
 
-            h ^= k;
-            h  = Integer.rotateLeft(h, 13);
-            h  = ((h * 5) + 0xe6546b64);
-        }
+    /** Scramble one value, the first half of round(). */
+    public static int scramble(int k) {
+        k *= 0xcc9e2d51;
+        k  = Integer.rotateLeft(k, 15);
+        k *= 0x1b873593;
+        return k;
+    }
 
-        return fmix(h);
+    /** Mix one scrambled value into a running hash, the second half of round(). */
+    public static int combine(int h, int k) {
+        h ^= k;
+        h  = Integer.rotateLeft(h, 13);
+        h  = ((h * 5) + 0xe6546b64);
+        return h;
     }
 
     public static int fmix(int h) {
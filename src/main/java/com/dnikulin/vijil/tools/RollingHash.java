@@ -0,0 +1,114 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.tools;
+
+/** Rolling hash of every fixed-length window of an int array.
+ *
+ * Each value is first scrambled as in HashInts, with the seed mixed in,
+ * then the window is hashed as a polynomial of the scrambled values in
+ * 32-bit arithmetic. The polynomial can be rolled along the array in O(1)
+ * per window, and the result is finished with HashInts.fmix(). Hashing
+ * every window of n values therefore costs O(n) rather than O(n * window).
+ *
+ * Hashes are not compatible with HashInts.
+ *
+ * @author Dmitri Nikulin
+ */
+public final class RollingHash {
+    /** Default seed, as for HashInts. */
+    public static final int seed = HashInts.seed;
+
+    /** Odd multiplier of the polynomial. */
+    public static final int base = 0x9e3779b1;
+
+    public static int hash(int[] data, int at, int len) {
+        return hash(data, at, len, seed);
+    }
+
+    /** Hash one window, equal to the corresponding result of hashes(). */
+    public static int hash(int[] data, int at, int len, int seed) {
+        assert (at  >= 0);
+        assert (len >  0);
+        assert ((at + len) <= data.length);
+
+        int h = 0;
+        for (int i = 0; i < len; i++)
+            h = (h * base) + premix(data[at + i], seed);
+        return HashInts.fmix(h);
+    }
+
+    public static int[] hashes(int[] data, int at, int len, int window) {
+        return hashes(data, at, len, window, seed);
+    }
+
+    /** Hash every window of a range.
+     *
+     * @param data    Array to hash.
+     * @param at      Start of the range.
+     * @param len     Length of the range.
+     * @param window  Length of each window.
+     * @param seed    Seed to mix into each value.
+     * @return        Hash of the window starting at each offset of the range,
+     *                empty if the range is shorter than a window.
+     */
+    public static int[] hashes(int[] data, int at, int len, int window, int seed) {
+        assert (at     >= 0);
+        assert (len    >= 0);
+        assert (window >  0);
+        assert ((at + len) <= data.length);
+
+        final int    count  = Math.max(0, len + 1 - window);
+        final int [] hashes = new int[count];
+        if (count == 0)
+            return hashes;
+
+        // Scramble each value once.
+        final int [] mixed = new int[len];
+        for (int i = 0; i < len; i++)
+            mixed[i] = premix(data[at + i], seed);
+
+        // Calculate the multiplier of the oldest value in a window.
+        int top = 1;
+        for (int i = 1; i < window; i++)
+            top *= base;
+
+        // Hash the first window in full.
+        int h = 0;
+        for (int i = 0; i < window; i++)
+            h = (h * base) + mixed[i];
+        hashes[0] = HashInts.fmix(h);
+
+        // Roll along, removing the oldest value and adding the newest.
+        for (int i = 1; i < count; i++) {
+            h = ((h - (mixed[i - 1] * top)) * base) + mixed[i + window - 1];
+            hashes[i] = HashInts.fmix(h);
+        }
+
+        return hashes;
+    }
+
+    /** Scramble one value with a seed, as in the HashInts inner loop. */
+    public static int premix(int k, int seed) {
+        return HashInts.scramble(k ^ seed);
+    }
+
+    private RollingHash() {}
+}
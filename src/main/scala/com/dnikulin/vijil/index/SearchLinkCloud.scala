@@ -42,9 +42,13 @@ object SearchLinkCloud {
     return buffer.result
   }
 
+  // Only the smaller text is indexed, so size the bin table for it.
+  private def indexed(text1: TextModel, text2: TextModel): Long =
+    (text1.size min text2.size).toLong
+
   def apply(text1: TextModel, text2: TextModel, size: Int): Array[ModelSpanPair] =
-    apply(text1, text2, new Mindex(size))
+    apply(text1, text2, new Mindex(size, indexed(text1, text2)))
 
   def apply(text1: TextModel, text2: TextModel, model: StencilModel): Array[ModelSpanPair] =
-    apply(text1, text2, new Stencils(model))
+    apply(text1, text2, new Stencils(model, indexed(text1, text2)))
 }
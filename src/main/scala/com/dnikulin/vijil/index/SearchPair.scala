@@ -20,29 +20,40 @@
 
 package com.dnikulin.vijil.index
 
+import scala.collection.JavaConversions._
+
 import com.dnikulin.vijil.model.TextModel
 import com.dnikulin.vijil.result.LinkSpanGraph
 import com.dnikulin.vijil.result.LinkSpanSet
 import com.dnikulin.vijil.result.SpanDomain
 
 object SearchPair {
+  // Each search worker builds its own linked span graph.
+  private object GraphFactory extends MatchVisitorFactory[LinkSpanGraph] {
+    override def make(): LinkSpanGraph =
+      new LinkSpanGraph(SpanDomain.SYMBOLS)
+  }
+
   def apply(texts1: Seq[TextModel], texts2: Seq[TextModel], index: MindexCore): Array[LinkSpanSet] = {
-    // Populate index.
+    // Populate index in text order, keeping each bin in text order for
+    // the eliminations in search, then compact it for searching.
     texts2.foreach(index.add)
+    index.freeze()
 
-    // Create linked span graph.
-    val buffer = new LinkSpanGraph(SpanDomain.SYMBOLS)
+    // Search index in parallel.
+    val graphs = index.searchAll(texts1.toArray, GraphFactory)
 
-    // Search index.
-    texts1.foreach(index.search(_, buffer))
-
-    // Return linked spans.
-    return buffer.result
+    // Merge and return linked spans.
+    return LinkSpanGraph.merge(graphs.flatMap(_.result).toArray)
   }
 
   def apply(texts1: Seq[TextModel], texts2: Seq[TextModel], size: Int): Array[LinkSpanSet] =
-    apply(texts1, texts2, new Mindex(size))
+    apply(texts1, texts2, new Mindex(size, indexed(texts2)))
 
   def apply(texts1: Seq[TextModel], texts2: Seq[TextModel], model: StencilModel): Array[LinkSpanSet] =
-    apply(texts1, texts2, new Stencils(model))
+    apply(texts1, texts2, new Stencils(model, indexed(texts2)))
+
+  // Size the bin table for every text that will be indexed.
+  private def indexed(texts: Seq[TextModel]): Long =
+    texts.map(_.size.toLong).sum
 }
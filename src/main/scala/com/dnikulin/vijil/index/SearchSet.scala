@@ -23,7 +23,9 @@ package com.dnikulin.vijil.index
 import com.dnikulin.vijil.model.TextModel
 import com.dnikulin.vijil.result.LinkSpanGraph
 import com.dnikulin.vijil.result.LinkSpanSet
+import com.dnikulin.vijil.result.ShardedCollector
 import com.dnikulin.vijil.result.SpanDomain
+import com.dnikulin.vijil.tools.DaemonThreads
 
 object SearchSet {
   def apply(texts: Seq[TextModel], index: MindexCore): Array[LinkSpanSet] = {
@@ -52,9 +54,32 @@ object SearchSet {
     return buffer.result
   }
 
-  def apply(texts: Seq[TextModel], size: Int): Array[LinkSpanSet] =
-    apply(texts, new Mindex(size))
+  def apply(texts: Seq[TextModel], size: Int): Array[LinkSpanSet] = {
+    // Report maximal runs, sparing the graph from merging overlapping grams.
+    val index = new Mindex(size, indexed(texts))
+    index.setExtend(true)
+    return apply(texts, index)
+  }
+
+  def apply(texts: Seq[TextModel], model: StencilModel): Array[LinkSpanSet] = {
+    // Without several processors, the online index is faster.
+    if (DaemonThreads.processors < 2)
+      return apply(texts, new Stencils(model, indexed(texts)))
+
+    // Match all texts at once in parallel, buffering matches per thread.
+    // Matches come in both directions, which the graph merges.
+    val buffer = new ShardedCollector
+    val engine = new Stencilin()
+    try {
+      engine.search(texts.toArray, model, buffer)
+    } finally {
+      engine.close()
+    }
+
+    return buffer.linkSpans
+  }
 
-  def apply(texts: Seq[TextModel], model: StencilModel): Array[LinkSpanSet] =
-    apply(texts, new Stencils(model))
+  // Size the bin table for every text that will be indexed.
+  private def indexed(texts: Seq[TextModel]): Long =
+    texts.map(_.size.toLong).sum
 }
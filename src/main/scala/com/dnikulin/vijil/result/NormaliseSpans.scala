@@ -21,33 +21,46 @@
 package com.dnikulin.vijil.result
 
 import com.dnikulin.vijil.model.TextModel
+import com.dnikulin.vijil.tools.DaemonThreads
 
 object NormaliseSpans {
   val domain = SpanDomain.CHARACTERS
 
   def apply(texts: Seq[TextModel], sets: Array[LinkSpanSet]): Array[LinkSpanSet] = {
-    // Normalise from symbol domain to character domain.
-    val mapper = new LinkSpanGraph(domain)
-    mapper.normalise(sets, texts.toArray)
-    return mapper.result
+    // Normalise from symbol domain to character domain,
+    // in parallel over ranges of sets.
+    LinkSpanGraph.normaliseSets(sets, texts.toArray, DaemonThreads.processors)
   }
 
-  def apply(texts: Seq[TextModel], pairs: Array[ModelSpanPair]): Array[ModelSpanPair] =
-    pairs.flatMap(apply(texts, _))
+  def apply(texts: Seq[TextModel], pairs: Array[ModelSpanPair]): Array[ModelSpanPair] = {
+    // Index texts by hash once for all pairs.
+    val byHash = index(texts)
+    pairs.flatMap(pair => normalise(byHash, pair))
+  }
+
+  def apply(texts: Seq[TextModel], pair: ModelSpanPair): Option[ModelSpanPair] =
+    normalise(index(texts), pair)
 
-  def apply(texts: Seq[TextModel], pair: ModelSpanPair): Option[ModelSpanPair] = {
-    for (span1 <- apply(texts, pair.span1);
-         span2 <- apply(texts, pair.span2))
+  def apply(texts: Seq[TextModel], span: ModelSpan): Option[ModelSpan] =
+    normalise(index(texts), span)
+
+  private def normalise(byHash: Map[String, TextModel], pair: ModelSpanPair): Option[ModelSpanPair] = {
+    for (span1 <- normalise(byHash, pair.span1);
+         span2 <- normalise(byHash, pair.span2))
       yield new ModelSpanPair(span1, span2, pair.code)
   }
 
-  def apply(texts: Seq[TextModel], span: ModelSpan): Option[ModelSpan] = {
+  private def normalise(byHash: Map[String, TextModel], span: ModelSpan): Option[ModelSpan] = {
     assert(span.domain == SpanDomain.SYMBOLS)
-    for (text <- texts.find(_.hash == span.hash)) yield {
+    for (text <- byHash.get(span.hash)) yield {
       val cmin = text.minChar(span.min)
       val cmax = text.maxChar(span.max - 1)
       val clen = (cmax - cmin)
       new ModelSpan(span.hash, domain, span.code, cmin, clen)
     }
   }
+
+  // Keep the first text for each hash, as find() did.
+  private def index(texts: Seq[TextModel]): Map[String, TextModel] =
+    texts.reverse.map(text => (text.hash, text)).toMap
 }
@@ -0,0 +1,105 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.model.TextModel;
+
+public class FMIndexTest {
+    @Test
+    public void testCountLocate() {
+        final Random random = new Random(13);
+
+        final TextModel [] texts = new TextModel[4];
+        for (int itext = 0; itext < texts.length; itext++) {
+            final int [] lemmas = new int[random.nextInt(200) + 1];
+            for (int i = 0; i < lemmas.length; i++)
+                lemmas[i] = (random.nextInt(5) - 1) * 1000003;
+            texts[itext] = new TextModel("text" + itext, lemmas);
+        }
+
+        final int [] rates = {1, 7, 32};
+        for (int rate : rates) {
+            final FMIndex index = new FMIndex(texts, rate);
+
+            for (int iter = 0; iter < 200; iter++) {
+                final int [] pattern = new int[random.nextInt(6) + 1];
+                for (int i = 0; i < pattern.length; i++)
+                    pattern[i] = (random.nextInt(6) - 1) * 1000003;
+
+                // Brute force tape offsets of every occurrence.
+                final List<Integer> expect = new ArrayList<Integer>();
+                int start = 0;
+                for (TextModel text : texts) {
+                    for (int i = 0; (i + pattern.length) <= text.size; i++) {
+                        int j = 0;
+                        while ((j < pattern.length) && (text.symbol(i + j) == pattern[j]))
+                            j++;
+                        if (j == pattern.length)
+                            expect.add(start + i);
+                    }
+                    start += text.size + 1;
+                }
+
+                final int [] hits = index.locate(pattern, 0, pattern.length);
+                Arrays.sort(hits);
+
+                final int [] expected = new int[expect.size()];
+                for (int i = 0; i < expected.length; i++)
+                    expected[i] = expect.get(i);
+
+                assertEquals(expected.length, index.count(pattern, 0, pattern.length));
+                assertArrayEquals(expected, hits);
+            }
+        }
+    }
+
+    @Test
+    public void testSearch() {
+        final TextModel    text1 = MindexTest.makeBody("hash1");
+        final TextModel    text2 = MindexTest.makeBody("hash2");
+        final TextModel [] texts = new TextModel[]{text1, text2};
+
+        final FMIndex index = new FMIndex(texts);
+
+        // Only the other copy of the passage is reported.
+        final List<String> hits = new ArrayList<String>();
+        index.search(text1, 3, 10, new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                assertSame(text1, ntext1);
+                hits.add(ntext2.hash + " " + offset1 + " " + offset2 + " " + length1 + " " + length2);
+            }
+        });
+
+        assertEquals(Arrays.asList("hash2 3 3 10 10"), hits);
+    }
+}
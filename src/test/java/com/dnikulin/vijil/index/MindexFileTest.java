@@ -0,0 +1,167 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import static com.dnikulin.vijil.index.MindexTest.countMatches;
+import static com.dnikulin.vijil.index.MindexTest.makeBody;
+import static com.dnikulin.vijil.index.MindexTest.nentries;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.model.TextModel;
+
+public class MindexFileTest {
+    @Test
+    public void testWriteOpenMindex() throws IOException {
+        final int ncopies = 4;
+        final TextModel[] texts2 = new TextModel[ncopies];
+        for (int i = 0; i < ncopies; i++)
+            texts2[i] = makeBody("hash" + i);
+
+        final Mindex index = new Mindex(6);
+        for (TextModel text : texts2)
+            index.add(text);
+
+        final File file = File.createTempFile("mindex", ".vjmx");
+        file.deleteOnExit();
+
+        MindexFile.write(index, file);
+        final MindexCore index2 = MindexFile.open(file, texts2);
+
+        assertTrue(index2 instanceof Mindex);
+        assertTrue(index2.isFrozen());
+        assertEquals(6, ((Mindex) index2).matchLength);
+        assertEquals(index.bins(), index2.bins());
+        assertEquals((long) ncopies * nentries, index2.entries());
+
+        final int counts[] = countMatches(index2, makeBody());
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies, counts[i]);
+    }
+
+    @Test
+    public void testWriteOpenConcurrent() throws IOException, InterruptedException {
+        final int nthreads = 4;
+        final int ncopies  = 64;
+        final TextModel[] texts2 = new TextModel[nthreads * ncopies];
+        for (int i = 0; i < texts2.length; i++)
+            texts2[i] = makeBody("hash" + i);
+
+        // Add from many threads until commits land out of text order.
+        Mindex index = null;
+        for (int attempt = 0; (attempt < 20) && ((index == null) || index.ordered); attempt++) {
+            final Mindex index1 = new Mindex(6);
+            final Thread[] threads = new Thread[nthreads];
+            for (int i = 0; i < nthreads; i++) {
+                final int ithread = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = ithread; j < texts2.length; j += nthreads)
+                            index1.add(texts2[j]);
+                    }
+                };
+                threads[i].start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+            index = index1;
+        }
+
+        final File file = File.createTempFile("mindex", ".vjmx");
+        file.deleteOnExit();
+
+        MindexFile.write(index, file);
+        final MindexCore index2 = MindexFile.open(file, texts2);
+
+        // Bins out of text order must not be searched as if ordered.
+        assertEquals(index.ordered, index2.ordered);
+
+        final int counts[] = countMatches(index2, makeBody());
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(texts2.length, counts[i]);
+    }
+
+    @Test
+    public void testWriteRemovedShortText() throws IOException {
+        final TextModel short1 = new TextModel("short", new int[]{1, 2, 3});
+        final TextModel[] texts2 = new TextModel[]{makeBody("hash0"), short1, makeBody("hash1")};
+
+        final Mindex index = new Mindex(6);
+        for (TextModel text : texts2)
+            index.add(text);
+
+        // Too short to leave entries, but still leaves a tombstone.
+        assertTrue(index.remove(short1));
+        assertEquals(0, index.removedEntries());
+
+        final File file = File.createTempFile("mindex", ".vjmx");
+        file.deleteOnExit();
+
+        MindexFile.write(index, file);
+        final MindexCore index2 = MindexFile.open(file, texts2);
+
+        final int counts[] = countMatches(index2, makeBody());
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(2, counts[i]);
+    }
+
+    @Test
+    public void testWriteOpenStencils() throws IOException {
+        final int[] offsets = new int[]{0, 1, 2, 3, 0, 1, 2, 4};
+        final StencilModel model = new StencilModel(4, offsets, false);
+
+        final TextModel[] texts2 = new TextModel[]{makeBody("hash0"), makeBody("hash1")};
+        final Stencils index = new Stencils(model);
+        for (TextModel text : texts2)
+            index.add(text);
+
+        final File file = File.createTempFile("stencils", ".vjmx");
+        file.deleteOnExit();
+
+        MindexFile.write(index, file);
+        final MindexCore index2 = MindexFile.open(file, texts2);
+
+        assertTrue(index2 instanceof Stencils);
+        assertEquals(index.entries(), index2.entries());
+
+        final TextModel text1 = makeBody();
+        assertEquals(count(index, text1), count(index2, text1));
+        assertTrue(count(index2, text1) > 0);
+    }
+
+    private static int count(MindexCore index, TextModel text1) {
+        final int[] count = new int[1];
+        index.search(text1, new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+}
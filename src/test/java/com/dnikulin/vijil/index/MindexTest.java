@@ -22,7 +22,11 @@ package com.dnikulin.vijil.index;
 
 import com.dnikulin.vijil.model.TextModelBuilder;
 import com.dnikulin.vijil.model.TextModel;
+import com.dnikulin.vijil.result.CountMatchVisitor;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import org.junit.Test;
 
@@ -61,7 +65,376 @@ public class MindexTest {
             assertTrue(offsets[i]);
     }
 
+    @Test
+    public void testExtendMindex() {
+        final TextModel text1 = makeBody();
+        final Mindex   index = new Mindex(6);
+        index.setExtend(true);
+
+        // Break one copy in the middle, leaving two runs.
+        final int [] lemmas = new int[nlemmas];
+        for (int i = 0; i < nlemmas; i++)
+            lemmas[i] = text1.symbol(i);
+        lemmas[8] = -1;
+
+        final TextModel text2 = makeBody("hash2");
+        final TextModel text3 = new TextModel("hash3", lemmas);
+        index.add(text2);
+        index.add(text3);
+
+        final List<String> runs = new ArrayList<String>();
+        index.search(text1, new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                assertEquals(length1, length2);
+                runs.add(ntext2.hash + " " + offset1 + " " + offset2 + " " + length1);
+            }
+        });
+
+        assertEquals(Arrays.asList("hash2 0 0 17", "hash3 0 0 8", "hash3 9 9 8"), runs);
+    }
+
+    @Test
+    public void testRehashMindex() {
+        final TextModel text1 = makeBody();
+        final Mindex   index = new Mindex(6);
+        final int      bins0 = index.bins();
+
+        // Add enough copies to force the bin table to grow.
+        final int ncopies = (MindexCore.minbins * MindexCore.maxload / nentries) + 1;
+        for (int i = 0; i < ncopies; i++)
+            index.add(makeBody());
+
+        assertTrue(index.bins() > bins0);
+        assertEquals((long) ncopies * nentries, index.entries());
+
+        final int counts[] = countMatches(index, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies, counts[i]);
+    }
+
+    @Test
+    public void testFreezeMindex() {
+        final TextModel text1 = makeBody();
+        final Mindex   index = new Mindex(6);
+
+        final int ncopies = 5;
+        for (int i = 0; i < ncopies; i++)
+            index.add(makeBody());
+
+        index.freeze();
+        assertTrue(index.isFrozen());
+        assertEquals((long) ncopies * nentries, index.entries());
+
+        final int counts[] = countMatches(index, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies, counts[i]);
+
+        try {
+            index.add(makeBody());
+            assertTrue(false);
+        } catch (IllegalStateException ex) {
+            // Expected.
+        }
+
+        index.clear();
+        assertFalse(index.isFrozen());
+        index.add(makeBody());
+        assertEquals(1, countMatches(index, text1)[0]);
+    }
+
+    @Test
+    public void testOffHeapMindex() {
+        final TextModel text1 = makeBody();
+        final Mindex   index = new Mindex(6, 0, true);
+
+        // Add enough copies to chain several blocks per bin.
+        final int ncopies = (OffHeapBins.nslots * 2) + 3;
+        for (int i = 0; i < ncopies; i++)
+            index.add(makeBody());
+
+        int counts[] = countMatches(index, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies, counts[i]);
+
+        index.freeze();
+        assertTrue(index.isFrozen());
+
+        counts = countMatches(index, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies, counts[i]);
+
+        index.clear();
+        index.add(makeBody());
+        assertEquals(1, countMatches(index, text1)[0]);
+    }
+
+    @Test
+    public void testCompressMindex() {
+        final TextModel text1 = makeBody();
+        final Mindex   index = new Mindex(6);
+
+        final int ncopies = 7;
+        for (int i = 0; i < ncopies; i++)
+            index.add(makeBody("hash" + i));
+
+        // Removed texts are dropped by compression.
+        assertTrue(index.remove(makeBody("hash0")));
+        index.compress();
+        assertTrue(index.isCompressed());
+        assertTrue(index.isFrozen());
+        assertEquals((long) (ncopies - 1) * nentries, index.entries());
+        assertEquals(0, index.removedEntries());
+        assertTrue(index.compressedBytes() < (index.entries() * 8));
+
+        int counts[] = countMatches(index, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies - 1, counts[i]);
+
+        // Removing from a compressed index still hides the text.
+        assertTrue(index.remove(makeBody("hash1")));
+        counts = countMatches(index, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies - 2, counts[i]);
+
+        index.clear();
+        assertFalse(index.isCompressed());
+        index.add(makeBody());
+        assertEquals(1, countMatches(index, text1)[0]);
+    }
+
+    @Test
+    public void testFingerprintMindex() {
+        final TextModel text1 = makeBody();
+        final int     ncopies = 5;
+
+        final Mindex index1 = new Mindex(6, 0, false, true);
+        final Mindex index2 = new Mindex(6, 0, true,  true);
+        for (int i = 0; i < ncopies; i++) {
+            index1.add(makeBody("hash" + i));
+            index2.add(makeBody("hash" + i));
+        }
+
+        index2.setVerify(false);
+        index1.freeze();
+        index2.compress();
+
+        // Heap, frozen and compressed fingerprints must all match.
+        final MindexCore[] indexes = {index1, index2};
+        for (MindexCore index : indexes) {
+            final int counts[] = countMatches(index, text1);
+            for (int i = 0; i < counts.length; i++)
+                assertEquals(ncopies, counts[i]);
+        }
+
+        // A different text must not match by fingerprint alone.
+        final int lemmas[] = new int[nlemmas];
+        for (int i = 0; i < nlemmas; i++)
+            lemmas[i] = (i * 7) + 1000;
+        final int counts[] = countMatches(index2, new TextModel("other", lemmas));
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(0, counts[i]);
+    }
+
+    @Test
+    public void testCapsMindex() {
+        final TextModel text1 = makeBody();
+        final int     ncopies = 10;
+        final int     cap     = 3;
+
+        // Build cap keeps only the first entries of each bin.
+        final Mindex index1 = new Mindex(6);
+        index1.setBuildCap(cap);
+        for (int i = 0; i < ncopies; i++)
+            index1.add(makeBody());
+
+        assertEquals((long) cap * nentries, index1.entries());
+        assertEquals((long) (ncopies - cap) * nentries, index1.stoppedEntries());
+
+        int counts[] = countMatches(index1, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(cap, counts[i]);
+
+        // Query cap skips grams with too many candidates.
+        final Mindex index2 = new Mindex(6);
+        for (int i = 0; i < ncopies; i++)
+            index2.add(makeBody());
+
+        index2.setQueryCap(ncopies - 1);
+        counts = countMatches(index2, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(0, counts[i]);
+        assertEquals(nentries, index2.suppressedGrams());
+
+        index2.setQueryCap(ncopies);
+        counts = countMatches(index2, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies, counts[i]);
+        assertEquals(nentries, index2.suppressedGrams());
+    }
+
+    @Test
+    public void testRemoveMindex() {
+        final TextModel text1 = makeBody();
+        final Mindex   index = new Mindex(6);
+
+        // Give each text its own hash so each can be removed.
+        final int ncopies = 6;
+        final TextModel[] texts2 = new TextModel[ncopies];
+        for (int i = 0; i < ncopies; i++) {
+            texts2[i] = makeBody("hash" + i);
+            index.add(texts2[i]);
+        }
+
+        // Removing one text leaves a tombstone.
+        assertTrue(index.remove(texts2[0]));
+        assertFalse(index.remove(texts2[0]));
+        assertEquals(nentries, index.removedEntries());
+        assertEquals(ncopies - 1, countMatches(index, text1)[0]);
+
+        // Removing another leaves a second tombstone until compaction.
+        index.freeze();
+        assertTrue(index.remove(texts2[1]));
+        assertEquals(2 * nentries, index.removedEntries());
+        index.compact();
+        assertEquals(0, index.removedEntries());
+        assertEquals((long) (ncopies - 2) * nentries, index.entries());
+        assertTrue(index.isFrozen());
+
+        final int counts[] = countMatches(index, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(ncopies - 2, counts[i]);
+    }
+
+    @Test
+    public void testRemoveDuplicateMindex() {
+        final TextModel text1 = makeBody();
+        final Mindex   index = new Mindex(6);
+
+        // Texts with the same hash are all removed together.
+        final int ncopies = 2;
+        final int nothers = 7;
+        for (int i = 0; i < ncopies; i++)
+            index.add(makeBody("same"));
+        for (int i = 0; i < nothers; i++)
+            index.add(makeBody("other" + i));
+
+        assertTrue(index.remove(makeBody("same")));
+        assertFalse(index.remove(makeBody("same")));
+        assertEquals((long) ncopies * nentries, index.removedEntries());
+        assertEquals(nothers, countMatches(index, text1)[0]);
+
+        // Compaction keeps the remaining texts removable.
+        index.compact();
+        assertTrue(index.remove(makeBody("other0")));
+        assertEquals(nothers - 1, countMatches(index, text1)[0]);
+    }
+
+    @Test
+    public void testConcurrentMindex() throws InterruptedException {
+        final TextModel text1 = makeBody();
+        final Mindex   index = new Mindex(6);
+
+        // Add from many threads, enough to force rehashing during adds.
+        final int nthreads = 8;
+        final int ncopies  = (MindexCore.minbins * MindexCore.maxload / nentries / nthreads) + 1;
+
+        final Thread[] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < ncopies; j++)
+                        index.add(makeBody());
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals((long) nthreads * ncopies * nentries, index.entries());
+
+        final int counts[] = countMatches(index, text1);
+        for (int i = 0; i < counts.length; i++)
+            assertEquals(nthreads * ncopies, counts[i]);
+    }
+
+    @Test
+    public void testSearchAllMindex() {
+        final Mindex index = new Mindex(6);
+
+        final int ncopies = 3;
+        for (int i = 0; i < ncopies; i++)
+            index.add(makeBody());
+        index.freeze();
+
+        final TextModel[] queries = new TextModel[20];
+        for (int i = 0; i < queries.length; i++)
+            queries[i] = makeBody();
+
+        final List<CountMatchVisitor> visitors = index.searchAll(queries, new MatchVisitorFactory<CountMatchVisitor>() {
+            @Override
+            public CountMatchVisitor make() {
+                return new CountMatchVisitor();
+            }
+        });
+
+        int total = 0;
+        for (CountMatchVisitor visitor : visitors)
+            total += visitor.count.get();
+
+        assertEquals(queries.length * ncopies * nentries, total);
+    }
+
+    @Test
+    public void testSearchAllInterrupted() {
+        final Mindex index = new Mindex(6);
+        index.add(makeBody());
+        index.freeze();
+
+        final TextModel[] queries = new TextModel[20];
+        for (int i = 0; i < queries.length; i++)
+            queries[i] = makeBody();
+
+        // An interrupted caller still waits for every worker, and stays interrupted.
+        Thread.currentThread().interrupt();
+        final List<CountMatchVisitor> visitors = index.searchAll(queries, new MatchVisitorFactory<CountMatchVisitor>() {
+            @Override
+            public CountMatchVisitor make() {
+                return new CountMatchVisitor();
+            }
+        });
+        assertTrue(Thread.interrupted());
+
+        int total = 0;
+        for (CountMatchVisitor visitor : visitors)
+            total += visitor.count.get();
+
+        assertEquals(queries.length * nentries, total);
+    }
+
+    public static int[] countMatches(MindexCore index, final TextModel text1) {
+        final int counts[] = new int[nentries];
+
+        index.search(text1, new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                assertSame(ntext1, text1);
+                assertEquals(offset1, offset2);
+                counts[offset1]++;
+            }
+        });
+
+        return counts;
+    }
+
     public static TextModel makeBody() {
+        return makeBody("hash");
+    }
+
+    public static TextModel makeBody(String hash) {
         TextModelBuilder builder = new TextModelBuilder();
         assertEquals(builder.length(), 0);
 
@@ -72,6 +445,6 @@ public class MindexTest {
             builder.add(code, i, (byte) 1);
         }
 
-        return builder.finish("hash");
+        return builder.finish(hash);
     }
 }
\ No newline at end of file
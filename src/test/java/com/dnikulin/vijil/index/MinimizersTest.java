@@ -0,0 +1,131 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.model.TextModel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MinimizersTest {
+    public static final int length = 6;
+    public static final int window = 8;
+
+    @Test
+    public void testSharedRun() {
+        final Random random = new Random(11);
+
+        // Plant one shared run, just long enough to be guaranteed.
+        final int    nshared = (length + window - 1);
+        final int [] shared  = randomLemmas(random, nshared);
+
+        final int [] lemmas1 = randomLemmas(random, 200);
+        final int [] lemmas2 = randomLemmas(random, 300);
+        System.arraycopy(shared, 0, lemmas1, 50,  nshared);
+        System.arraycopy(shared, 0, lemmas2, 170, nshared);
+
+        final TextModel text1 = new TextModel("text1", lemmas1);
+        final TextModel text2 = new TextModel("text2", lemmas2);
+
+        final Minimizers index = new Minimizers(length, window);
+        index.add(text2);
+
+        // Far fewer entries than sub-lists.
+        assertTrue(index.entries() < ((lemmas2.length - length + 1) / 2));
+
+        // Every lemma of the shared run is covered by some match.
+        final boolean [] covered = new boolean[lemmas1.length];
+        index.search(text1, new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                assertEquals(length1, length2);
+                assertEquals(offset1 + 120, offset2);
+                for (int i = 0; i < length1; i++)
+                    covered[offset1 + i] = true;
+            }
+        });
+
+        for (int i = 50; i < (50 + nshared); i++)
+            assertTrue(covered[i]);
+    }
+
+    @Test
+    public void testShortTexts() {
+        final int [] lemmas = randomLemmas(new Random(17), 100);
+        final TextModel text1 = new TextModel("text1", lemmas);
+        final TextModel short1 = new TextModel("short1", new int[length - 1]);
+        final TextModel short2 = new TextModel("short2", new int[0]);
+
+        // Texts shorter than one sub-list index and match nothing.
+        final Minimizers index = new Minimizers(length, window);
+        index.add(short1);
+        index.add(short2);
+        index.add(text1);
+
+        final int [] count = new int[1];
+        final MatchVisitor counter = new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                count[0]++;
+            }
+        };
+
+        index.search(short1, counter);
+        index.search(short2, counter);
+        assertEquals(0, count[0]);
+        assertTrue(index.remove(short1));
+    }
+
+    @Test
+    public void testIdenticalTexts() {
+        final int [] lemmas = randomLemmas(new Random(13), 100);
+        final TextModel text1 = new TextModel("text1", lemmas);
+        final TextModel text2 = new TextModel("text2", lemmas);
+
+        final Minimizers index = new Minimizers(length, window);
+        index.add(text2);
+
+        // Matches extend to cover the whole text.
+        final boolean [] covered = new boolean[lemmas.length];
+        index.search(text1, new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                assertEquals(offset1, offset2);
+                for (int i = 0; i < length1; i++)
+                    covered[offset1 + i] = true;
+            }
+        });
+
+        for (int i = 0; i < lemmas.length; i++)
+            assertTrue(covered[i]);
+    }
+
+    private static int[] randomLemmas(Random random, int count) {
+        final int [] lemmas = new int[count];
+        for (int i = 0; i < count; i++)
+            lemmas[i] = random.nextInt(1 << 20);
+        return lemmas;
+    }
+}
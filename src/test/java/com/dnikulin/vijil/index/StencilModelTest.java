@@ -0,0 +1,127 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.model.TextModel;
+import com.dnikulin.vijil.tools.HashInts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StencilModelTest {
+    public static final int[] offsets = new int[]{0, 1, 2, 3, 0, 1, 2, 4};
+
+    @Test
+    public void testUnsortedHash() {
+        final StencilModel model = new StencilModel(4, offsets, false);
+        final TextModel    text  = randomText(new Random(3), "text", 50);
+        final int       [] buffer = new int[model.size];
+
+        // Unsorted hashes are unchanged from hashing a sampled buffer.
+        for (int ilem = 0; ilem < 45; ilem++) {
+            for (int isten = 0; isten < model.nstencils; isten++) {
+                model.sample(buffer, text, ilem, isten);
+                assertEquals(HashInts.hash(buffer), model.hash(text, ilem, isten, HashInts.seed));
+            }
+        }
+    }
+
+    @Test
+    public void testSortedMultiset() {
+        final StencilModel model = new StencilModel(4, offsets, true);
+
+        final TextModel text1 = new TextModel("text1", new int[]{1, 1, 2, 3, 9});
+        final TextModel text2 = new TextModel("text2", new int[]{3, 1, 2, 1, 9});
+        final TextModel text3 = new TextModel("text3", new int[]{1, 2, 2, 3, 9});
+
+        // Permutations hash and compare equal.
+        assertEquals(model.hash(text1, 0, 0, 5), model.hash(text2, 0, 0, 5));
+        assertTrue(model.equal(text1, 0, 0, text2, 0, 0));
+
+        // Different multisets with the same distinct lemmas do not.
+        assertFalse(model.hash(text1, 0, 0, 5) == model.hash(text3, 0, 0, 5));
+        assertFalse(model.equal(text1, 0, 0, text3, 0, 0));
+
+        // Stencils of different shapes may still sample equal multisets.
+        final TextModel text4 = new TextModel("text4", new int[]{2, 3, 1, 7, 1});
+        assertTrue(model.equal(text1, 0, 0, text4, 0, 1));
+    }
+
+    @Test
+    public void testSortedAgreesWithSample() {
+        final StencilModel model   = new StencilModel(4, offsets, true);
+        final Random       random  = new Random(9);
+        final int       [] buffer1 = new int[model.size];
+        final int       [] buffer2 = new int[model.size];
+
+        for (int i = 0; i < 1000; i++) {
+            final TextModel text1 = randomText(random, "text1", 5);
+            final TextModel text2 = randomText(random, "text2", 5);
+
+            model.sample(buffer1, text1, 0, 0);
+            model.sample(buffer2, text2, 0, 1);
+            assertEquals(Arrays.equals(buffer1, buffer2), model.equal(text1, 0, 0, text2, 0, 1));
+        }
+    }
+
+    @Test
+    public void testSharedHashes() {
+        final int [] offsets5of7 = new int[]{
+            0, 1, 2, 3, 4,  0, 1, 2, 3, 5,  0, 1, 2, 3, 6,
+            0, 1, 2, 4, 5,  0, 1, 3, 4, 6,  0, 2, 3, 5, 6};
+
+        final boolean [] sorts = {false, true};
+        for (boolean sorted : sorts) {
+            final StencilModel model = new StencilModel(5, offsets5of7, sorted);
+            final TextModel    text  = randomText(new Random(4), "text", 40);
+
+            // Shared prefixes need fewer nodes than stencil lemmas.
+            assertTrue(model.nodes() < offsets5of7.length);
+
+            final int seed    = 123;
+            final int [] mixed   = model.premix(text, seed);
+            final int [] partial = new int[model.nodes()];
+            final int [] hashes  = new int[model.nstencils];
+
+            for (int ilem = 0; ilem < text.size; ilem++) {
+                model.hashes(mixed, ilem, seed, partial, hashes);
+
+                for (int isten = 0; isten < model.nstencils; isten++) {
+                    if ((ilem + model.width(isten)) <= text.size)
+                        assertEquals(model.hash(text, ilem, isten, seed), hashes[isten]);
+                }
+            }
+        }
+    }
+
+    private static TextModel randomText(Random random, String hash, int size) {
+        final int [] lemmas = new int[size];
+        for (int i = 0; i < size; i++)
+            lemmas[i] = random.nextInt(3);
+        return new TextModel(hash, lemmas);
+    }
+}
@@ -0,0 +1,211 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.model.TextModel;
+import com.dnikulin.vijil.tools.DaemonThreads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StencilinTest {
+    public static final int[] offsets = new int[]{0, 1, 2, 3, 0, 1, 2, 4, 0, 2, 3, 4};
+
+    @Test
+    public void testMatchesStencils() {
+        final boolean [] sorts = {false, true};
+        for (boolean sorted : sorts) {
+            final StencilModel model = new StencilModel(4, offsets, sorted);
+            final TextModel [] texts = randomTexts(new Random(5), 6, 80, 4);
+
+            // Online index reports every ordered pair from the query side.
+            final Stencils index = new Stencils(model);
+            for (TextModel text : texts)
+                index.add(text);
+
+            final List<String> expect = new ArrayList<String>();
+            for (TextModel text : texts)
+                index.search(text, new SyncMatchVisitor(collect(expect)));
+
+            // Stencilin reports every pair in both directions.
+            final List<String> actual = new ArrayList<String>();
+            final Stencilin engine = new Stencilin(3, 1 << 10, 4, 1000);
+            try {
+                engine.search(texts, model, new SyncMatchVisitor(collect(actual)));
+            } finally {
+                engine.close();
+            }
+
+            Collections.sort(expect);
+            Collections.sort(actual);
+            assertFalse(expect.isEmpty());
+            assertEquals(expect, actual);
+            assertEquals(0, engine.skippedBins());
+        }
+    }
+
+    @Test
+    public void testPartitioned() {
+        final boolean [] sorts = {false, true};
+        for (boolean sorted : sorts) {
+            final StencilModel model = new StencilModel(4, offsets, sorted);
+            final TextModel [] texts = randomTexts(new Random(6), 4, 3000, 40);
+
+            final Stencilin engine = new Stencilin(3, 1 << 16, 16, 1000);
+            try {
+                final List<String> linked = new ArrayList<String>();
+                engine.search(texts, model, new SyncMatchVisitor(collect(linked)));
+                Collections.sort(linked);
+                assertFalse(linked.isEmpty());
+
+                // Many small passes, then one pass of several partitions.
+                final int [] passes = {1000, 1 << 20};
+                for (int pass : passes) {
+                    final List<String> parted = new ArrayList<String>();
+                    engine.setPassSize(pass);
+                    engine.search(texts, model, new SyncMatchVisitor(collect(parted)));
+                    Collections.sort(parted);
+                    assertEquals(linked, parted);
+                }
+            } finally {
+                engine.close();
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionedPrefixCollisions() {
+        final StencilModel model = new StencilModel(4, offsets, false);
+
+        // Two copies of one text with few repeated samples. Among this many
+        // samples, dozens of distinct hashes share their top 24 bits, but
+        // none share all 32, so every full-hash group is one pair.
+        final Random random = new Random(7);
+        final int [] lemmas = new int[6000];
+        for (int i = 0; i < lemmas.length; i++)
+            lemmas[i] = random.nextInt(1 << 30);
+        final TextModel [] texts = {new TextModel("text", lemmas), new TextModel("copy", lemmas)};
+
+        // Every sample matches its copy, reported in both directions.
+        int expect = 0;
+        for (int isten = 0; isten < model.nstencils; isten++)
+            expect += 2 * (lemmas.length + 1 - model.width(isten));
+
+        final Stencilin engine = new Stencilin(3, 1 << 16, 16, 2);
+        try {
+            final List<String> actual = new ArrayList<String>();
+            engine.setPassSize(1 << 20);
+            engine.search(texts, model, new SyncMatchVisitor(collect(actual)));
+
+            assertEquals(0, engine.skippedBins());
+            assertEquals(expect, actual.size());
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testSkipsFullBins() {
+        final StencilModel model = new StencilModel(4, offsets, false);
+        final TextModel [] texts = randomTexts(new Random(5), 6, 80, 4);
+
+        final List<String> actual = new ArrayList<String>();
+        final Stencilin engine = new Stencilin(2, 1 << 10, 4, 2);
+        try {
+            engine.search(texts, model, new SyncMatchVisitor(collect(actual)));
+        } finally {
+            engine.close();
+        }
+
+        assertTrue(engine.skippedBins() > 0);
+    }
+
+    @Test
+    public void testCancel() {
+        final StencilModel model = new StencilModel(4, offsets, false);
+        final TextModel [] texts = randomTexts(new Random(5), 6, 80, 4);
+
+        final ExecutorService pool = DaemonThreads.pool("test", 2);
+        final Stencilin engine = new Stencilin(pool, 2, 1 << 10, 1, 1000);
+
+        try {
+            engine.search(texts, model, new MatchVisitor() {
+                @Override
+                public void matched(TextModel text1, TextModel text2, int offset1, int offset2, int length1, int length2) {
+                    engine.cancel();
+                }
+            });
+            assertTrue(false);
+        } catch (CancellationException ex) {
+            // Expected.
+        }
+
+        // A given pool is not shut down with the engine.
+        engine.close();
+        assertFalse(pool.isShutdown());
+
+        // The engine is usable again after cancellation.
+        final List<String> actual = new ArrayList<String>();
+        engine.search(texts, model, new SyncMatchVisitor(collect(actual)));
+        assertFalse(actual.isEmpty());
+
+        // A cancel() between searches cancels the next one.
+        engine.cancel();
+        try {
+            engine.search(texts, model, new SyncMatchVisitor(collect(actual)));
+            assertTrue(false);
+        } catch (CancellationException ex) {
+            // Expected.
+        }
+
+        pool.shutdown();
+    }
+
+    private static MatchVisitor collect(final List<String> matches) {
+        return new MatchVisitor() {
+            @Override
+            public void matched(TextModel text1, TextModel text2, int offset1, int offset2, int length1, int length2) {
+                matches.add(text1.hash + " " + text2.hash + " " + offset1 + " " + offset2 + " " + length1 + " " + length2);
+            }
+        };
+    }
+
+    private static TextModel[] randomTexts(Random random, int ntexts, int size, int nsymbols) {
+        final TextModel [] texts = new TextModel[ntexts];
+        for (int itext = 0; itext < ntexts; itext++) {
+            final int [] lemmas = new int[size];
+            for (int i = 0; i < size; i++)
+                lemmas[i] = random.nextInt(nsymbols);
+            texts[itext] = new TextModel("text" + itext, lemmas);
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,149 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.index;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.model.TextModel;
+
+public class SuffixSearchTest {
+    @Test
+    public void testSuffixArray() {
+        final Random random = new Random(11);
+
+        for (int iter = 0; iter < 200; iter++) {
+            final int    n = random.nextInt(60) + 1;
+            final int    k = random.nextInt(4) + 2;
+            final int [] s = new int[n];
+            for (int i = 0; i < (n - 1); i++)
+                s[i] = random.nextInt(k - 1) + 1;
+
+            final int [] sa = new int[n];
+            SuffixSearch.sais(s, sa, n, k);
+
+            // Every suffix must be less than the next.
+            for (int i = 1; i < n; i++)
+                assertEquals(-1, compare(s, sa[i - 1], sa[i]));
+        }
+    }
+
+    @Test
+    public void testMaximalRepeats() {
+        final Random random = new Random(12);
+
+        for (int iter = 0; iter < 50; iter++) {
+            final TextModel [] texts = new TextModel[3];
+            for (int itext = 0; itext < texts.length; itext++) {
+                final int [] lemmas = new int[random.nextInt(40) + 1];
+                for (int i = 0; i < lemmas.length; i++)
+                    lemmas[i] = random.nextInt(3) - 1;
+                texts[itext] = new TextModel("text" + itext, lemmas);
+            }
+
+            final int minLength = random.nextInt(3) + 2;
+
+            final List<String> actual = new ArrayList<String>();
+            SuffixSearch.search(new MatchVisitor() {
+                @Override
+                public void matched(TextModel text1, TextModel text2, int offset1, int offset2, int length1, int length2) {
+                    assertEquals(length1, length2);
+                    actual.add(pair(text1, text2, offset1, offset2, length1));
+                }
+            }, texts, minLength);
+
+            final List<String> expect = bruteForce(texts, minLength);
+            Collections.sort(actual);
+            Collections.sort(expect);
+            assertEquals(expect, actual);
+        }
+    }
+
+    @Test
+    public void testRepeatedText() {
+        final TextModel text1 = MindexTest.makeBody();
+        final TextModel text2 = MindexTest.makeBody();
+
+        final List<String> actual = new ArrayList<String>();
+        SuffixSearch.search(new MatchVisitor() {
+            @Override
+            public void matched(TextModel ntext1, TextModel ntext2, int offset1, int offset2, int length1, int length2) {
+                actual.add(pair(ntext1, ntext2, offset1, offset2, length1));
+            }
+        }, new TextModel[]{text1, text2}, 6);
+
+        // The whole text is one repeat, reported once.
+        assertEquals(1, Collections.frequency(actual, pair(text1, text2, 0, 0, text1.size)));
+    }
+
+    private static List<String> bruteForce(TextModel[] texts, int minLength) {
+        final List<String> pairs = new ArrayList<String>();
+
+        for (int itext1 = 0; itext1 < texts.length; itext1++) {
+            for (int itext2 = itext1 + 1; itext2 < texts.length; itext2++) {
+                final TextModel text1 = texts[itext1];
+                final TextModel text2 = texts[itext2];
+
+                for (int i1 = 0; i1 < text1.size; i1++) {
+                    for (int i2 = 0; i2 < text2.size; i2++) {
+                        // Require left maximality.
+                        if ((i1 > 0) && (i2 > 0) && (text1.symbol(i1 - 1) == text2.symbol(i2 - 1)))
+                            continue;
+
+                        // Extend right as far as possible.
+                        int len = 0;
+                        while (((i1 + len) < text1.size) && ((i2 + len) < text2.size)
+                                && (text1.symbol(i1 + len) == text2.symbol(i2 + len)))
+                            len++;
+
+                        if (len >= minLength)
+                            pairs.add(pair(text1, text2, i1, i2, len));
+                    }
+                }
+            }
+        }
+
+        return pairs;
+    }
+
+    private static String pair(TextModel text1, TextModel text2, int offset1, int offset2, int length) {
+        // Order pairs by text hash, as the search may report either order.
+        if (text1.hash.compareTo(text2.hash) > 0)
+            return pair(text2, text1, offset2, offset1, length);
+        return text1.hash + " " + text2.hash + " " + offset1 + " " + offset2 + " " + length;
+    }
+
+    private static int compare(int[] s, int i1, int i2) {
+        while ((i1 < s.length) && (i2 < s.length)) {
+            if (s[i1] != s[i2])
+                return (s[i1] < s[i2]) ? -1 : 1;
+            i1++;
+            i2++;
+        }
+        return (i1 == s.length) ? -1 : 1;
+    }
+}
@@ -21,9 +21,11 @@
 package com.dnikulin.vijil.index;
 
 import static com.dnikulin.vijil.index.TextModelTape.BARRIER;
+import static com.dnikulin.vijil.index.TextModelTape.FIRST;
 import static com.dnikulin.vijil.index.TextModelTape.SENTINEL;
 import static com.dnikulin.vijil.index.TextModelTape.VOID;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -61,4 +63,34 @@ public class TextModelTapeTest {
         assertEquals(0, tape.modelIndex(0));
         assertEquals(1, tape.modelIndex(tape.nsymbols - 3));
     }
+
+    @Test
+    public void testDenseTape() {
+        final TextModel    model1 = new TextModel("model1", new int[]{1 << 30, 0, 7, 0});
+        final TextModel    model2 = new TextModel("model2", new int[]{7, 0, -5});
+        final TextModel [] models = new TextModel[]{model1, model2};
+
+        TextModelTape tape = new TextModelTape(models, true);
+        assertTrue(tape.dense);
+        assertEquals(model1.size + model2.size + 3, tape.nsymbols);
+        assertEquals(FIRST + 3, tape.maximum);
+
+        // Ids follow descending frequency, then ascending symbol.
+        assertEquals(FIRST + 0, tape.dense(0));
+        assertEquals(FIRST + 1, tape.dense(7));
+        assertEquals(FIRST + 2, tape.dense(-5));
+        assertEquals(FIRST + 3, tape.dense(1 << 30));
+        assertEquals(VOID, tape.dense(3));
+
+        // Text symbols are remapped, and barriers and sentinel are not.
+        assertEquals(FIRST + 3, tape.symbol(0));
+        assertEquals(BARRIER, tape.symbol(model1.size));
+        assertEquals(SENTINEL, tape.symbol(tape.nsymbols - 1));
+
+        for (int is = 0; is < tape.nsymbols; is++) {
+            final int imodel = tape.modelIndex(is);
+            if (imodel != VOID)
+                assertEquals(tape.model(imodel).symbol(tape.modelOffset(is)), tape.original(tape.symbol(is)));
+        }
+    }
 }
\ No newline at end of file
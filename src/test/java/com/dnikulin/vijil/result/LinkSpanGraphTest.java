@@ -0,0 +1,182 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.model.TextModel;
+
+public class LinkSpanGraphTest {
+    @Test
+    public void testMergeOverlaps() {
+        final TextModel text1 = new TextModel("text1", new int[100]);
+        final TextModel text2 = new TextModel("text2", new int[100]);
+        final TextModel text3 = new TextModel("text3", new int[100]);
+
+        final LinkSpanGraph graph = new LinkSpanGraph(SpanDomain.SYMBOLS);
+
+        // Overlapping grams merge into one span each side.
+        for (int i = 0; i < 10; i++)
+            graph.matched(text1, text2, 10 + i, 50 + i, 6, 6);
+
+        // A separate match forms a separate set.
+        graph.matched(text1, text3, 80, 0, 5, 5);
+
+        // Repeats in reverse add no links.
+        graph.matched(text2, text1, 50, 10, 6, 6);
+
+        final LinkSpanSet [] sets = graph.result();
+        assertEquals(2, sets.length);
+
+        final LinkSpanSet set = sets[0];
+        assertEquals(2, set.spans.length);
+
+        final LinkSpan span1 = set.spans[0];
+        final LinkSpan span2 = set.spans[1];
+        assertEquals("text1", span1.hash);
+        assertEquals(10, span1.min);
+        assertEquals(25, span1.max);
+        assertEquals("text2", span2.hash);
+        assertEquals(50, span2.min);
+        assertEquals(65, span2.max);
+
+        assertEquals(1, span1.links.length);
+        assertEquals(1, span2.links.length);
+        assertSame(span2, span1.links[0]);
+        assertSame(span1, span2.links[0]);
+        assertSame(set, span1.set);
+    }
+
+    @Test
+    public void testNormaliseParallel() {
+        final Random random = new Random(21);
+
+        // Texts whose lemmas are each 3 characters plus a space.
+        final TextModel [] texts = new TextModel[5];
+        for (int itext = 0; itext < texts.length; itext++) {
+            final int [] offsets = new int[2000];
+            final byte [] lengths = new byte[2000];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = i * 4;
+                lengths[i] = 3;
+            }
+            texts[itext] = new TextModel("text" + itext, new int[2000], offsets, lengths, new byte[2000]);
+        }
+
+        final LinkSpanGraph graph = new LinkSpanGraph(SpanDomain.SYMBOLS);
+        for (int i = 0; i < 40; i++) {
+            final int itext1 = random.nextInt(texts.length);
+            final int itext2 = (itext1 + 1 + random.nextInt(texts.length - 1)) % texts.length;
+            graph.matched(texts[itext1], texts[itext2], random.nextInt(1990), random.nextInt(1990), 5, 5);
+        }
+
+        final LinkSpanSet [] sets = graph.result();
+        assertTrue(sets.length > 4);
+
+        final String serial   = canon(LinkSpanGraph.normaliseSets(sets, texts));
+        final String parallel = canon(LinkSpanGraph.normaliseSets(sets, texts, 4));
+        assertEquals(serial, parallel);
+    }
+
+    @Test
+    public void testJoinSets() {
+        final TextModel text1 = new TextModel("text1", new int[100]);
+        final TextModel text2 = new TextModel("text2", new int[100]);
+        final TextModel text3 = new TextModel("text3", new int[100]);
+
+        final LinkSpanGraph graph = new LinkSpanGraph(SpanDomain.SYMBOLS);
+        graph.matched(text1, text2, 0, 0, 10, 10);
+        graph.matched(text1, text3, 40, 40, 10, 10);
+
+        // A span overlapping both text1 spans joins their sets.
+        graph.matched(text1, text2, 5, 70, 40, 10);
+
+        final LinkSpanSet [] sets = graph.result();
+        assertEquals(1, sets.length);
+
+        // One text1 span, linked to all three others.
+        int nlinks = 0;
+        for (LinkSpan span : sets[0].spans) {
+            if (span.hash.equals("text1")) {
+                assertEquals(0, span.min);
+                assertEquals(50, span.max);
+                nlinks = span.links.length;
+            }
+        }
+        assertEquals(3, nlinks);
+        assertEquals(4, sets[0].spans.length);
+    }
+
+    @Test
+    public void testSparseSpans() {
+        // Spans far into a text, as in the character domain of a large corpus.
+        final int base = 1 << 30;
+
+        final LinkSpanSet [] sets = new LinkSpanSet[2];
+        for (int iset = 0; iset < sets.length; iset++) {
+            final int min = base + (iset * 100);
+            sets[iset] = new LinkSpanSet(iset + 1, 2, SpanDomain.CHARACTERS);
+            sets[iset].spans[0] = new LinkSpan(sets[iset], 1, "text1", min, min + 150, new LinkSpan[1]);
+            sets[iset].spans[1] = new LinkSpan(sets[iset], 2, "text2", iset * 1000, (iset * 1000) + 10, new LinkSpan[1]);
+            sets[iset].spans[0].links[0] = sets[iset].spans[1];
+            sets[iset].spans[1].links[0] = sets[iset].spans[0];
+        }
+
+        // The overlapping text1 spans join both sets.
+        final LinkSpanSet [] merged = LinkSpanGraph.merge(sets);
+        assertEquals(1, merged.length);
+        assertEquals(3, merged[0].spans.length);
+
+        final LinkSpan span1 = merged[0].spans[0];
+        assertEquals("text1", span1.hash);
+        assertEquals(base, span1.min);
+        assertEquals(base + 250, span1.max);
+        assertEquals(2, span1.links.length);
+    }
+
+    /** Describe sets independently of their order and codes. */
+    private static String canon(LinkSpanSet[] sets) {
+        final List<String> out = new ArrayList<String>();
+        for (LinkSpanSet set : sets) {
+            final List<String> spans = new ArrayList<String>();
+            for (LinkSpan span : set.spans) {
+                final List<String> links = new ArrayList<String>();
+                for (LinkSpan link : span.links)
+                    links.add(link.toString());
+                Collections.sort(links);
+                spans.add(span + " " + links);
+            }
+            Collections.sort(spans);
+            out.add(spans.toString());
+        }
+        Collections.sort(out);
+        return out.toString();
+    }
+}
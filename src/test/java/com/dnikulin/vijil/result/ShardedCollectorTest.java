@@ -0,0 +1,117 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.result;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.index.MatchVisitor;
+import com.dnikulin.vijil.model.TextModel;
+
+public class ShardedCollectorTest {
+    @Test
+    public void testDeterministicReplay() throws InterruptedException {
+        final TextModel [] texts = new TextModel[4];
+        for (int i = 0; i < texts.length; i++)
+            texts[i] = new TextModel("text" + i, new int[1000]);
+
+        final ShardedCollector collector = new ShardedCollector();
+        final int nthreads = 4;
+        final int nmatches = 500;
+
+        // Each thread adds its own matches.
+        final Thread [] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            final Random random = new Random(i);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < nmatches; j++) {
+                        final int itext1 = random.nextInt(texts.length);
+                        final int itext2 = (itext1 + 1 + random.nextInt(texts.length - 1)) % texts.length;
+                        collector.matched(texts[itext1], texts[itext2],
+                            random.nextInt(990), random.nextInt(990), 10, 10);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(nthreads * nmatches, collector.count());
+
+        // Replay is sorted, regardless of thread order.
+        final List<String> replayed = replay(collector);
+        assertEquals(nthreads * nmatches, replayed.size());
+        for (int i = 1; i < replayed.size(); i++)
+            assertEquals(true, replayed.get(i - 1).compareTo(replayed.get(i)) <= 0);
+
+        // Same matches added in a different order replay the same.
+        final ShardedCollector collector2 = new ShardedCollector();
+        for (int i = replayed.size() - 1; i >= 0; i--) {
+            final String [] parts = replayed.get(i).split(" ");
+            collector2.matched(texts[parts[0].charAt(4) - '0'], texts[parts[1].charAt(4) - '0'],
+                Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), 10, 10);
+        }
+        assertEquals(replayed, replay(collector2));
+        assertEquals(collector.linkSpans().length, collector2.linkSpans().length);
+
+        collector.clear();
+        assertEquals(0, collector.count());
+    }
+
+    @Test
+    public void testSpanPairs() {
+        final TextModel text1 = new TextModel("text1", new int[100]);
+        final TextModel text2 = new TextModel("text2", new int[100]);
+        final TextModel text3 = new TextModel("text3", new int[100]);
+
+        final ShardedCollector collector = new ShardedCollector();
+        collector.matched(text1, text2, 10, 20, 5, 5);
+        collector.matched(text2, text1, 22, 12, 5, 5);
+        collector.matched(text1, text3, 10, 20, 5, 5);
+
+        // Matches in both directions merge, and other texts are ignored.
+        final ModelSpanPair [] pairs = collector.spanPairs(text1, text2);
+        assertEquals(1, pairs.length);
+        assertEquals(10, pairs[0].span1.min);
+        assertEquals(20, pairs[0].span2.min);
+        assertEquals(7,  pairs[0].span1.len);
+    }
+
+    private static List<String> replay(ShardedCollector collector) {
+        final List<String> out = new ArrayList<String>();
+        collector.replay(new MatchVisitor() {
+            @Override
+            public void matched(TextModel text1, TextModel text2, int offset1, int offset2, int length1, int length2) {
+                out.add(text1.hash + " " + text2.hash + " " + String.format("%04d %04d", offset1, offset2));
+            }
+        });
+        return out;
+    }
+}
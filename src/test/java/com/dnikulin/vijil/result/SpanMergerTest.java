@@ -0,0 +1,121 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.result;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.dnikulin.vijil.model.TextModel;
+
+public class SpanMergerTest {
+    private final TextModel text1 = new TextModel("text1", new int[100000]);
+    private final TextModel text2 = new TextModel("text2", new int[100000]);
+
+    @Test
+    public void testDenseDiagonal() {
+        final SpanMerger merger = new SpanMerger(text1, text2);
+
+        // Every gram of two passages, in reverse, enough to collapse early.
+        for (int i = 20000; i >= 0; i--) {
+            merger.matched(text1, text2, 1000 + i, 50000 + i, 8, 8);
+            merger.matched(text1, text2, 60000 + i, 3000 + i, 8, 8);
+        }
+
+        final ModelSpanPair [] pairs = merger.result();
+        assertEquals(2, pairs.length);
+        assertSpans(pairs[0], 1000, 50000, 20008, 20008);
+        assertSpans(pairs[1], 60000, 3000, 20008, 20008);
+    }
+
+    @Test
+    public void testAcrossDiagonals() {
+        final SpanMerger merger = new SpanMerger(text1, text2);
+
+        // Overlapping in both texts on different diagonals.
+        merger.matched(text1, text2, 100, 200, 10, 10);
+        merger.matched(text1, text2, 105, 208, 10, 10);
+
+        // Overlapping in text1 only.
+        merger.matched(text1, text2, 100, 500, 10, 10);
+
+        // Joined only by a later span reaching back past the sweep line.
+        merger.matched(text1, text2, 1000, 1100, 5, 5);
+        merger.matched(text1, text2, 1010, 1000, 5, 5);
+        merger.matched(text1, text2, 990, 1003, 30, 100);
+
+        final ModelSpanPair [] pairs = merger.result();
+        assertEquals(3, pairs.length);
+        assertSpans(pairs[0], 100, 200, 15, 18);
+        assertSpans(pairs[1], 100, 500, 10, 10);
+        assertSpans(pairs[2], 990, 1000, 30, 105);
+    }
+
+    @Test
+    public void testParallel() throws InterruptedException {
+        final SpanMerger serial   = new SpanMerger(text1, text2);
+        final SpanMerger parallel = new SpanMerger(text1, text2);
+        final int nthreads = 4;
+        final int nmatches = 20000;
+
+        for (int i = 0; i < nthreads; i++)
+            add(serial, new Random(i), nmatches);
+
+        // Each thread adds its own matches.
+        final Thread [] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            final Random random = new Random(i);
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    add(parallel, random, nmatches);
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        final ModelSpanPair [] pairs1 = serial.result();
+        final ModelSpanPair [] pairs2 = parallel.result();
+        assertEquals(pairs1.length, pairs2.length);
+        for (int i = 0; i < pairs1.length; i++)
+            assertSpans(pairs2[i], pairs1[i].span1.min, pairs1[i].span2.min, pairs1[i].span1.len, pairs1[i].span2.len);
+    }
+
+    private void add(SpanMerger merger, Random random, int nmatches) {
+        for (int j = 0; j < nmatches; j++) {
+            final int offset1 = random.nextInt(99000);
+            final int offset2 = random.nextBoolean() ? offset1 : random.nextInt(99000);
+            merger.matched(text1, text2, offset1, offset2, 1 + random.nextInt(10), 1 + random.nextInt(10));
+        }
+    }
+
+    private static void assertSpans(ModelSpanPair pair, int min1, int min2, int len1, int len2) {
+        assertEquals(min1, pair.span1.min);
+        assertEquals(min2, pair.span2.min);
+        assertEquals(len1, pair.span1.len);
+        assertEquals(len2, pair.span2.len);
+    }
+}
@@ -0,0 +1,89 @@
+// Copyright (C) 2011  Dmitri Nikulin
+//
+// This file is part of Vijil.
+//
+// Vijil is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Affero General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// Vijil is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Affero General Public License for more details.
+//
+// You should have received a copy of the GNU Affero General Public License
+// along with Vijil.  If not, see <http://www.gnu.org/licenses/>.
+//
+// Repository:     https://github.com/dnikulin/vijil
+// Email:          dnikulin+vijil@gmail.com
+
+package com.dnikulin.vijil.tools;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RollingHashTest {
+    // Even 2**16 is likely to collide, as per the Birthday Paradox.
+    public static final int count = 1 << 16;
+
+    @Test
+    public void testCollideSingle() {
+        Set<Integer> set = new HashSet<Integer>();
+        for (int i = 0; i < count; i++) {
+            int[] data = new int[]{i};
+            int hash = RollingHash.hash(data, 0, 1);
+            assertTrue(set.add(hash));
+        }
+    }
+
+    @Test
+    public void testCollideRepeat() {
+        Set<Integer> set = new HashSet<Integer>();
+        for (int i = 0; i < count; i++) {
+            int[] data = new int[]{i, i, i};
+            int hash = RollingHash.hash(data, 0, 3);
+            assertTrue(set.add(hash));
+        }
+    }
+
+    @Test
+    public void testCollideSeries() {
+        // Roll over one long series, simulating realistic sub-list matching.
+        int[] data = new int[count + 3];
+        for (int i = 0; i < data.length; i++)
+            data[i] = i;
+
+        int[] hashes = RollingHash.hashes(data, 0, data.length, 4);
+        assertEquals(count, hashes.length);
+
+        Set<Integer> set = new HashSet<Integer>();
+        for (int hash : hashes)
+            assertTrue(set.add(hash));
+    }
+
+    @Test
+    public void testRollMatchesDirect() {
+        Random random = new Random(5);
+        int[] data = new int[200];
+        for (int i = 0; i < data.length; i++)
+            data[i] = random.nextInt();
+
+        for (int window = 1; window <= 9; window++) {
+            int[] hashes = RollingHash.hashes(data, 3, 150, window, 77);
+            assertEquals(151 - window, hashes.length);
+
+            for (int i = 0; i < hashes.length; i++)
+                assertEquals(RollingHash.hash(data, 3 + i, window, 77), hashes[i]);
+        }
+
+        // Shorter than a window.
+        assertEquals(0, RollingHash.hashes(data, 0, 3, 4).length);
+    }
+}